@@ -1,5 +1,9 @@
 package compiler;
 
+import java.util.Arrays;
+
+import static compiler.OpCode.*;
+
 public class Chunk {
   private byte[] codes;
   private int codesCapacity;
@@ -8,6 +12,7 @@ public class Chunk {
   private int constantsCapacity;
   private int constantsCount;
   private int[] lines;
+  private Object[] inlineCaches; //by instruction offset, made on demand
 
   //Chunk()
   Chunk() {
@@ -37,11 +42,110 @@ public class Chunk {
     return constants;
   }
 
+  //constantsCount()
+  public int constantsCount() {
+    return constantsCount;
+  }
+
   //lines()
   public int[] lines() {
     return lines;
   }
 
+  //inlineCache(int)
+  public Object inlineCache(int offset) {
+    return (inlineCaches == null) ? null : inlineCaches[offset];
+  }
+
+  //setInlineCache(int, Object)
+  public void setInlineCache(int offset, Object cache) {
+    //The VM owns what goes in here; the chunk only keeps one
+    //slot per instruction for it.
+    if (inlineCaches == null)
+      inlineCaches = new Object[codesCount];
+
+    inlineCaches[offset] = cache;
+  }
+
+  //instructionWidth(int)
+  public int instructionWidth(int offset) {
+    byte opCode = codes[offset];
+
+    if (opCode == OP_CLOSURE) {
+      int index = ((codes[offset + 1] & 0xFF) << 8) | (codes[offset + 2] & 0xFF);
+
+      //each upvalue adds an isLocal byte and an index byte
+      return 3 + 2 * ((Function)constants[index]).upvalueCount();
+    }
+
+    return 1 + OpCode.operandWidth(opCode);
+  }
+
+  //maxDepth(int)
+  public int maxDepth(int arity) {
+    //The most stack slots a frame running this code can use, its
+    //callee and arguments included.  Code after a jump or return
+    //goes on at the depth it left at, as the compiler lays it out;
+    //a jump's target is at least as deep as the jump.
+    int[] targetDepths = new int[codesCount + 1];
+    int depth = arity + 1;
+    int max = depth;
+
+    for (int offset = 0; offset < codesCount; offset += instructionWidth(offset)) {
+      depth = Math.max(depth, targetDepths[offset]);
+
+      byte opCode = OpCode.generic(codes[offset]);
+      byte[] components = SuperinstructionPass.components(opCode);
+
+      if (components == null)
+        components = new byte[] { opCode };
+
+      for (int at = offset + 1, i = 0; i < components.length; i++) {
+        //every jump form has its distance first, from its end
+        if (components[i] == OP_JUMP || components[i] == OP_JUMP_IF_FALSE) {
+          int target = offset + 3 + (((codes[offset + 1] & 0xFF) << 8) | (codes[offset + 2] & 0xFF));
+
+          targetDepths[target] = Math.max(targetDepths[target], depth);
+        }
+
+        depth += OpCode.stackEffect(components[i], codes, at);
+        max = Math.max(max, depth);
+        at += OpCode.operandWidth(components[i]);
+      }
+    }
+
+    return max;
+  }
+
+  //copy()
+  Chunk copy() {
+    //The code as compiled, for one run (see Function.copy()).  Only
+    //what running code rewrites is copied: the code itself, since it
+    //is quickened, and nested functions, which carry their own
+    //state.  Lines and other constants are never written after
+    //compiling, so the copy shares them.
+    Chunk copy = new Chunk();
+
+    copy.codes = Arrays.copyOf(codes, codesCount);
+    copy.codesCapacity = codesCount;
+    copy.codesCount = codesCount;
+    copy.lines = lines;
+    copy.constants = constants;
+    copy.constantsCount = constantsCount;
+
+    for (int index = 0; index < constantsCount; index++)
+      if (constants[index] instanceof Function) {
+        if (copy.constants == constants)
+          copy.constants = Arrays.copyOf(constants, constantsCount);
+
+        copy.constants[index] = ((Function)constants[index]).copy();
+      }
+
+    copy.constantsCapacity = copy.constants.length;
+
+    return copy;
+  }
+
   //writeCode(byte, int)
   void writeCode(byte code, int line) {
     if (codesCapacity < codesCount + 1) {
@@ -65,6 +169,16 @@ public class Chunk {
     codesCount++;
   }
 
+  //replaceCode(byte[], int[], int)
+  void replaceCode(byte[] codes, int[] lines, int count) {
+    this.codes = codes;
+    this.lines = lines;
+
+    codesCapacity = codes.length;
+    codesCount = count;
+    inlineCaches = null;
+  }
+
   //writeConstant(Object)
   int writeConstant(Object constant) {
     if (constantsCapacity < constantsCount + 1) {
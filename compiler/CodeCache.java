@@ -0,0 +1,100 @@
+package compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import main.Props;
+import vm.GlobalTable;
+
+//Compiled scripts kept on disk beside their source (foo.lox's in
+//foo.loxc), so a run of unchanged source neither scans nor compiles
+//it.  A cache file is an image (see Image) after a hash of the
+//source it was compiled from and the options that change the code
+//compiled; a file for other source, or other options, is a miss.
+//
+//A file is read by mapping it into memory, and the image's
+//functions decode their code from the mapping when first called,
+//so a run pays only for the code it runs, checksums included: each
+//function's is checked as it is decoded (see Image).  A file cut
+//short is a miss, as its script's code no longer fits in it.
+public class CodeCache {
+  private static final int MAGIC = 0x4C4F5843; //"LOXC"
+  private static final int VERSION = 3;
+
+  //CodeCache()
+  private CodeCache() {}
+
+  //path(String)
+  public static String path(String sourcePath) {
+    return sourcePath.endsWith(".lox") ? sourcePath + "c" : sourcePath + ".loxc";
+  }
+
+  //write(Function, GlobalTable, String, String, Props)
+  public static void write(Function script, GlobalTable globals, String source, String path, Props properties) {
+    //Written beside the file and then moved over it, so a run
+    //mapping the old file never sees it change.  script mustn't
+    //have run yet: running code rewrites it.
+    Path target = Paths.get(path);
+    Path temp = Paths.get(path + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile())))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(Image.hash(source));
+      out.writeBoolean(properties.getBool("SUPERINSTRUCTIONS"));
+
+      Image.write(script, globals, out);
+    } catch (IOException e) {
+      System.err.println("Failed to store compiled script '" + path + "'.");
+
+      return;
+    }
+
+    try {
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Failed to store compiled script '" + path + "'.");
+    }
+  }
+
+  //read(String, String, GlobalTable, Props)
+  public static Function read(String source, String path, GlobalTable globals, Props properties) {
+    //The script compiled from source, with its globals named in
+    //globals, or null if the cache holds none.
+    ByteBuffer in;
+
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      //a mapping outlives its channel
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      return null;
+    }
+
+    byte[] hash = Image.hash(source);
+    byte[] cached = new byte[hash.length];
+
+    if (in.remaining() < 8 + hash.length + 1 || in.getInt() != MAGIC || in.getInt() != VERSION)
+      return null;
+
+    in.get(cached);
+
+    if (!Arrays.equals(cached, hash) || (in.get() != 0) != properties.getBool("SUPERINSTRUCTIONS"))
+      return null;
+
+    try {
+      return Image.read(in, globals);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
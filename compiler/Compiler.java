@@ -13,6 +13,8 @@ import parser.parselet.*;
 import scanner.Scanner;
 import scanner.Token;
 import scanner.TokenType;
+import vm.GlobalTable;
+import vm.LoxString;
 
 import static compiler.CompilerLocals.FunctionType.*;
 import static compiler.OpCode.*;
@@ -25,16 +27,22 @@ public class Compiler extends PropsObserver {
   private Parser parser;
   private CompilerLocals currentLocals;
   private CompilerClass currentClass;
+  private GlobalTable globals; //shared with the VM
+  private int lastCall; //offset of the last call emitted (see markCall())
+  private int lastString; //offset of the last string literal (see markString())
 
   //Cached properties
   private boolean debugMaster;
   private boolean debugPrintProgress;
   private boolean debugPrintCode;
+  private boolean superinstructions;
 
   //Compiler
-  public Compiler(Props properties, Debugger debugger) {
+  public Compiler(Props properties, Debugger debugger, GlobalTable globals) {
     super(properties, debugger);
 
+    this.globals = globals;
+
     scanner = new Scanner(properties, debugger);
     typeToRule = new HashMap<>();
 
@@ -56,6 +64,7 @@ public class Compiler extends PropsObserver {
   //compile(String)
   public Function compile(String source) {
     parser = new Parser();
+    lastString = -1;
 
     scanner.scan(source);
 
@@ -126,6 +135,51 @@ public class Compiler extends PropsObserver {
     currentChunk().writeCode(b, parser.previous().line());
   }
 
+  //markCall()
+  public void markCall() {
+    //the call about to be emitted may turn out to be in tail
+    //position (see tailCall())
+    lastCall = currentChunk().codesCount();
+  }
+
+  //markString()
+  public void markString() {
+    //the constant about to be emitted is a string literal
+    lastString = currentChunk().codesCount();
+  }
+
+  //endsWithString()
+  public boolean endsWithString() {
+    //whether the code just emitted is a lone string literal; a
+    //hint only, as a jump may land after it
+    Chunk chunk = currentChunk();
+
+    return lastString + 3 == chunk.codesCount() && chunk.codes()[lastString] == OP_CONSTANT;
+  }
+
+  //pureOperandAhead(int)
+  public boolean pureOperandAhead(int precedence) {
+    //Whether the operand about to be parsed at precedence is a
+    //single literal or local read, which can neither fail nor
+    //have a side effect, and so may be evaluated early.
+    //a following infix operator would make it part of the operand
+    if (getRule(scanner.peekNextToken().type()).precedence() >= precedence)
+      return false;
+
+    switch (parser.current().type()) {
+      case TOKEN_STRING:
+      case TOKEN_NUMBER:
+      case TOKEN_NIL:
+      case TOKEN_TRUE:
+      case TOKEN_FALSE:
+        return true;
+      case TOKEN_IDENTIFIER:
+        return isInitializedLocal(parser.current());
+      default:
+        return false;
+    }
+  }
+
   //emitWord(int)
   public void emitWord(int i) {
     emitWord((short)i);
@@ -232,8 +286,14 @@ public class Compiler extends PropsObserver {
     //Extract assembled function from temporary structure.
     Function function = currentLocals.function();
 
+    if (!parser.hadError() && superinstructions)
+      SuperinstructionPass.rewrite(function.chunk());
+
+    if (!parser.hadError())
+      function.setMaxSlots(function.chunk().maxDepth(function.arity()));
+
     if (!parser.hadError() && debugPrintCode)
-      debugger.disassembleChunk(function.chunk(), currentLocals, function.toString());
+      debugger.disassembleChunk(function.chunk(), currentLocals, globals, function.toString());
 
     //Step up to locals in higher scope.
     currentLocals = currentLocals.enclosing();
@@ -282,8 +342,7 @@ public class Compiler extends PropsObserver {
       getOp = OP_GET_UPVALUE;
       setOp = OP_SET_UPVALUE;
     } else { //global variable
-      //add token to constants and store index in arg
-      arg = identifierConstant(token);
+      arg = globalSlot(token);
 
       getOp = OP_GET_GLOBAL;
       setOp = OP_SET_GLOBAL;
@@ -331,7 +390,25 @@ public class Compiler extends PropsObserver {
   //identifierConstant(Token)
   public int identifierConstant(Token token) {
     //return index of newly added constant
-    return makeConstant(token.lexeme());
+    return makeConstant(LoxString.intern(token.lexeme()));
+  }
+
+  //selectorConstant(Token)
+  public int selectorConstant(Token token) {
+    return makeConstant(Selector.of(token.lexeme()));
+  }
+
+  //globalSlot(Token)
+  public int globalSlot(Token token) {
+    int slot = globals.slot(token.lexeme());
+
+    if (slot > 0xFFFF) {
+      error("Too many global variables.");
+
+      return 0;
+    }
+
+    return slot;
   }
 
   //identifiersEqual(Token, Token)
@@ -356,6 +433,19 @@ public class Compiler extends PropsObserver {
     return -1;
   }
 
+  //isInitializedLocal(Token)
+  private boolean isInitializedLocal(Token token) {
+    //as resolveLocal(), without reporting errors
+    for (int i = currentLocals.localsCount() - 1; i >= 0; i--) {
+      Local local = currentLocals.locals()[i];
+
+      if (identifiersEqual(token, local.token()))
+        return local.depth() != -1;
+    }
+
+    return false;
+  }
+
   //addUpvalue(CompilerLocals, byte, boolean)
   private int addUpvalue(CompilerLocals locals, byte index, boolean isLocal) {
     int maxClosureVariables = properties.getInt("MAX_SIGNED_BYTE");
@@ -447,7 +537,7 @@ public class Compiler extends PropsObserver {
     //returning a dummy table index.
     if (currentLocals.scopeDepth() > 0) return 0;
 
-    return identifierConstant(parser.previous());
+    return globalSlot(parser.previous());
   }
 
   //markInitialized()
@@ -560,7 +650,7 @@ public class Compiler extends PropsObserver {
   private void method() {
     consume(TOKEN_IDENTIFIER, "Expect method name.");
 
-    int constant = identifierConstant(parser.previous());
+    int constant = selectorConstant(parser.previous());
 
     CompilerLocals.FunctionType type = TYPE_METHOD;
 
@@ -586,7 +676,7 @@ public class Compiler extends PropsObserver {
     emitByte(OP_CLASS);
     emitWord(nameConstantIdx);
 
-    defineVariable(nameConstantIdx);
+    defineVariable(currentLocals.scopeDepth() > 0 ? 0 : globalSlot(classToken));
 
     currentClass = new CompilerClass(currentClass, false);
 
@@ -771,14 +861,36 @@ public class Compiler extends PropsObserver {
       if (currentLocals.type() == TYPE_INITIALIZER)
         error("Can't return a value from an initializer.");
 
+      lastCall = -1;
+
       expression();
 
       consume(TOKEN_SEMICOLON, "Expect ';' after return value.");
 
+      tailCall();
+
       emitByte(OP_RETURN);
     }
   }
 
+  //tailCall()
+  private void tailCall() {
+    //If the value about to be returned is the result of the call
+    //just emitted, turn the call into its tail form, which reuses
+    //the frame.  The OP_RETURN stays after it, for jumps landing
+    //there and for callees that finish at once, such as natives.
+    Chunk chunk = currentChunk();
+    byte[] codes = chunk.codes();
+
+    if (lastCall == -1 || lastCall + 1 + OpCode.operandWidth(codes[lastCall]) != chunk.codesCount())
+      return;
+
+    if (codes[lastCall] == OP_CALL)
+      codes[lastCall] = OP_TAIL_CALL;
+    else if (codes[lastCall] == OP_INVOKE)
+      codes[lastCall] = OP_TAIL_INVOKE;
+  }
+
   //whileStatement()
   private void whileStatement() {
     int loopStart = currentChunk().codesCount();
@@ -935,10 +1047,19 @@ public class Compiler extends PropsObserver {
     register(TOKEN_EOF,           null,                   null,                 PREC_NONE);
   }
 
+  //stopObserving()
+  @Override
+  public void stopObserving() {
+    super.stopObserving();
+
+    scanner.stopObserving();
+  }
+
   //updateCachedProperties()
   protected void updateCachedProperties() {
     debugMaster = properties.getBool("DEBUG_MASTER");
     debugPrintProgress = debugMaster && properties.getBool("DEBUG_PRINT_PROGRESS");
     debugPrintCode = debugMaster && properties.getBool("DEBUG_PRINT_CODE");
+    superinstructions = properties.getBool("SUPERINSTRUCTIONS");
   }
 }
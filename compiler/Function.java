@@ -1,10 +1,17 @@
 package compiler;
 
+import java.nio.ByteBuffer;
+
 public class Function implements HasArity {
   private String name;
   private int arity;
   private int upvalueCount;
+  private int maxSlots; //stack slots a frame of it can use (see Chunk.maxDepth())
   private Chunk chunk;
+  private ByteBuffer encoded; //chunk as read from an image, until decoded (see Image)
+  private int checksum; //of encoded, less nested functions' code (see Image)
+  private FunctionRuntime runtime; //the VM's state for it (see vm.FunctionState)
+  private Function template; //what this was copied from (see copy()), or null
 
   //Function(String)
   public Function(String name) {
@@ -41,11 +48,94 @@ public class Function implements HasArity {
     return ++upvalueCount;
   }
 
+  //setUpvalueCount(int)
+  void setUpvalueCount(int upvalueCount) {
+    this.upvalueCount = upvalueCount;
+  }
+
+  //maxSlots()
+  public int maxSlots() {
+    return maxSlots;
+  }
+
+  //setMaxSlots(int)
+  void setMaxSlots(int maxSlots) {
+    this.maxSlots = maxSlots;
+  }
+
   //chunk()
   public Chunk chunk() {
+    if (encoded != null)
+      decode();
+
     return chunk;
   }
 
+  //isDecoded()
+  public boolean isDecoded() {
+    return encoded == null;
+  }
+
+  //encodedLength()
+  int encodedLength() {
+    return encoded.limit();
+  }
+
+  //setEncoded(ByteBuffer, int)
+  void setEncoded(ByteBuffer encoded, int checksum) {
+    this.encoded = encoded;
+    this.checksum = checksum;
+  }
+
+  //decode()
+  private synchronized void decode() {
+    if (encoded == null)
+      return;
+
+    Image.readChunk(encoded, checksum, chunk);
+
+    encoded = null;
+
+    if (runtime != null)
+      runtime.decoded(this);
+  }
+
+  //runtime()
+  public FunctionRuntime runtime() {
+    return runtime;
+  }
+
+  //setRuntime(FunctionRuntime)
+  public void setRuntime(FunctionRuntime runtime) {
+    //The VM owns what goes in here; the function only keeps a
+    //slot for it.
+    this.runtime = runtime;
+  }
+
+  //template()
+  public Function template() {
+    //the function this is a copy of, or this one if it isn't a copy
+    return (template == null) ? this : template;
+  }
+
+  //copy()
+  public Function copy() {
+    //A copy of the function tree for a VM to run on its own: what
+    //running code learns (quickened instructions, inline caches,
+    //counts, compiled code) is written into it, so code shared
+    //between VMs running at once is never run itself.  What running
+    //code never writes is shared with this one (see Chunk.copy()).
+    Function copy = new Function(name);
+
+    copy.arity = arity;
+    copy.upvalueCount = upvalueCount;
+    copy.maxSlots = maxSlots;
+    copy.template = template();
+    copy.chunk = chunk().copy();
+
+    return copy;
+  }
+
   //toString()
   @Override
   public String toString() {
@@ -0,0 +1,10 @@
+package compiler;
+
+//What the VM keeps about a function as it runs it (see
+//Function.runtime()).  The compiler never looks inside; it only
+//says when the function's code is decoded from an image, since
+//until then there is no code to apply run state to.
+public interface FunctionRuntime {
+  //decoded(Function)
+  public void decoded(Function function);
+}
@@ -0,0 +1,303 @@
+package compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import vm.GlobalTable;
+import vm.LoxString;
+
+//A compiled script as bytes: its function tree (stack code, lines,
+//constants and nested functions, depth first) and the names of the
+//globals its code refers to by slot, so a VM can run it without
+//scanning or compiling the source again.
+//
+//Global slots are fixed when code is compiled, so reading an image
+//names its globals in the reading VM's table in the same order;
+//that table must hold nothing but what the writing VM's did before
+//the script was compiled (its natives), which read() checks.
+//
+//Each function's code and constants follow its header with their
+//length first, so a reader can skip them: read() decodes only the
+//headers of nested functions, and a function's code is decoded the
+//first time it's asked for (see Function.chunk()).  A function
+//that never runs is never decoded.  Its code has a checksum, checked
+//as it is decoded, that leaves out the code of functions nested in
+//it, so decoding a function reads none of theirs.
+public class Image {
+  private static final int MAGIC = 0x4C4F5849; //"LOXI"
+  private static final int VERSION = 3;
+
+  //Constant tags
+  private static final int CONSTANT_NUMBER   = 0;
+  private static final int CONSTANT_STRING   = 1;
+  private static final int CONSTANT_SELECTOR = 2;
+  private static final int CONSTANT_FUNCTION = 3;
+
+  //write(Function, GlobalTable, DataOutputStream)
+  public static void write(Function script, GlobalTable globals, DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    out.writeInt(globals.count());
+
+    for (int slot = 0; slot < globals.count(); slot++)
+      writeString(globals.name(slot), out);
+
+    writeFunction(script, out);
+  }
+
+  //read(DataInputStream, GlobalTable)
+  public static Function read(DataInputStream in, GlobalTable globals) throws IOException {
+    return read(ByteBuffer.wrap(in.readAllBytes()), globals);
+  }
+
+  //read(ByteBuffer, GlobalTable)
+  public static Function read(ByteBuffer in, GlobalTable globals) throws IOException {
+    //Reads from in's position on.  The functions returned keep
+    //(slices of) in until their code is decoded, so in may be a
+    //file mapped into memory.
+    try {
+      if (in.getInt() != MAGIC)
+        throw new IOException("Not a jblox image.");
+
+      if (in.getInt() != VERSION)
+        throw new IOException("Unsupported jblox image version.");
+
+      int count = in.getInt();
+
+      for (int slot = 0; slot < count; slot++)
+        if (globals.slot(readString(in)) != slot)
+          throw new IOException("Image globals don't match the VM's.");
+
+      return readFunction(in);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated jblox image.");
+    }
+  }
+
+  //hash(String)
+  public static byte[] hash(String source) {
+    //identifies the source a compiled form came from
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); //every JVM has SHA-256
+    }
+  }
+
+  //functions(Function)
+  public static List<Function> functions(Function script) {
+    //every function in the tree, in the order an image holds them
+    List<Function> functions = new ArrayList<>();
+
+    addFunctions(script, functions);
+
+    return functions;
+  }
+
+  //addFunctions(Function, List<Function>)
+  private static void addFunctions(Function function, List<Function> functions) {
+    Chunk chunk = function.chunk();
+
+    functions.add(function);
+
+    for (int index = 0; index < chunk.constantsCount(); index++)
+      if (chunk.constants()[index] instanceof Function)
+        addFunctions((Function)chunk.constants()[index], functions);
+  }
+
+  //writeFunction(Function, DataOutputStream)
+  private static int writeFunction(Function function, DataOutputStream out) throws IOException {
+    //returns the length of the function's code, written last
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    List<int[]> nested = new ArrayList<>();
+
+    out.writeBoolean(function.name() != null);
+
+    if (function.name() != null)
+      writeString(function.name(), out);
+
+    out.writeInt(function.arity());
+    out.writeInt(function.upvalueCount());
+    out.writeInt(function.maxSlots());
+
+    writeChunk(function.chunk(), new DataOutputStream(body), nested);
+
+    out.writeInt(body.size());
+    out.writeInt(checksum(ByteBuffer.wrap(body.toByteArray()), nested));
+    body.writeTo(out);
+
+    return body.size();
+  }
+
+  //writeChunk(Chunk, DataOutputStream, List<int[]>)
+  private static void writeChunk(Chunk chunk, DataOutputStream out, List<int[]> nested) throws IOException {
+    //Upvalue descriptors are operands of OP_CLOSURE, so part of the
+    //code.  Where the code of each nested function lies is added to
+    //nested.
+    out.writeInt(chunk.codesCount());
+    out.write(chunk.codes(), 0, chunk.codesCount());
+
+    for (int offset = 0; offset < chunk.codesCount(); offset++)
+      out.writeInt(chunk.lines()[offset]);
+
+    out.writeInt(chunk.constantsCount());
+
+    for (int index = 0; index < chunk.constantsCount(); index++) {
+      Object constant = chunk.constants()[index];
+
+      if (constant instanceof Double) {
+        out.writeByte(CONSTANT_NUMBER);
+        out.writeDouble((Double)constant);
+      } else if (constant instanceof LoxString) {
+        out.writeByte(CONSTANT_STRING);
+        writeString(((LoxString)constant).chars(), out);
+      } else if (constant instanceof Selector) {
+        out.writeByte(CONSTANT_SELECTOR);
+        writeString(((Selector)constant).name(), out);
+      } else if (constant instanceof Function) {
+        out.writeByte(CONSTANT_FUNCTION);
+
+        int length = writeFunction((Function)constant, out);
+
+        nested.add(new int[] { out.size() - length, out.size() });
+      } else
+        throw new IOException("Can't write constant " + constant + ".");
+    }
+  }
+
+  //readFunction(ByteBuffer)
+  private static Function readFunction(ByteBuffer in) {
+    //the header; the rest is left encoded, and skipped
+    Function function = new Function(in.get() != 0 ? readString(in) : null);
+
+    function.setArity(in.getInt());
+    function.setUpvalueCount(in.getInt());
+    function.setMaxSlots(in.getInt());
+
+    int length = in.getInt();
+    int checksum = in.getInt();
+
+    if (length < 0 || length > in.remaining())
+      throw new BufferUnderflowException();
+
+    function.setEncoded(in.slice(in.position(), length), checksum);
+
+    in.position(in.position() + length);
+
+    return function;
+  }
+
+  //readChunk(ByteBuffer, int, Chunk)
+  static void readChunk(ByteBuffer in, int checksum, Chunk chunk) {
+    //Decodes what writeChunk() wrote (see Function.chunk()), and
+    //fills in chunk only once the code has matched its checksum.
+    List<Integer> tags = new ArrayList<>();
+    List<Object> constants = new ArrayList<>(); //strings for names
+    List<int[]> nested = new ArrayList<>();
+    byte[] codes;
+    int[] lines;
+
+    try {
+      int count = in.getInt();
+
+      if (count < 0 || count > in.remaining())
+        throw new BufferUnderflowException();
+
+      codes = new byte[count];
+      lines = new int[count];
+
+      in.get(codes);
+
+      for (int offset = 0; offset < count; offset++)
+        lines[offset] = in.getInt();
+
+      int constantsCount = in.getInt();
+
+      for (int index = 0; index < constantsCount; index++) {
+        int tag = in.get();
+
+        if (tag == CONSTANT_NUMBER)
+          constants.add(in.getDouble());
+        else if (tag == CONSTANT_STRING || tag == CONSTANT_SELECTOR)
+          constants.add(readString(in));
+        else if (tag == CONSTANT_FUNCTION) {
+          Function function = readFunction(in);
+
+          constants.add(function);
+          nested.add(new int[] { in.position() - function.encodedLength(), in.position() });
+        } else
+          throw new IllegalStateException("Bad constant tag " + tag + ".");
+
+        tags.add(tag);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IllegalStateException("Damaged jblox image.");
+    }
+
+    if (checksum(in.slice(0, in.position()), nested) != checksum)
+      throw new IllegalStateException("Damaged jblox image.");
+
+    chunk.replaceCode(codes, lines, codes.length);
+
+    //names are interned only once they are known to be right
+    for (int index = 0; index < constants.size(); index++)
+      if (tags.get(index) == CONSTANT_STRING)
+        chunk.writeConstant(LoxString.intern((String)constants.get(index)));
+      else if (tags.get(index) == CONSTANT_SELECTOR)
+        chunk.writeConstant(Selector.of((String)constants.get(index)));
+      else
+        chunk.writeConstant(constants.get(index));
+  }
+
+  //checksum(ByteBuffer, List<int[]>)
+  private static int checksum(ByteBuffer code, List<int[]> nested) {
+    //of a function's code but for the code of functions nested in
+    //it (the ranges in nested), which have their own
+    CRC32 checksum = new CRC32();
+    int from = 0;
+
+    for (int[] range : nested) {
+      checksum.update(code.slice(from, range[0] - from));
+
+      from = range[1];
+    }
+
+    checksum.update(code.slice(from, code.limit() - from));
+
+    return (int)checksum.getValue();
+  }
+
+  //writeString(String, DataOutputStream)
+  private static void writeString(String s, DataOutputStream out) throws IOException {
+    //writeUTF() stops at 64K, and a string literal needn't
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  //readString(ByteBuffer)
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+
+    if (length < 0 || length > in.remaining())
+      throw new BufferUnderflowException();
+
+    byte[] bytes = new byte[length];
+
+    in.get(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
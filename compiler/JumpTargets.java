@@ -0,0 +1,119 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static compiler.OpCode.*;
+
+//The jump targets of a chunk, and the stack depth at each, for a
+//backend that translates the stack code in one pass from start to
+//end (the JIT's, the tree compiler, the register emitter).  Each
+//target has a label of the backend's own kind, L.  A target's depth
+//is the one the first jump to it left; code after an unconditional
+//jump is unreachable until some target, where it resumes at that
+//target's depth (see resumeDepth(int)).
+public class JumpTargets<L> {
+  private final Chunk chunk;
+  private final boolean[] isTarget;
+  private final boolean[] isLoopTarget;
+  private final int[] targetDepths;
+  private final Object[] labels; //stack code offset -> L
+  private int resumeDepth; //depth where the last unconditional jump left
+
+  //JumpTargets(Chunk, Supplier<L>)
+  public JumpTargets(Chunk chunk, Supplier<L> newLabel) {
+    //newLabel, if not null, makes each target's label up front
+    byte[] codes = chunk.codes();
+    int count = chunk.codesCount();
+
+    this.chunk = chunk;
+
+    isTarget = new boolean[count + 1];
+    isLoopTarget = new boolean[count + 1];
+    targetDepths = new int[count + 1];
+    labels = new Object[count + 1];
+
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset))
+      if (isJump(codes[offset])) {
+        int target = target(offset + 1, offset + chunk.instructionWidth(offset), codes[offset]);
+
+        isTarget[target] = true;
+        isLoopTarget[target] |= (codes[offset] == OP_LOOP);
+
+        if (newLabel != null)
+          labels[target] = newLabel.get();
+      }
+
+    Arrays.fill(targetDepths, -1);
+  }
+
+  //isTarget(int)
+  public boolean isTarget(int offset) {
+    return isTarget[offset];
+  }
+
+  //isJumpedTo(int)
+  public boolean isJumpedTo(int offset) {
+    //whether a jump translated so far lands here
+    return targetDepths[offset] != -1;
+  }
+
+  //label(int)
+  @SuppressWarnings("unchecked")
+  public L label(int offset) {
+    return (L) labels[offset];
+  }
+
+  //setLabel(int, L)
+  public void setLabel(int offset, L label) {
+    labels[offset] = label;
+  }
+
+  //jump(int, int)
+  public void jump(int target, int depth) {
+    //a jump to target leaving depth slots
+    if (targetDepths[target] == -1)
+      targetDepths[target] = depth;
+  }
+
+  //leave(int)
+  public void leave(int depth) {
+    //an unconditional jump leaving depth slots
+    resumeDepth = depth;
+  }
+
+  //resumeDepth(int)
+  public int resumeDepth(int offset) {
+    //The depth unreachable code becomes reachable at, at the
+    //target at offset, or -1 if it stays unreachable.
+    int targetDepth = targetDepths[offset];
+
+    //A for loop's increment clause sits between the jump over it
+    //and the body, and is only ever entered by the body's loop
+    //back; it starts at the depth of that jump.
+    if (targetDepth == -1 && isLoopTarget[offset])
+      targetDepth = resumeDepth;
+
+    //otherwise only reachable if some earlier jump lands here
+    return targetDepth;
+  }
+
+  //target(int, int, byte)
+  public int target(int at, int end, byte opCode) {
+    //distances count from the end of the (possibly fused)
+    //instruction, as in the stack VM
+    int distance = ((chunk.codes()[at] & 0xFF) << 8) | (chunk.codes()[at + 1] & 0xFF);
+
+    if (opCode == OP_LOOP)
+      return end - distance;
+
+    return end + distance;
+  }
+
+  //isJump(byte)
+  public static boolean isJump(byte opCode) {
+    return
+      opCode == OP_JUMP || opCode == OP_JUMP_IF_FALSE ||
+      opCode == OP_LOOP || opCode == OP_JUMP_IF_FALSE_POP;
+  }
+}
@@ -39,6 +39,179 @@ public final class OpCode {
   public static final byte OP_INHERIT       = 0x23;
   public static final byte OP_METHOD        = 0x24;
 
+  //Quickened forms, only ever written by the VM over the
+  //generic instruction of the same width.
+  public static final byte OP_ADD_NUM              = 0x25;
+  public static final byte OP_ADD_STR              = 0x26;
+  public static final byte OP_SUBTRACT_NUM         = 0x27;
+  public static final byte OP_MULTIPLY_NUM         = 0x28;
+  public static final byte OP_DIVIDE_NUM           = 0x29;
+  public static final byte OP_GREATER_NUM          = 0x2A;
+  public static final byte OP_LESS_NUM             = 0x2B;
+  public static final byte OP_GET_PROPERTY_CACHED  = 0x2C;
+
+  //Superinstructions, only ever written by SuperinstructionPass.
+  public static final byte OP_GET_LOCAL_GET_LOCAL_ADD     = 0x2D;
+  public static final byte OP_GET_LOCAL_CONSTANT_ADD      = 0x2E;
+  public static final byte OP_GET_LOCAL_CONSTANT_SUBTRACT = 0x2F;
+  public static final byte OP_GET_LOCAL_CONSTANT_LESS     = 0x30;
+  public static final byte OP_GET_LOCAL_CONSTANT          = 0x31;
+  public static final byte OP_JUMP_IF_FALSE_POP           = 0x32;
+  public static final byte OP_SET_LOCAL_POP               = 0x33;
+
+  //Inline-cached forms (VM-quickened).
+  public static final byte OP_GET_GLOBAL_CACHED           = 0x34;
+  public static final byte OP_SET_PROPERTY_CACHED         = 0x35;
+  public static final byte OP_INVOKE_CACHED               = 0x36;
+  public static final byte OP_SUPER_INVOKE_CACHED         = 0x37;
+  public static final byte OP_CALL_CLOSURE                = 0x38;
+  public static final byte OP_CALL_NATIVE                 = 0x39;
+  public static final byte OP_CALL_CLASS                  = 0x3A;
+
+  //Emitted by the compiler for a chain of two or more '+'.
+  public static final byte OP_CONCAT_N                    = 0x3B;
+
+  //Emitted by the compiler for a call whose result is returned at
+  //once (see Compiler.returnStatement()).
+  public static final byte OP_TAIL_CALL                   = 0x3C;
+  public static final byte OP_TAIL_INVOKE                 = 0x3D;
+
   //OpCode()
   private OpCode() {}
+
+  //operandWidth(byte)
+  public static int operandWidth(byte opCode) {
+    //OP_CLOSURE is followed by two bytes per upvalue as well;
+    //see Chunk.instructionWidth().
+    switch (opCode) {
+      case OP_CALL:
+      case OP_TAIL_CALL:
+      case OP_CONCAT_N:
+      case OP_CALL_CLOSURE:
+      case OP_CALL_NATIVE:
+      case OP_CALL_CLASS:
+        return 1;
+      case OP_CONSTANT:
+      case OP_GET_LOCAL:
+      case OP_SET_LOCAL:
+      case OP_GET_GLOBAL:
+      case OP_DEFINE_GLOBAL:
+      case OP_SET_GLOBAL:
+      case OP_GET_UPVALUE:
+      case OP_SET_UPVALUE:
+      case OP_GET_PROPERTY:
+      case OP_GET_PROPERTY_CACHED:
+      case OP_GET_GLOBAL_CACHED:
+      case OP_SET_PROPERTY:
+      case OP_SET_PROPERTY_CACHED:
+      case OP_GET_SUPER:
+      case OP_JUMP:
+      case OP_JUMP_IF_FALSE:
+      case OP_LOOP:
+      case OP_CLOSURE:
+      case OP_CLASS:
+      case OP_METHOD:
+      case OP_JUMP_IF_FALSE_POP:
+      case OP_SET_LOCAL_POP:
+        return 2;
+      case OP_INVOKE:
+      case OP_INVOKE_CACHED:
+      case OP_TAIL_INVOKE:
+      case OP_SUPER_INVOKE:
+      case OP_SUPER_INVOKE_CACHED:
+        return 3;
+      case OP_GET_LOCAL_GET_LOCAL_ADD:
+      case OP_GET_LOCAL_CONSTANT_ADD:
+      case OP_GET_LOCAL_CONSTANT_SUBTRACT:
+      case OP_GET_LOCAL_CONSTANT_LESS:
+      case OP_GET_LOCAL_CONSTANT:
+        return 4;
+      default:
+        return 0;
+    }
+  }
+
+  //stackEffect(byte, byte[], int)
+  public static int stackEffect(byte opCode, byte[] codes, int at) {
+    //How many slots a generic instruction, its operands from at,
+    //leaves the stack deeper (or, negative, shallower) by.
+    switch (opCode) {
+      case OP_CONSTANT:
+      case OP_NIL:
+      case OP_TRUE:
+      case OP_FALSE:
+      case OP_GET_LOCAL:
+      case OP_GET_GLOBAL:
+      case OP_GET_UPVALUE:
+      case OP_CLOSURE:
+      case OP_CLASS:
+        return 1;
+      case OP_POP:
+      case OP_DEFINE_GLOBAL:
+      case OP_SET_PROPERTY:
+      case OP_GET_SUPER:
+      case OP_EQUAL:
+      case OP_GREATER:
+      case OP_LESS:
+      case OP_ADD:
+      case OP_SUBTRACT:
+      case OP_MULTIPLY:
+      case OP_DIVIDE:
+      case OP_PRINT:
+      case OP_CLOSE_UPVALUE:
+      case OP_RETURN:
+      case OP_INHERIT:
+      case OP_METHOD:
+        return -1;
+      case OP_CALL:
+      case OP_TAIL_CALL:
+        return -(codes[at] & 0xFF);
+      case OP_INVOKE:
+      case OP_TAIL_INVOKE:
+        return -(codes[at + 2] & 0xFF);
+      case OP_SUPER_INVOKE:
+        return -(codes[at + 2] & 0xFF) - 1;
+      case OP_CONCAT_N:
+        return 1 - (codes[at] & 0xFF);
+      default:
+        return 0;
+    }
+  }
+
+  //generic(byte)
+  public static byte generic(byte opCode) {
+    //Map a quickened opcode back to the generic instruction
+    //the compiler emitted.
+    switch (opCode) {
+      case OP_ADD_NUM:
+      case OP_ADD_STR:
+        return OP_ADD;
+      case OP_SUBTRACT_NUM:
+        return OP_SUBTRACT;
+      case OP_MULTIPLY_NUM:
+        return OP_MULTIPLY;
+      case OP_DIVIDE_NUM:
+        return OP_DIVIDE;
+      case OP_GREATER_NUM:
+        return OP_GREATER;
+      case OP_LESS_NUM:
+        return OP_LESS;
+      case OP_GET_PROPERTY_CACHED:
+        return OP_GET_PROPERTY;
+      case OP_GET_GLOBAL_CACHED:
+        return OP_GET_GLOBAL;
+      case OP_SET_PROPERTY_CACHED:
+        return OP_SET_PROPERTY;
+      case OP_INVOKE_CACHED:
+        return OP_INVOKE;
+      case OP_CALL_CLOSURE:
+      case OP_CALL_NATIVE:
+      case OP_CALL_CLASS:
+        return OP_CALL;
+      case OP_SUPER_INVOKE_CACHED:
+        return OP_SUPER_INVOKE;
+      default:
+        return opCode;
+    }
+  }
 }
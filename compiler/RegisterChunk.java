@@ -0,0 +1,75 @@
+package compiler;
+
+public class RegisterChunk {
+  private Chunk chunk; //source of constants
+  private long[] codes;
+  private int[] lines;
+  private int codesCount;
+  private int maxRegisters;
+
+  //RegisterChunk(Chunk)
+  RegisterChunk(Chunk chunk) {
+    this.chunk = chunk;
+
+    codes = new long[8];
+    lines = new int[8];
+    codesCount = 0;
+    maxRegisters = 0;
+  }
+
+  //codes()
+  public long[] codes() {
+    return codes;
+  }
+
+  //codesCount()
+  public int codesCount() {
+    return codesCount;
+  }
+
+  //lines()
+  public int[] lines() {
+    return lines;
+  }
+
+  //constants()
+  public Object[] constants() {
+    return chunk.constants();
+  }
+
+  //maxRegisters()
+  public int maxRegisters() {
+    return maxRegisters;
+  }
+
+  //setMaxRegisters(int)
+  void setMaxRegisters(int maxRegisters) {
+    this.maxRegisters = maxRegisters;
+  }
+
+  //writeCode(long, int)
+  int writeCode(long code, int line) {
+    if (codesCount == codes.length) {
+      long[] newCodes = new long[codes.length * 2];
+      int[] newLines = new int[codes.length * 2];
+
+      //copy elements into new, larger array
+      System.arraycopy(codes, 0, newCodes, 0, codesCount);
+      System.arraycopy(lines, 0, newLines, 0, codesCount);
+
+      codes = newCodes;
+      lines = newLines;
+    }
+
+    codes[codesCount] = code;
+    lines[codesCount] = line;
+
+    //return index of newly written code
+    return codesCount++;
+  }
+
+  //setCode(int, long)
+  void setCode(int index, long code) {
+    codes[index] = code;
+  }
+}
@@ -0,0 +1,493 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static compiler.OpCode.*;
+import static compiler.RegisterOpCode.*;
+
+//Translates a function's finished stack code into register code.
+//The operand stack is interpreted abstractly: stack slot n is
+//register n, but a pushed local or constant is only remembered
+//(not copied) until something needs it in its own register, so
+//'a = b + c' comes out as a single R_ADD a, b, c.
+public class RegisterEmitter {
+  //What an abstract stack entry holds.
+  private static final int IN_SLOT = 0;     //its own register
+  private static final int IN_REGISTER = 1; //a copy of another register
+  private static final int IN_CONSTANT = 2; //a constant not yet loaded
+
+  private Chunk chunk;
+  private RegisterChunk out;
+  private int[] kinds;
+  private int[] operands;
+  private int depth;
+  private int maxDepth;
+  private int line;
+  private int lastWrite; //last emitted instruction that only writes R[A]
+  private boolean unreachable;
+  private JumpTargets<Integer> targets; //labelled with their register code index
+  private List<int[]> fixups; //{ register code index, stack code offset }
+
+  //RegisterEmitter(Chunk)
+  private RegisterEmitter(Chunk chunk) {
+    this.chunk = chunk;
+
+    out = new RegisterChunk(chunk);
+    kinds = new int[8];
+    operands = new int[8];
+    lastWrite = -1;
+    fixups = new ArrayList<>();
+  }
+
+  //emit(Chunk, int)
+  public static RegisterChunk emit(Chunk chunk, int arity) {
+    RegisterEmitter emitter = new RegisterEmitter(chunk);
+
+    emitter.translate(arity);
+
+    return emitter.out;
+  }
+
+  //translate(int)
+  private void translate(int arity) {
+    byte[] codes = chunk.codes();
+    int count = chunk.codesCount();
+
+    targets = new JumpTargets<>(chunk, null);
+
+    //callee (or receiver) plus arguments
+    for (int i = 0; i <= arity; i++)
+      push(IN_SLOT, i);
+
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset)) {
+      if (targets.isTarget(offset))
+        label(offset);
+
+      if (unreachable)
+        continue;
+
+      byte opCode = OpCode.generic(codes[offset]);
+      byte[] components = SuperinstructionPass.components(opCode);
+      int end = offset + chunk.instructionWidth(offset);
+
+      line = chunk.lines()[offset];
+
+      if (components == null)
+        instruction(opCode, offset + 1, end);
+      else
+        for (int at = offset + 1, i = 0; i < components.length; i++) {
+          instruction(components[i], at, end);
+
+          at += OpCode.operandWidth(components[i]);
+        }
+    }
+
+    for (int[] fixup : fixups)
+      out.setCode(fixup[0], withB(out.codes()[fixup[0]], targets.label(fixup[1])));
+
+    out.setMaxRegisters(maxDepth);
+  }
+
+  //label(int)
+  private void label(int offset) {
+    if (unreachable) {
+      int targetDepth = targets.resumeDepth(offset);
+
+      if (targetDepth == -1)
+        return;
+
+      depth = 0;
+
+      for (int i = 0; i < targetDepth; i++)
+        push(IN_SLOT, i);
+
+      unreachable = false;
+    } else
+      materializeAll();
+
+    targets.setLabel(offset, out.codesCount());
+    lastWrite = -1;
+  }
+
+  //instruction(byte, int, int)
+  private void instruction(byte opCode, int at, int end) {
+    int top = depth - 1;
+
+    switch (opCode) {
+      case OP_CONSTANT:
+        push(IN_CONSTANT, word(at));
+
+        break;
+      case OP_NIL:
+        pushResult(R_LOADNIL, 0, 0);
+
+        break;
+      case OP_TRUE:
+        pushResult(R_LOADTRUE, 0, 0);
+
+        break;
+      case OP_FALSE:
+        pushResult(R_LOADFALSE, 0, 0);
+
+        break;
+      case OP_POP:
+        depth--;
+
+        break;
+      case OP_GET_LOCAL:
+        int glSlot = word(at);
+
+        //a local is only ever deferred until first use
+        materialize(glSlot);
+
+        push(IN_REGISTER, glSlot);
+
+        break;
+      case OP_SET_LOCAL:
+        setLocal(word(at));
+
+        break;
+      case OP_GET_GLOBAL:
+        pushResult(R_GETGLOBAL, word(at), 0);
+
+        break;
+      case OP_DEFINE_GLOBAL:
+        emit(R_DEFGLOBAL, 0, rk(top), word(at));
+
+        depth--;
+
+        break;
+      case OP_SET_GLOBAL:
+        emit(R_SETGLOBAL, 0, rk(top), word(at));
+
+        break;
+      case OP_GET_UPVALUE:
+        pushResult(R_GETUPVAL, word(at), 0);
+
+        break;
+      case OP_SET_UPVALUE:
+        emit(R_SETUPVAL, 0, rk(top), word(at));
+
+        break;
+      case OP_GET_PROPERTY:
+        write(emit(R_GETPROP, top, register(top), word(at)), top);
+
+        break;
+      case OP_SET_PROPERTY:
+        emit(R_SETPROP, register(top - 1), rk(top), word(at));
+
+        //the assigned value replaces the instance
+        if (kinds[top] == IN_SLOT)
+          write(emit(R_MOVE, top - 1, top, 0), top - 1);
+        else {
+          kinds[top - 1] = kinds[top];
+          operands[top - 1] = operands[top];
+        }
+
+        depth--;
+
+        break;
+      case OP_GET_SUPER:
+        materialize(top - 1);
+        materialize(top);
+
+        emit(R_GETSUPER, top - 1, word(at), 0);
+
+        depth--;
+        kinds[top - 1] = IN_SLOT;
+
+        break;
+      case OP_EQUAL:
+        binary(R_EQ);
+
+        break;
+      case OP_GREATER:
+        binary(R_GT);
+
+        break;
+      case OP_LESS:
+        binary(R_LT);
+
+        break;
+      case OP_ADD:
+        binary(R_ADD);
+
+        break;
+      case OP_CONCAT_N:
+        concat(chunk.codes()[at] & 0xFF);
+
+        break;
+      case OP_SUBTRACT:
+        binary(R_SUB);
+
+        break;
+      case OP_MULTIPLY:
+        binary(R_MUL);
+
+        break;
+      case OP_DIVIDE:
+        binary(R_DIV);
+
+        break;
+      case OP_NOT:
+        write(emit(R_NOT, top, rk(top), 0), top);
+
+        break;
+      case OP_NEGATE:
+        write(emit(R_NEG, top, rk(top), 0), top);
+
+        break;
+      case OP_JUMP:
+        jump(R_JMP, 0, targets.target(at, end, opCode));
+
+        targets.leave(depth);
+        unreachable = true;
+
+        break;
+      case OP_JUMP_IF_FALSE:
+        materializeAll();
+
+        jump(R_JMPF, top, targets.target(at, end, opCode));
+
+        break;
+      case OP_LOOP:
+        materializeAll();
+
+        emit(R_JMP, 0, targets.label(targets.target(at, end, opCode)), 0);
+
+        targets.leave(depth);
+        unreachable = true;
+
+        break;
+      case OP_CALL:
+      case OP_TAIL_CALL:
+        int callArgCount = chunk.codes()[at] & 0xFF;
+
+        call(
+          (opCode == OP_CALL) ? R_CALL : R_TAILCALL, depth - callArgCount - 1, callArgCount, 0
+        );
+
+        break;
+      case OP_INVOKE:
+      case OP_TAIL_INVOKE:
+        int invArgCount = chunk.codes()[at + 2] & 0xFF;
+
+        call(
+          (opCode == OP_INVOKE) ? R_INVOKE : R_TAILINVOKE,
+          depth - invArgCount - 1, invArgCount, word(at)
+        );
+
+        break;
+      case OP_SUPER_INVOKE:
+        int siArgCount = chunk.codes()[at + 2] & 0xFF;
+
+        //the superclass above the arguments is dropped as well
+        call(R_SUPERINVOKE, depth - siArgCount - 2, siArgCount, word(at));
+
+        break;
+      case OP_CLOSURE:
+        closure(word(at), at + 2);
+
+        break;
+      case OP_CLOSE_UPVALUE:
+        materialize(top);
+
+        emit(R_CLOSE, top, 0, 0);
+
+        depth--;
+
+        break;
+      case OP_RETURN:
+        emit(R_RETURN, 0, rk(top), 0);
+
+        unreachable = true;
+
+        break;
+      case OP_CLASS:
+        pushResult(R_CLASS, word(at), 0);
+
+        break;
+      case OP_INHERIT:
+        emit(R_INHERIT, register(top), register(top - 1), 0);
+
+        depth--;
+
+        break;
+      case OP_METHOD:
+        emit(R_METHOD, register(top - 1), register(top), word(at));
+
+        depth--;
+
+        break;
+      default:
+        throw new IllegalStateException("No register form for opcode " + opCode + ".");
+    }
+  }
+
+  //setLocal(int)
+  private void setLocal(int slot) {
+    int top = depth - 1;
+
+    if (kinds[top] == IN_REGISTER && operands[top] == slot) {
+      kinds[slot] = IN_SLOT;
+
+      return; //a = a
+    }
+
+    //anything still reading the old value must take a copy
+    for (int i = 0; i < depth; i++)
+      if (i != slot && i != top && kinds[i] == IN_REGISTER && operands[i] == slot)
+        materialize(i);
+
+    if (
+      kinds[top] == IN_SLOT && lastWrite != -1 &&
+      a(out.codes()[lastWrite]) == top && slot < top
+    ) {
+      //compute straight into the local
+      out.setCode(lastWrite, withA(out.codes()[lastWrite], slot));
+
+      kinds[top] = IN_REGISTER;
+      operands[top] = slot;
+    } else if (kinds[top] == IN_CONSTANT)
+      emit(R_LOADK, slot, operands[top], 0);
+    else
+      emit(R_MOVE, slot, register(top), 0);
+
+    kinds[slot] = IN_SLOT;
+    lastWrite = -1;
+  }
+
+  //binary(int)
+  private void binary(int op) {
+    int top = depth - 1;
+
+    write(emit(op, top - 1, rk(top - 1), rk(top)), top - 1);
+
+    depth--;
+  }
+
+  //concat(int)
+  private void concat(int count) {
+    //added pairwise from the left, as the OP_ADD chain would be
+    int first = depth - count;
+
+    write(emit(R_ADD, first, rk(first), rk(first + 1)), first);
+
+    for (int i = 2; i < count; i++)
+      write(emit(R_ADD, first, first, rk(first + i)), first);
+
+    depth = first + 1;
+  }
+
+  //call(int, int, int, int)
+  private void call(int op, int a, int argCount, int c) {
+    //calls see the operand stack exactly as the stack VM would
+    materializeAll();
+
+    emit(op, a, argCount, c);
+
+    depth = a + 1;
+    kinds[a] = IN_SLOT;
+    lastWrite = -1;
+  }
+
+  //closure(int, int)
+  private void closure(int index, int at) {
+    Function function = (Function)chunk.constants()[index];
+
+    //captured locals must live in their own registers first
+    for (int i = 0; i < function.upvalueCount(); i++)
+      if (chunk.codes()[at + 2 * i] != 0)
+        materialize(chunk.codes()[at + 2 * i + 1] & 0xFF);
+
+    emit(R_CLOSURE, depth, index, function.upvalueCount());
+
+    for (int i = 0; i < function.upvalueCount(); i++)
+      emit(R_UPVALUE, chunk.codes()[at + 2 * i], chunk.codes()[at + 2 * i + 1] & 0xFF, 0);
+
+    push(IN_SLOT, depth);
+
+    lastWrite = -1;
+  }
+
+  //jump(int, int, int)
+  private void jump(int op, int a, int target) {
+    materializeAll();
+
+    fixups.add(new int[] { emit(op, a, 0, 0), target });
+
+    targets.jump(target, depth);
+  }
+
+  //pushResult(int, int, int)
+  private void pushResult(int op, int b, int c) {
+    push(IN_SLOT, depth);
+
+    write(emit(op, depth - 1, b, c), depth - 1);
+  }
+
+  //write(int, int)
+  private void write(int index, int slot) {
+    kinds[slot] = IN_SLOT;
+    lastWrite = index;
+  }
+
+  //push(int, int)
+  private void push(int kind, int operand) {
+    if (depth == kinds.length) {
+      kinds = Arrays.copyOf(kinds, depth * 2);
+      operands = Arrays.copyOf(operands, depth * 2);
+    }
+
+    kinds[depth] = kind;
+    operands[depth++] = operand;
+
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  //materialize(int)
+  private void materialize(int slot) {
+    if (kinds[slot] == IN_CONSTANT)
+      write(emit(R_LOADK, slot, operands[slot], 0), slot);
+    else if (kinds[slot] == IN_REGISTER && operands[slot] != slot)
+      write(emit(R_MOVE, slot, operands[slot], 0), slot);
+
+    kinds[slot] = IN_SLOT;
+  }
+
+  //materializeAll()
+  private void materializeAll() {
+    for (int i = 0; i < depth; i++)
+      materialize(i);
+  }
+
+  //register(int)
+  private int register(int slot) {
+    if (kinds[slot] == IN_CONSTANT)
+      materialize(slot);
+
+    return kinds[slot] == IN_REGISTER ? operands[slot] : slot;
+  }
+
+  //rk(int)
+  private int rk(int slot) {
+    if (kinds[slot] == IN_CONSTANT && operands[slot] < RK_CONSTANT)
+      return constant(operands[slot]);
+
+    return register(slot);
+  }
+
+  //emit(int, int, int, int)
+  private int emit(int op, int a, int b, int c) {
+    lastWrite = -1;
+
+    return out.writeCode(encode(op, a, b, c), line);
+  }
+
+  //word(int)
+  private int word(int at) {
+    return ((chunk.codes()[at] & 0xFF) << 8) | (chunk.codes()[at + 1] & 0xFF);
+  }
+}
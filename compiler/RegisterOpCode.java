@@ -0,0 +1,121 @@
+package compiler;
+
+//Register-machine instruction set.  Each instruction is one long:
+//
+//  bits  0-7   opcode
+//  bits  8-23  A, usually the destination register
+//  bits 24-43  B
+//  bits 44-63  C
+//
+//Registers are frame slots counted from the frame base.  B and C
+//are "RK" operands where noted: a register, or a constant index
+//when RK_CONSTANT is set.  Jump targets are absolute instruction
+//indexes held in B.
+public final class RegisterOpCode {
+  public static final int RK_CONSTANT = 0x80000;
+
+  public static final int R_MOVE         = 0x00; //R[A] = R[B]
+  public static final int R_LOADK        = 0x01; //R[A] = K[B]
+  public static final int R_LOADNIL      = 0x02; //R[A] = nil
+  public static final int R_LOADTRUE     = 0x03; //R[A] = true
+  public static final int R_LOADFALSE    = 0x04; //R[A] = false
+  public static final int R_GETGLOBAL    = 0x05; //R[A] = globals[B]
+  public static final int R_DEFGLOBAL    = 0x06; //globals[C] = RK[B]
+  public static final int R_SETGLOBAL    = 0x07; //globals[C] = RK[B]
+  public static final int R_GETUPVAL     = 0x08; //R[A] = upvalue[B]
+  public static final int R_SETUPVAL     = 0x09; //upvalue[C] = RK[B]
+  public static final int R_GETPROP      = 0x0A; //R[A] = R[B].K[C]
+  public static final int R_SETPROP      = 0x0B; //R[A].K[C] = RK[B]
+  public static final int R_GETSUPER     = 0x0C; //R[A] = super R[A+1] method K[B] bound to R[A]
+  public static final int R_EQ           = 0x0D; //R[A] = RK[B] == RK[C]
+  public static final int R_GT           = 0x0E; //R[A] = RK[B] > RK[C]
+  public static final int R_LT           = 0x0F; //R[A] = RK[B] < RK[C]
+  public static final int R_ADD          = 0x10; //R[A] = RK[B] + RK[C]
+  public static final int R_SUB          = 0x11; //R[A] = RK[B] - RK[C]
+  public static final int R_MUL          = 0x12; //R[A] = RK[B] * RK[C]
+  public static final int R_DIV          = 0x13; //R[A] = RK[B] / RK[C]
+  public static final int R_NOT          = 0x14; //R[A] = !RK[B]
+  public static final int R_NEG          = 0x15; //R[A] = -RK[B]
+  public static final int R_JMP          = 0x16; //ip = B
+  public static final int R_JMPF         = 0x17; //if R[A] is falsey, ip = B
+  public static final int R_CALL         = 0x18; //R[A] = R[A](R[A+1] .. R[A+B])
+  public static final int R_INVOKE       = 0x19; //R[A] = R[A].K[C](R[A+1] .. R[A+B])
+  public static final int R_SUPERINVOKE  = 0x1A; //as R_INVOKE, superclass in R[A+B+1]
+  public static final int R_CLOSURE      = 0x1B; //R[A] = closure of K[B]; C upvalue words follow
+  public static final int R_UPVALUE      = 0x1C; //capture: A != 0 if local, B index
+  public static final int R_CLOSE        = 0x1D; //close upvalues at or above R[A]
+  public static final int R_RETURN       = 0x1E; //return RK[B]
+  public static final int R_CLASS        = 0x1F; //R[A] = new class named K[B]
+  public static final int R_INHERIT      = 0x20; //R[A] inherits from R[B]
+  public static final int R_METHOD       = 0x21; //R[A].methods[K[C]] = R[B]
+  public static final int R_TAILCALL     = 0x22; //return R[A](R[A+1] .. R[A+B]), in this frame
+  public static final int R_TAILINVOKE   = 0x23; //return R[A].K[C](R[A+1] .. R[A+B]), in this frame
+
+  //indexed by opcode, for the disassembler
+  public static final String[] NAMES = {
+    "R_MOVE", "R_LOADK", "R_LOADNIL", "R_LOADTRUE", "R_LOADFALSE",
+    "R_GETGLOBAL", "R_DEFGLOBAL", "R_SETGLOBAL", "R_GETUPVAL", "R_SETUPVAL",
+    "R_GETPROP", "R_SETPROP", "R_GETSUPER", "R_EQ", "R_GT", "R_LT",
+    "R_ADD", "R_SUB", "R_MUL", "R_DIV", "R_NOT", "R_NEG", "R_JMP", "R_JMPF",
+    "R_CALL", "R_INVOKE", "R_SUPERINVOKE", "R_CLOSURE", "R_UPVALUE",
+    "R_CLOSE", "R_RETURN", "R_CLASS", "R_INHERIT", "R_METHOD",
+    "R_TAILCALL", "R_TAILINVOKE",
+  };
+
+  //RegisterOpCode()
+  private RegisterOpCode() {}
+
+  //encode(int, int, int, int)
+  public static long encode(int op, int a, int b, int c) {
+    return
+      ((long)op & 0xFF) |
+      (((long)a & 0xFFFF) << 8) |
+      (((long)b & 0xFFFFF) << 24) |
+      (((long)c & 0xFFFFF) << 44);
+  }
+
+  //op(long)
+  public static int op(long instruction) {
+    return (int)(instruction & 0xFF);
+  }
+
+  //a(long)
+  public static int a(long instruction) {
+    return (int)((instruction >>> 8) & 0xFFFF);
+  }
+
+  //b(long)
+  public static int b(long instruction) {
+    return (int)((instruction >>> 24) & 0xFFFFF);
+  }
+
+  //c(long)
+  public static int c(long instruction) {
+    return (int)((instruction >>> 44) & 0xFFFFF);
+  }
+
+  //withA(long, int)
+  public static long withA(long instruction, int a) {
+    return (instruction & ~(0xFFFFL << 8)) | (((long)a & 0xFFFF) << 8);
+  }
+
+  //withB(long, int)
+  public static long withB(long instruction, int b) {
+    return (instruction & ~(0xFFFFFL << 24)) | (((long)b & 0xFFFFF) << 24);
+  }
+
+  //isConstant(int)
+  public static boolean isConstant(int rk) {
+    return (rk & RK_CONSTANT) != 0;
+  }
+
+  //constant(int)
+  public static int constant(int index) {
+    return index | RK_CONSTANT;
+  }
+
+  //index(int)
+  public static int index(int rk) {
+    return rk & ~RK_CONSTANT;
+  }
+}
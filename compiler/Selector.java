@@ -0,0 +1,78 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//A property or method name, interned when first compiled.  There
+//is exactly one Selector per name.  A name that some class defines
+//as a method is also given a small integer method id, dense over
+//method names only and shared by every VM in the process, so a
+//class's method table can be indexed by it directly without
+//leaving room for property names.
+public class Selector {
+  private static final Map<String, Selector> interned = new HashMap<>();
+  private static final List<Selector> byMethodId = new ArrayList<>();
+
+  private final String name;
+  private volatile int methodId; //-1 until defined as a method
+
+  //Selector(String)
+  private Selector(String name) {
+    this.name = name;
+
+    methodId = -1;
+  }
+
+  //of(String)
+  public static synchronized Selector of(String name) {
+    Selector selector = interned.get(name);
+
+    if (selector == null) {
+      selector = new Selector(name);
+
+      interned.put(name, selector);
+    }
+
+    return selector;
+  }
+
+  //forMethodId(int)
+  public static synchronized Selector forMethodId(int methodId) {
+    return byMethodId.get(methodId);
+  }
+
+  //name()
+  public String name() {
+    return name;
+  }
+
+  //methodId()
+  public int methodId() {
+    //-1 if no class has yet defined a method by this name
+    return methodId;
+  }
+
+  //defineMethodId()
+  public int defineMethodId() {
+    if (methodId != -1)
+      return methodId;
+
+    synchronized (Selector.class) {
+      if (methodId == -1) {
+        byMethodId.add(this);
+
+        methodId = byMethodId.size() - 1;
+      }
+    }
+
+    return methodId;
+  }
+
+  //toString()
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,163 @@
+package compiler;
+
+import java.util.Arrays;
+
+import static compiler.OpCode.*;
+
+//Rewrites a finished chunk so that frequent instruction sequences
+//(as reported by debug.SuperinstructionProfiler) run as a single
+//fused instruction.  A fused instruction carries the operands of
+//its components, in order, after its own opcode.
+public class SuperinstructionPass {
+  //{ fused, component... }, longest patterns first
+  private static final byte[][] PATTERNS = {
+    { OP_GET_LOCAL_GET_LOCAL_ADD,     OP_GET_LOCAL, OP_GET_LOCAL, OP_ADD },
+    { OP_GET_LOCAL_CONSTANT_ADD,      OP_GET_LOCAL, OP_CONSTANT, OP_ADD },
+    { OP_GET_LOCAL_CONSTANT_SUBTRACT, OP_GET_LOCAL, OP_CONSTANT, OP_SUBTRACT },
+    { OP_GET_LOCAL_CONSTANT_LESS,     OP_GET_LOCAL, OP_CONSTANT, OP_LESS },
+    { OP_GET_LOCAL_CONSTANT,          OP_GET_LOCAL, OP_CONSTANT },
+    { OP_JUMP_IF_FALSE_POP,           OP_JUMP_IF_FALSE, OP_POP },
+    { OP_SET_LOCAL_POP,               OP_SET_LOCAL, OP_POP },
+  };
+
+  //fused opcode -> the instructions it stands for
+  private static final byte[][] COMPONENTS = new byte[256][];
+
+  static {
+    for (byte[] pattern : PATTERNS)
+      COMPONENTS[pattern[0] & 0xFF] = Arrays.copyOfRange(pattern, 1, pattern.length);
+  }
+
+  //SuperinstructionPass()
+  private SuperinstructionPass() {}
+
+  //rewrite(Chunk)
+  public static void rewrite(Chunk chunk) {
+    int count = chunk.codesCount();
+    byte[] codes = chunk.codes();
+    int[] lines = chunk.lines();
+    boolean[] isStart = new boolean[count + 1];
+    boolean[] isTarget = new boolean[count + 1];
+
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset)) {
+      isStart[offset] = true;
+
+      if (isJump(codes[offset]))
+        isTarget[jumpTarget(codes, offset, 3)] = true;
+    }
+
+    byte[] newCodes = new byte[count];
+    int[] newLines = new int[count];
+    int[] newOffsets = new int[count + 1]; //old instruction start -> new
+    int newCount = 0;
+
+    for (int offset = 0; offset < count;) {
+      byte[] pattern = match(chunk, isTarget, offset);
+      int start = newCount;
+
+      newOffsets[offset] = start;
+
+      if (pattern == null) {
+        int width = chunk.instructionWidth(offset);
+
+        System.arraycopy(codes, offset, newCodes, newCount, width);
+        System.arraycopy(lines, offset, newLines, newCount, width);
+
+        newCount += width;
+        offset += width;
+
+        continue;
+      }
+
+      newCodes[newCount] = pattern[0];
+      newLines[newCount++] = lines[offset];
+
+      for (int i = 1; i < pattern.length; i++) {
+        int width = chunk.instructionWidth(offset);
+
+        //keep each operand's own line; the last byte takes the
+        //last component's line so runtime errors report it
+        System.arraycopy(codes, offset + 1, newCodes, newCount, width - 1);
+        System.arraycopy(lines, offset + 1, newLines, newCount, width - 1);
+
+        newCount += width - 1;
+        newLines[newCount - 1] = lines[offset];
+        offset += width;
+      }
+    }
+
+    newOffsets[count] = newCount;
+
+    //Every jump still holds its old distance; re-aim it.
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset)) {
+      if (!isJump(codes[offset]))
+        continue;
+
+      int from = newOffsets[offset];
+      int to = newOffsets[jumpTarget(codes, offset, 3)];
+      int after = from + 3; //every jump form is three bytes wide
+      int distance = (newCodes[from] == OP_LOOP) ? after - to : to - after;
+
+      newCodes[from + 1] = (byte)((distance >> 8) & 0xFF);
+      newCodes[from + 2] = (byte)(distance & 0xFF);
+    }
+
+    chunk.replaceCode(newCodes, newLines, newCount);
+  }
+
+  //components(byte)
+  public static byte[] components(byte opCode) {
+    //the instructions a superinstruction stands for, or null;
+    //the array is shared, so callers must not modify it
+    return COMPONENTS[opCode & 0xFF];
+  }
+
+  //covers(byte[])
+  public static boolean covers(byte[] ops) {
+    //whether some pattern already fuses exactly this sequence
+    for (byte[] pattern : PATTERNS)
+      if (Arrays.equals(pattern, 1, pattern.length, ops, 0, ops.length))
+        return true;
+
+    return false;
+  }
+
+  //match(Chunk, boolean[], int)
+  private static byte[] match(Chunk chunk, boolean[] isTarget, int offset) {
+    for (byte[] pattern : PATTERNS) {
+      int at = offset;
+      int i = 1;
+
+      for (; i < pattern.length; i++) {
+        //only the first component may be branched to
+        if (at >= chunk.codesCount() || (i > 1 && isTarget[at]))
+          break;
+
+        if (chunk.codes()[at] != pattern[i])
+          break;
+
+        at += chunk.instructionWidth(at);
+      }
+
+      if (i == pattern.length)
+        return pattern;
+    }
+
+    return null;
+  }
+
+  //isJump(byte)
+  private static boolean isJump(byte opCode) {
+    return opCode == OP_JUMP || opCode == OP_JUMP_IF_FALSE || opCode == OP_LOOP;
+  }
+
+  //jumpTarget(byte[], int, int)
+  private static int jumpTarget(byte[] codes, int offset, int width) {
+    int distance = ((codes[offset + 1] & 0xFF) << 8) | (codes[offset + 2] & 0xFF);
+
+    if (codes[offset] == OP_LOOP)
+      return offset + width - distance;
+
+    return offset + width + distance;
+  }
+}
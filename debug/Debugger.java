@@ -1,16 +1,20 @@
 package debug;
 
 import java.util.Arrays;
-import java.util.Map;
 
 import compiler.Chunk;
 import compiler.Function;
 import compiler.CompilerLocals;
+import compiler.RegisterChunk;
+import compiler.RegisterOpCode;
+import compiler.Selector;
 import main.Props;
 import main.PropsObserver;
-import vm.CallFrame;
+import vm.GlobalTable;
+import vm.LoxString;
 
 import static compiler.OpCode.*;
+import static compiler.RegisterOpCode.*;
 
 public class Debugger extends PropsObserver {
   //Cached properties
@@ -39,8 +43,8 @@ public class Debugger extends PropsObserver {
     System.out.println((source.length() == 0) ? "[ no source ]" : source);
   }
 
-  //traceExecution(CallFrame, Map, Object[])
-  public void traceExecution(CallFrame frame, Map<String, Object> globals, Object[] substack) {
+  //traceExecution(Chunk, int, GlobalTable, Object[])
+  public void traceExecution(Chunk chunk, int ip, GlobalTable globals, Object[] substack) {
     if (printGlobals)
       System.out.println("Globals: " + globals);
 
@@ -48,11 +52,70 @@ public class Debugger extends PropsObserver {
       //System.out.println("          " + stack);
       System.out.println("          " + java.util.Arrays.toString(substack));
 
-    disassembleInstruction(frame.closure().function().chunk(), frame.ip());
+    disassembleInstruction(chunk, globals, ip);
   }
 
-  //disassembleChunk(Chunk, CompilerLocals, String)
-  public void disassembleChunk(Chunk chunk, CompilerLocals locals, String name) {
+  //traceRegisterExecution(RegisterChunk, int, GlobalTable, Object[])
+  public void traceRegisterExecution(
+    RegisterChunk chunk, int index, GlobalTable globals, Object[] substack
+  ) {
+    if (printGlobals)
+      System.out.println("Globals: " + globals);
+
+    if (printStack)
+      System.out.println("          " + java.util.Arrays.toString(substack));
+
+    disassembleRegisterInstruction(chunk, index);
+  }
+
+  //disassembleRegisterChunk(RegisterChunk, String)
+  public void disassembleRegisterChunk(RegisterChunk chunk, String name) {
+    if (printConstants)
+      System.out.println("Constants: " + Arrays.toString(chunk.constants()));
+
+    printBanner(name + " (" + chunk.maxRegisters() + " registers)");
+
+    for (int index = 0; index < chunk.codesCount(); index++)
+      disassembleRegisterInstruction(chunk, index);
+  }
+
+  //disassembleRegisterInstruction(RegisterChunk, int)
+  public void disassembleRegisterInstruction(RegisterChunk chunk, int index) {
+    long instruction = chunk.codes()[index];
+    int op = RegisterOpCode.op(instruction);
+
+    System.out.print(String.format("%04d", index));
+
+    if ((index > 0) && (chunk.lines()[index] == chunk.lines()[index - 1]))
+      System.out.print("   | ");
+    else
+      System.out.print(String.format("%4d ", chunk.lines()[index]));
+
+    if (printOpCode)
+      System.out.print("(" + String.format("0x%02X", op) + ") ");
+
+    System.out.println(String.format(
+      "%-16s %4d %6s %6s",
+      op < NAMES.length ? NAMES[op] : "Unknown opcode: " + op,
+      RegisterOpCode.a(instruction),
+      registerOperand(RegisterOpCode.b(instruction)),
+      registerOperand(RegisterOpCode.c(instruction))
+    ));
+  }
+
+  //registerOperand(int)
+  private String registerOperand(int rk) {
+    //constant operands print as k<index>
+    if (isConstant(rk))
+      return "k" + index(rk);
+
+    return String.valueOf(rk);
+  }
+
+  //disassembleChunk(Chunk, CompilerLocals, GlobalTable, String)
+  public void disassembleChunk(
+    Chunk chunk, CompilerLocals locals, GlobalTable globals, String name
+  ) {
     if (printCodes) {
       System.out.println("Codes: " + chunk.codes());
 
@@ -69,15 +132,15 @@ public class Debugger extends PropsObserver {
     printBanner(name);
 
     for (int offset = 0; offset < chunk.codesCount();)
-      offset = disassembleInstruction(chunk, offset);
+      offset = disassembleInstruction(chunk, globals, offset);
   }
 
   public void printBanner(String text) {
     System.out.println("== " + text + " ==");
   }
 
-  //disassembleInstruction(Chunk, int)
-  public int disassembleInstruction(Chunk chunk, int offset) {
+  //disassembleInstruction(Chunk, GlobalTable, int)
+  public int disassembleInstruction(Chunk chunk, GlobalTable globals, int offset) {
     byte instruction = getCode(chunk, offset);
 
     System.out.print(String.format("%04d", offset));
@@ -109,11 +172,25 @@ public class Debugger extends PropsObserver {
       case OP_SET_LOCAL:
         return wordOperandInstruction("OP_SET_LOCAL", chunk, offset);
       case OP_GET_GLOBAL:
-        return constantInstruction("OP_GET_GLOBAL", chunk, offset);
+        return globalInstruction("OP_GET_GLOBAL", chunk, globals, offset);
       case OP_DEFINE_GLOBAL:
-        return constantInstruction("OP_DEFINE_GLOBAL", chunk, offset);
+        return globalInstruction("OP_DEFINE_GLOBAL", chunk, globals, offset);
       case OP_SET_GLOBAL:
-        return constantInstruction("OP_SET_GLOBAL", chunk, offset);
+        return globalInstruction("OP_SET_GLOBAL", chunk, globals, offset);
+      case OP_GET_GLOBAL_CACHED:
+        return globalInstruction("OP_GET_GLOBAL_CACHED", chunk, globals, offset);
+      case OP_SET_PROPERTY_CACHED:
+        return constantInstruction("OP_SET_PROPERTY_CACHED", chunk, offset);
+      case OP_INVOKE_CACHED:
+        return invokeInstruction("OP_INVOKE_CACHED", chunk, offset);
+      case OP_SUPER_INVOKE_CACHED:
+        return invokeInstruction("OP_SUPER_INVOKE_CACHED", chunk, offset);
+      case OP_CALL_CLOSURE:
+        return byteOperandInstruction("OP_CALL_CLOSURE", chunk, offset);
+      case OP_CALL_NATIVE:
+        return byteOperandInstruction("OP_CALL_NATIVE", chunk, offset);
+      case OP_CALL_CLASS:
+        return byteOperandInstruction("OP_CALL_CLASS", chunk, offset);
       case OP_GET_UPVALUE:
         return wordOperandInstruction("OP_GET_UPVALUE", chunk, offset);
       case OP_SET_UPVALUE:
@@ -152,8 +229,14 @@ public class Debugger extends PropsObserver {
         return jumpInstruction("OP_LOOP", -1, chunk, offset);
       case OP_CALL:
         return byteOperandInstruction("OP_CALL", chunk, offset);
+      case OP_CONCAT_N:
+        return byteOperandInstruction("OP_CONCAT_N", chunk, offset);
       case OP_INVOKE:
         return invokeInstruction("OP_INVOKE", chunk, offset);
+      case OP_TAIL_CALL:
+        return byteOperandInstruction("OP_TAIL_CALL", chunk, offset);
+      case OP_TAIL_INVOKE:
+        return invokeInstruction("OP_TAIL_INVOKE", chunk, offset);
       case OP_SUPER_INVOKE:
         return invokeInstruction("OP_SUPER_INVOKE", chunk, offset);
       case OP_CLOSURE:
@@ -168,6 +251,36 @@ public class Debugger extends PropsObserver {
         return simpleInstruction("OP_INHERIT", offset);
       case OP_METHOD:
         return constantInstruction("OP_METHOD", chunk, offset);
+      case OP_ADD_NUM:
+        return simpleInstruction("OP_ADD_NUM", offset);
+      case OP_ADD_STR:
+        return simpleInstruction("OP_ADD_STR", offset);
+      case OP_SUBTRACT_NUM:
+        return simpleInstruction("OP_SUBTRACT_NUM", offset);
+      case OP_MULTIPLY_NUM:
+        return simpleInstruction("OP_MULTIPLY_NUM", offset);
+      case OP_DIVIDE_NUM:
+        return simpleInstruction("OP_DIVIDE_NUM", offset);
+      case OP_GREATER_NUM:
+        return simpleInstruction("OP_GREATER_NUM", offset);
+      case OP_LESS_NUM:
+        return simpleInstruction("OP_LESS_NUM", offset);
+      case OP_GET_PROPERTY_CACHED:
+        return constantInstruction("OP_GET_PROPERTY_CACHED", chunk, offset);
+      case OP_GET_LOCAL_GET_LOCAL_ADD:
+        return twoWordOperandInstruction("OP_GET_LOCAL_GET_LOCAL_ADD", chunk, offset);
+      case OP_GET_LOCAL_CONSTANT_ADD:
+        return localConstantInstruction("OP_GET_LOCAL_CONSTANT_ADD", chunk, offset);
+      case OP_GET_LOCAL_CONSTANT_SUBTRACT:
+        return localConstantInstruction("OP_GET_LOCAL_CONSTANT_SUBTRACT", chunk, offset);
+      case OP_GET_LOCAL_CONSTANT_LESS:
+        return localConstantInstruction("OP_GET_LOCAL_CONSTANT_LESS", chunk, offset);
+      case OP_GET_LOCAL_CONSTANT:
+        return localConstantInstruction("OP_GET_LOCAL_CONSTANT", chunk, offset);
+      case OP_JUMP_IF_FALSE_POP:
+        return jumpInstruction("OP_JUMP_IF_FALSE_POP", 1, chunk, offset);
+      case OP_SET_LOCAL_POP:
+        return wordOperandInstruction("OP_SET_LOCAL_POP", chunk, offset);
       default:
         System.out.println("Unknown opcode: " + instruction);
 
@@ -208,7 +321,7 @@ public class Debugger extends PropsObserver {
 
     Object constant = chunk.constants()[operand];
 
-    if (constant instanceof String)
+    if (constant instanceof LoxString || constant instanceof Selector)
       System.out.print("'" + constant + "'\n");
     else
       System.out.print(constant + "\n");
@@ -216,6 +329,16 @@ public class Debugger extends PropsObserver {
     return offset + 3;
   }
 
+  //globalInstruction(String, Chunk, GlobalTable, int)
+  private int globalInstruction(String name, Chunk chunk, GlobalTable globals, int offset) {
+    short slot = getWordOperand(chunk, offset);
+
+    System.out.print(String.format("%-16s %4d ", name, slot));
+    System.out.print("'" + globals.name(slot) + "'\n");
+
+    return offset + 3;
+  }
+
   //invokeInstruction(String, Chunk, int)
   private int invokeInstruction(String name, Chunk chunk, int offset) {
     short operand = getWordOperand(chunk, offset);
@@ -253,6 +376,32 @@ public class Debugger extends PropsObserver {
     return offset + 3;
   }
 
+  //twoWordOperandInstruction(String, Chunk, int)
+  private int twoWordOperandInstruction(String name, Chunk chunk, int offset) {
+    short first = getWordOperand(chunk, offset);
+    short second = getWordOperand(chunk, offset + 2);
+
+    System.out.print(String.format("%-16s %4d %4d\n", name, first, second));
+
+    return offset + 5;
+  }
+
+  //localConstantInstruction(String, Chunk, int)
+  private int localConstantInstruction(String name, Chunk chunk, int offset) {
+    short slot = getWordOperand(chunk, offset);
+    short operand = getWordOperand(chunk, offset + 2);
+    Object constant = chunk.constants()[operand];
+
+    System.out.print(String.format("%-16s %4d %4d ", name, slot, operand));
+
+    if (constant instanceof LoxString || constant instanceof Selector)
+      System.out.print("'" + constant + "'\n");
+    else
+      System.out.print(constant + "\n");
+
+    return offset + 5;
+  }
+
   //jumpInstruction(String, int, Chunk, int)
   private int jumpInstruction(String name, int sign, Chunk chunk, int offset) {
     short operand = getWordOperand(chunk, offset);
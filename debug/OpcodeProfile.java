@@ -0,0 +1,82 @@
+package debug;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import compiler.Chunk;
+import compiler.OpCode;
+
+public class OpcodeProfile {
+  private long[] singles;
+  private long[] pairs;
+  private Map<Integer, Long> triples;
+  private long executed;
+
+  //History of the straight-line run currently being executed.
+  private Chunk lastChunk;
+  private int nextOffset;
+  private int prev1;
+  private int prev2;
+
+  //OpcodeProfile()
+  public OpcodeProfile() {
+    singles = new long[256];
+    pairs = new long[256 * 256];
+    triples = new HashMap<>();
+
+    resetHistory();
+  }
+
+  //executed()
+  public long executed() {
+    return executed;
+  }
+
+  //singles()
+  public long[] singles() {
+    return singles;
+  }
+
+  //pairs()
+  public long[] pairs() {
+    return pairs;
+  }
+
+  //triples()
+  public Map<Integer, Long> triples() {
+    return triples;
+  }
+
+  //record(Chunk, int)
+  public void record(Chunk chunk, int offset) {
+    //Only instructions that follow each other in the code can
+    //be fused, so a call, return or taken branch starts over.
+    if (chunk != lastChunk || offset != nextOffset)
+      resetHistory();
+
+    //quickened opcodes are counted as their generic form
+    int op = OpCode.generic(chunk.codes()[offset]) & 0xFF;
+
+    executed++;
+    singles[op]++;
+
+    if (prev1 != -1)
+      pairs[(prev1 << 8) | op]++;
+
+    if (prev2 != -1)
+      triples.merge((prev2 << 16) | (prev1 << 8) | op, 1L, Long::sum);
+
+    prev2 = prev1;
+    prev1 = op;
+    lastChunk = chunk;
+    nextOffset = offset + chunk.instructionWidth(offset);
+  }
+
+  //resetHistory()
+  private void resetHistory() {
+    lastChunk = null;
+    nextOffset = -1;
+    prev1 = -1;
+    prev2 = -1;
+  }
+}
@@ -0,0 +1,400 @@
+package debug;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import compiler.OpCode;
+import compiler.SuperinstructionPass;
+import main.Props;
+import vm.VM;
+
+import static compiler.OpCode.*;
+
+//Runs a corpus of Lox scripts, counts the opcode sequences the VM
+//executes, and prints the best superinstruction candidates along
+//with the OpCode declarations, SuperinstructionPass patterns,
+//operand widths, VM dispatch and Debugger cases that would
+//introduce them.
+public class SuperinstructionProfiler {
+  private static final int TOP_SEQUENCES = 25;
+  private static final int TOP_CANDIDATES = 8;
+
+  private String[] names;
+  private int nextOpCode;
+  private OpcodeProfile profile;
+  private List<String> failures;
+
+  //Sequence
+  private static class Sequence {
+    private int[] ops;
+    private long count;
+
+    //Sequence(int[], long)
+    Sequence(int[] ops, long count) {
+      this.ops = ops;
+      this.count = count;
+    }
+
+    //saved()
+    long saved() {
+      //dispatches avoided if the sequence were one instruction
+      return count * (ops.length - 1);
+    }
+  }
+
+  //SuperinstructionProfiler()
+  public SuperinstructionProfiler() {
+    names = new String[256];
+    profile = new OpcodeProfile();
+    failures = new ArrayList<>();
+
+    try {
+      for (Field field : OpCode.class.getFields())
+        if (Modifier.isStatic(field.getModifiers()) && field.getType() == byte.class) {
+          int op = field.getByte(null) & 0xFF;
+
+          names[op] = field.getName();
+          nextOpCode = Math.max(nextOpCode, op + 1);
+        }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  //profile(List<Path>, Props, Debugger)
+  private void profile(List<Path> scripts, Props properties, Debugger debugger) {
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+    for (Path script : scripts) {
+      try {
+        String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        VM vm = new VM(properties, debugger);
+
+        vm.setOpcodeProfile(profile);
+
+        System.setOut(sink);
+        System.setErr(sink);
+
+        if (vm.interpret(source) != VM.InterpretResult.INTERPRET_OK)
+          failures.add(script.toString());
+      } catch (IOException e) {
+        failures.add(script.toString());
+      } finally {
+        System.setOut(out);
+        System.setErr(err);
+      }
+    }
+  }
+
+  //sequences()
+  private List<Sequence> sequences() {
+    List<Sequence> sequences = new ArrayList<>();
+
+    for (int key = 0; key < profile.pairs().length; key++)
+      if (profile.pairs()[key] > 0)
+        sequences.add(new Sequence(new int[] { key >> 8, key & 0xFF }, profile.pairs()[key]));
+
+    profile.triples().forEach((key, count) -> sequences.add(new Sequence(
+      new int[] { key >> 16, (key >> 8) & 0xFF, key & 0xFF }, count
+    )));
+
+    sequences.sort((a, b) -> Long.compare(b.saved(), a.saved()));
+
+    return sequences;
+  }
+
+  //fusible(int[])
+  private boolean fusible(int[] ops) {
+    byte[] sequence = new byte[ops.length];
+
+    for (int i = 0; i < ops.length; i++) {
+      byte op = (byte)ops[i];
+
+      //only what the compiler emits can be matched by the pass
+      if (OpCode.generic(op) != op || SuperinstructionPass.components(op) != null)
+        return false;
+
+      switch (op) {
+        case OP_JUMP_IF_FALSE:
+          //the rest of the sequence is the fall-through path, and
+          //the fused jump must stay three bytes wide
+          if (i != 0) return false;
+
+          for (int j = 1; j < ops.length; j++)
+            if (OpCode.operandWidth((byte)ops[j]) != 0) return false;
+
+          break;
+        case OP_JUMP:
+        case OP_LOOP:
+        case OP_CALL:
+        case OP_INVOKE:
+        case OP_TAIL_CALL:
+        case OP_TAIL_INVOKE:
+        case OP_SUPER_INVOKE:
+        case OP_CLOSURE:
+        case OP_RETURN:
+        case OP_CLASS:
+        case OP_INHERIT:
+        case OP_METHOD:
+          return false;
+        default:
+          break;
+      }
+
+      sequence[i] = op;
+    }
+
+    //already fused, under its existing name
+    return !SuperinstructionPass.covers(sequence);
+  }
+
+  //operandWidth(int[])
+  private int operandWidth(int[] ops) {
+    int width = 0;
+
+    for (int op : ops)
+      width += OpCode.operandWidth((byte)op);
+
+    return width;
+  }
+
+  //isConstantOperand(int)
+  private boolean isConstantOperand(int op) {
+    switch ((byte)op) {
+      case OP_CONSTANT:
+      case OP_GET_PROPERTY:
+      case OP_SET_PROPERTY:
+      case OP_GET_SUPER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  //isGlobalOperand(int)
+  private boolean isGlobalOperand(int op) {
+    switch ((byte)op) {
+      case OP_GET_GLOBAL:
+      case OP_DEFINE_GLOBAL:
+      case OP_SET_GLOBAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  //dispatchSteps(int[])
+  private String dispatchSteps(int[] ops) {
+    //each component in turn, with where its operand sits
+    StringBuilder sb = new StringBuilder();
+    int at = 0;
+
+    for (int op : ops) {
+      int width = OpCode.operandWidth((byte)op);
+
+      sb.append(names[op]);
+
+      if (width == 1)
+        sb.append(" (byte at ip" + (at == 0 ? "" : " + " + at) + ")");
+      else if (width == 2)
+        sb.append(" (word at ip" + (at == 0 ? "" : " + " + at) + ")");
+
+      sb.append(", ");
+      at += width;
+    }
+
+    return sb.append("then ip += " + at).toString();
+  }
+
+  //disassembly(int[])
+  private String disassembly(int[] ops) {
+    //the Debugger helper that prints the fused operands
+    String name = "\"" + fusedName(ops) + "\"";
+    List<Integer> operands = new ArrayList<>();
+
+    for (int op : ops)
+      if (OpCode.operandWidth((byte)op) != 0)
+        operands.add(op);
+
+    if (operands.isEmpty())
+      return "simpleInstruction(" + name + ", offset)";
+
+    if (ops[0] == OP_JUMP_IF_FALSE)
+      return "jumpInstruction(" + name + ", 1, chunk, offset)";
+
+    if (operands.size() == 1 && OpCode.operandWidth((byte)(int)operands.get(0)) == 1)
+      return "byteOperandInstruction(" + name + ", chunk, offset)";
+
+    if (operands.size() == 1 && isGlobalOperand(operands.get(0)))
+      return "globalInstruction(" + name + ", chunk, globals, offset)";
+
+    if (operands.size() == 1)
+      return isConstantOperand(operands.get(0))
+        ? "constantInstruction(" + name + ", chunk, offset)"
+        : "wordOperandInstruction(" + name + ", chunk, offset)";
+
+    if (operands.size() == 2 && operandWidth(ops) == 4) {
+      if (operands.get(0) == OP_GET_LOCAL && isConstantOperand(operands.get(1)))
+        return "localConstantInstruction(" + name + ", chunk, offset)";
+
+      if (
+        !isConstantOperand(operands.get(0)) && !isConstantOperand(operands.get(1)) &&
+        !isGlobalOperand(operands.get(0)) && !isGlobalOperand(operands.get(1))
+      )
+        return "twoWordOperandInstruction(" + name + ", chunk, offset)";
+    }
+
+    return null;
+  }
+
+  //fusedName(int[])
+  private String fusedName(int[] ops) {
+    StringBuilder sb = new StringBuilder("OP");
+
+    for (int op : ops)
+      sb.append(names[op].substring(2));
+
+    return sb.toString();
+  }
+
+  //describe(int[])
+  private String describe(int[] ops) {
+    StringBuilder sb = new StringBuilder();
+
+    for (int op : ops)
+      sb.append(names[op] + " ");
+
+    return sb.toString().trim();
+  }
+
+  //report(PrintStream, int)
+  private void report(PrintStream out, int scriptCount) {
+    long executed = profile.executed();
+    List<Sequence> sequences = sequences();
+
+    out.println("== opcode sequences ==");
+    out.println(
+      executed + " instructions executed by " + scriptCount + " script(s), " +
+      failures.size() + " failed"
+    );
+
+    for (String failure : failures)
+      out.println("  failed: " + failure);
+
+    for (int i = 0; i < Math.min(TOP_SEQUENCES, sequences.size()); i++) {
+      Sequence sequence = sequences.get(i);
+
+      out.println(String.format(
+        "%6.2f%% %12d  %s",
+        100.0 * sequence.count / Math.max(1, executed), sequence.count, describe(sequence.ops)
+      ));
+    }
+
+    List<Sequence> candidates = sequences.stream()
+      .filter(sequence -> fusible(sequence.ops))
+      .limit(TOP_CANDIDATES)
+      .collect(Collectors.toList());
+
+    out.println();
+    out.println("== generated OpCode declarations ==");
+
+    for (int i = 0; i < candidates.size(); i++)
+      out.println(String.format(
+        "  public static final byte %-32s = 0x%02X;",
+        fusedName(candidates.get(i).ops), nextOpCode + i
+      ));
+
+    out.println();
+    out.println("== generated SuperinstructionPass patterns ==");
+
+    for (Sequence candidate : candidates) {
+      StringBuilder sb = new StringBuilder("    { " + fusedName(candidate.ops));
+
+      for (int op : candidate.ops)
+        sb.append(", " + names[op]);
+
+      out.println(sb.append(" },"));
+    }
+
+    out.println();
+    out.println("== generated OpCode.operandWidth cases ==");
+
+    for (Sequence candidate : candidates)
+      out.println(String.format(
+        "      case %s:%n        return %d;", fusedName(candidate.ops), operandWidth(candidate.ops)
+      ));
+
+    out.println();
+    out.println("== VM dispatch each candidate needs ==");
+
+    for (Sequence candidate : candidates)
+      out.println(String.format(
+        "          case %s: //%s", fusedName(candidate.ops), dispatchSteps(candidate.ops)
+      ));
+
+    out.println();
+    out.println("== generated Debugger cases ==");
+
+    for (Sequence candidate : candidates) {
+      String helper = disassembly(candidate.ops);
+
+      if (helper == null)
+        out.println("      //" + fusedName(candidate.ops) + " needs a new disassembler helper");
+      else
+        out.println(String.format(
+          "      case %s:%n        return %s;", fusedName(candidate.ops), helper
+        ));
+    }
+  }
+
+  //scripts(String[])
+  private static List<Path> scripts(String[] args) throws IOException {
+    List<Path> scripts = new ArrayList<>();
+
+    for (String arg : (args.length == 0 ? new String[] { "scripts" } : args)) {
+      Path path = Paths.get(arg);
+
+      if (Files.isDirectory(path))
+        try (Stream<Path> files = Files.list(path)) {
+          files
+            .filter(file -> file.toString().endsWith(".lox"))
+            .sorted()
+            .forEach(scripts::add);
+        }
+      else
+        scripts.add(path);
+    }
+
+    return scripts;
+  }
+
+  //main(String[])
+  public static void main(String[] args) throws IOException {
+    String propsFile = System.getProperty("user.home") + "/git/jblox/main/props";
+    Props properties = new Props(propsFile);
+
+    //Profile the plain instruction stream, quietly.
+    properties.setBool("DEBUG_MASTER", false);
+    properties.setBool("SUPERINSTRUCTIONS", false);
+
+    Debugger debugger = new Debugger(properties);
+    List<Path> scripts = scripts(args);
+    SuperinstructionProfiler profiler = new SuperinstructionProfiler();
+
+    profiler.profile(scripts, properties, debugger);
+    profiler.report(System.out, scripts.size());
+  }
+}
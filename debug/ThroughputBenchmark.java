@@ -0,0 +1,116 @@
+package debug;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import main.ExecutionService;
+import main.Props;
+import vm.Program;
+import vm.VM;
+
+//Measures how runs of one script per second scale with the number
+//of pooled VMs (see main.ExecutionService): for pool sizes 1, 2, 4
+//and so on up to the number of cores, the script is compiled once
+//and run a fixed number of times, quietly.
+public class ThroughputBenchmark {
+  private static final int DEFAULT_RUNS = 1000;
+
+  //measure(String, Props, int, int)
+  private static double measure(String source, Props properties, int poolSize, int runs)
+      throws InterruptedException, ExecutionException {
+    //runs per second, or -1 if a run failed
+    try (ExecutionService service = new ExecutionService(properties, poolSize)) {
+      Program program = service.compile(source);
+
+      if (program == null)
+        return -1;
+
+      //warm up: every VM made, and the JVM's own compiler busy
+      if (!runAll(service, program, Math.max(runs / 4, poolSize)))
+        return -1;
+
+      long start = System.nanoTime();
+
+      if (!runAll(service, program, runs))
+        return -1;
+
+      return runs / ((System.nanoTime() - start) / 1e9);
+    }
+  }
+
+  //runAll(ExecutionService, Program, int)
+  private static boolean runAll(ExecutionService service, Program program, int runs)
+      throws InterruptedException, ExecutionException {
+    List<Future<VM.InterpretResult>> results = new ArrayList<>();
+
+    for (int i = 0; i < runs; i++)
+      results.add(service.submit(program));
+
+    boolean isOk = true;
+
+    for (Future<VM.InterpretResult> result : results)
+      if (result.get() != VM.InterpretResult.INTERPRET_OK)
+        isOk = false;
+
+    return isOk;
+  }
+
+  //main(String[])
+  public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+    if (args.length < 1) {
+      System.err.println("Usage: ThroughputBenchmark [script] [runs]");
+
+      System.exit(64);
+    }
+
+    String propsFile = System.getProperty("user.home") + "/git/jblox/main/props";
+    Props properties = new Props(propsFile);
+
+    properties.setBool("DEBUG_MASTER", false);
+
+    String source = new String(Files.readAllBytes(Paths.get(args[0])), Charset.defaultCharset());
+    int runs = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+    int cores = Runtime.getRuntime().availableProcessors();
+    PrintStream out = System.out;
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+    double base = 0;
+
+    out.println("== " + args[0] + ", " + runs + " runs, " + cores + " core(s) ==");
+
+    for (int poolSize = 1; ; poolSize = Math.min(poolSize * 2, cores)) {
+      double throughput;
+
+      System.setOut(sink);
+
+      try {
+        throughput = measure(source, properties, poolSize, runs);
+      } finally {
+        System.setOut(out);
+      }
+
+      if (throughput < 0) {
+        out.println("Script failed.");
+
+        return;
+      }
+
+      if (poolSize == 1)
+        base = throughput;
+
+      out.println(String.format(
+        "%4d VM(s) %12.1f runs/s %8.2fx", poolSize, throughput, throughput / base
+      ));
+
+      if (poolSize == cores)
+        break;
+    }
+  }
+}
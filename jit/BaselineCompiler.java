@@ -0,0 +1,1003 @@
+package jit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.Chunk;
+import compiler.Function;
+import compiler.JumpTargets;
+import compiler.OpCode;
+import compiler.SuperinstructionPass;
+import vm.Value;
+
+import static compiler.OpCode.*;
+import static jit.Code.*;
+
+//Compiles a function's stack code to a JVM class implementing
+//vm.CompiledCode, one Lox instruction at a time.  The operand stack
+//is tracked as in RegisterEmitter, so stack slot n is a fixed pair
+//of JVM locals (its bits and its reference) and HotSpot sees plain
+//arithmetic on locals rather than loads and stores to vStack.
+//Values only go back to vStack where the VM needs them: arguments
+//and results of calls, and the operands of OP_CONCAT_N.
+//
+//Calls that land on another compiled function go straight to its
+//code through an invokeinterface at the call site, which HotSpot
+//profiles (and inlines) per site; any other callee goes through
+//JitRuntime.call().  A function using an instruction not handled
+//here (closure creation, classes, global definitions) is refused
+//and stays in the interpreter.
+//
+//A loop can also be compiled on its own, for on-stack replacement:
+//the code takes over a frame the interpreter is running at the
+//loop's header, and hands it back (its values stored to vStack and
+//frameIPs set) wherever control leaves the loop, or at a return.
+//
+//Objects the code needs beyond the function's own constants (see
+//OptimizingCompiler) are passed to the class's constructor as its
+//data array.
+public class BaselineCompiler {
+  private static final int MAX_CODE = 8000; //HotSpot won't compile longer methods
+
+  //JVM locals
+  protected static final int VM = 1;
+  protected static final int BASE = 2;
+  protected static final int CLOSURE = 3;
+  protected static final int CONSTANTS = 4;
+  protected static final int SCRATCH = 5;
+  private static final int FIRST_SLOT = 6; //bits (2 locals), then ref, per stack slot
+
+  protected static final String RUNTIME = "vm/JitRuntime";
+  protected static final String VALUE = "vm/Value";
+  protected static final String OBJECT = "Ljava/lang/Object;";
+  private static final String RUN = "(Lvm/VM;I)Z";
+  private static final String DATA = "[Ljava/lang/Object;";
+
+  protected Function function;
+  protected Chunk chunk;
+  protected Code code;
+  protected int depth;
+  protected int offset; //of the instruction being translated
+  protected int startDepth; //depth before it
+  protected boolean isFused; //whether it is a superinstruction
+  protected List<Runnable> stubs; //out-of-line paths
+  private ClassFile classFile;
+  private String className;
+  private List<Object> data;
+  private boolean unreachable;
+  private JumpTargets<Label> targets; //labelled with their JVM code
+  private Label start; //the first instruction compiled
+  protected Label failed; //returns false after an error
+  private int loop; //offset of the OP_LOOP whose loop is compiled, or -1
+  private int loopDepth; //stack slots live at its header
+  private int first; //offsets of the code compiled
+  private int last;
+
+  //BaselineCompiler(Function)
+  public BaselineCompiler(Function function) {
+    this(function, -1, 0);
+  }
+
+  //BaselineCompiler(Function, String)
+  public BaselineCompiler(Function function, String className) {
+    //a class loaded by name (see main.Aot) rather than defined as
+    //a hidden one, so the name must be unique
+    this(function, -1, 0, className);
+  }
+
+  //BaselineCompiler(Function, int, int)
+  public BaselineCompiler(Function function, int loop, int loopDepth) {
+    //with loop not -1, compiles just the loop closed by the OP_LOOP
+    //there, to be entered at its header with loopDepth slots live
+    this(
+      function, loop, loopDepth,
+      "vm/Lox$" + (function.name() == null ? "script" : function.name()) +
+      (loop == -1 ? "" : "$" + loop)
+    );
+  }
+
+  //BaselineCompiler(Function, int, int, String)
+  private BaselineCompiler(Function function, int loop, int loopDepth, String className) {
+    this.function = function;
+    this.loop = loop;
+    this.loopDepth = loopDepth;
+    this.className = className;
+
+    chunk = function.chunk();
+    classFile = new ClassFile(className, "java/lang/Object");
+    code = new Code(classFile, 3); //this, vm, base
+    data = new ArrayList<>();
+    failed = new Label();
+    stubs = new ArrayList<>();
+  }
+
+  //compile()
+  public byte[] compile() {
+    //Throws IllegalStateException if the function can't be compiled.
+    classFile.addInterface("vm/CompiledCode");
+    classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "data", DATA);
+
+    constructor();
+    translate();
+
+    classFile.addMethod(ClassFile.ACC_PUBLIC, "run", RUN, code);
+
+    return classFile.toBytes();
+  }
+
+  //data()
+  public Object[] data() {
+    //the argument for the compiled class's constructor
+    return data.toArray();
+  }
+
+  //constructor()
+  private void constructor() {
+    Code init = new Code(classFile, 2);
+
+    init.local(ALOAD, 0);
+    init.invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+    init.local(ALOAD, 0);
+    init.local(ALOAD, 1);
+    init.field(PUTFIELD, className, "data", DATA);
+    init.op(RETURN);
+
+    classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "(" + DATA + ")V", init);
+  }
+
+  //translate()
+  private void translate() {
+    byte[] codes = chunk.codes();
+    int count = chunk.codesCount();
+    Label init = new Label();
+
+    start = new Label();
+    int header = -1;
+
+    targets = new JumpTargets<>(chunk, Label::new);
+
+    //The locals are set up after the body, once the deepest stack
+    //slot is known.
+    code.jump(GOTO, init);
+    code.place(start);
+
+    if (loop == -1) {
+      first = 0;
+      last = count;
+
+      //callee (or receiver) plus arguments
+      depth = function.arity() + 1;
+    } else {
+      header = targets.target(loop + 1, loop + 3, OP_LOOP);
+
+      loopBounds(header);
+
+      depth = loopDepth;
+    }
+
+    int live = depth;
+    int maxDepth = depth;
+
+    for (offset = first; offset < last; offset += chunk.instructionWidth(offset)) {
+      if (targets.isTarget(offset))
+        label(offset);
+
+      if (offset == header && (unreachable || depth != live))
+        throw new IllegalStateException("Can't enter loop at its header.");
+
+      if (unreachable)
+        continue;
+
+      byte opCode = OpCode.generic(codes[offset]);
+      byte[] components = SuperinstructionPass.components(opCode);
+      int end = offset + chunk.instructionWidth(offset);
+
+      startDepth = depth;
+      isFused = components != null;
+
+      if (components == null)
+        instruction(opCode, offset + 1, end);
+      else
+        for (int at = offset + 1, i = 0; i < components.length; i++) {
+          instruction(components[i], at, end);
+
+          at += OpCode.operandWidth(components[i]);
+        }
+
+      maxDepth = Math.max(maxDepth, depth + 1);
+    }
+
+    for (Runnable stub : stubs)
+      stub.run();
+
+    code.place(failed);
+    code.iconst(0);
+    code.op(IRETURN);
+
+    code.place(init);
+    entry(live, maxDepth);
+    code.jump(GOTO, (loop == -1) ? start : targets.label(header));
+
+    if (code.bytes().length > MAX_CODE)
+      throw new IllegalStateException("Compiled code too large.");
+  }
+
+  //loopBounds(int)
+  private void loopBounds(int header) {
+    //The code from the loop's header to its OP_LOOP, widened until
+    //it holds every OP_LOOP jumping into it and every target of one
+    //in it: for a for loop, whose increment clause sits between the
+    //condition and the body, both of its loops.  Inner loops lie
+    //inside; leaving for anything outside returns to the
+    //interpreter.
+    byte[] codes = chunk.codes();
+    boolean isWidened = true;
+
+    first = header;
+    last = loop + 3;
+
+    while (isWidened) {
+      isWidened = false;
+
+      for (int offset = 0; offset < chunk.codesCount(); offset += chunk.instructionWidth(offset))
+        if (codes[offset] == OP_LOOP) {
+          int target = targets.target(offset + 1, offset + 3, OP_LOOP);
+
+          if (offset >= first && offset < last && target < first) {
+            first = target;
+            isWidened = true;
+          } else if (target >= first && target < last && offset >= last) {
+            last = offset + 3;
+            isWidened = true;
+          }
+        }
+    }
+  }
+
+  //entry(int, int)
+  private void entry(int live, int maxDepth) {
+    //closure and constants of the frame being run
+    code.local(ALOAD, VM);
+    code.field(GETFIELD, "vm/VM", "frameClosures", "[Lvm/Closure;");
+    code.local(ALOAD, VM);
+    code.field(GETFIELD, "vm/VM", "fStackCount", "I");
+    code.iconst(1);
+    code.op(ISUB);
+    code.op(AALOAD);
+    code.local(ASTORE, CLOSURE);
+
+    code.local(ALOAD, CLOSURE);
+    code.invoke(INVOKEVIRTUAL, "vm/Closure", "function", "()Lcompiler/Function;");
+    code.invoke(INVOKEVIRTUAL, "compiler/Function", "chunk", "()Lcompiler/Chunk;");
+    code.invoke(INVOKEVIRTUAL, "compiler/Chunk", "constants", "()[Ljava/lang/Object;");
+    code.local(ASTORE, CONSTANTS);
+
+    code.op(ACONST_NULL);
+    code.local(ASTORE, SCRATCH);
+
+    //Every slot gets a value here, so that every local has one
+    //type wherever control flow merges.
+    for (int slot = 0; slot < maxDepth; slot++)
+      if (slot < live)
+        unspill(slot);
+      else {
+        code.lconst(Value.NIL);
+        code.local(LSTORE, bits(slot));
+        code.op(ACONST_NULL);
+        code.local(ASTORE, ref(slot));
+      }
+  }
+
+  //label(int)
+  protected void label(int offset) {
+    if (unreachable) {
+      int targetDepth = targets.resumeDepth(offset);
+
+      if (targetDepth == -1)
+        return;
+
+      depth = targetDepth;
+      unreachable = false;
+    }
+
+    code.place(targets.label(offset));
+  }
+
+  //instruction(byte, int, int)
+  protected void instruction(byte opCode, int at, int end) {
+    int top = depth - 1;
+
+    switch (opCode) {
+      case OP_CONSTANT:
+        int index = word(at);
+        long constantBits = Value.bits(chunk.constants()[index]);
+
+        code.lconst(constantBits);
+        code.local(LSTORE, bits(depth));
+
+        //non-OBJ values never read their reference
+        if (constantBits == Value.OBJ) {
+          constant(index);
+
+          code.local(ASTORE, ref(depth));
+        }
+
+        depth++;
+
+        break;
+      case OP_NIL:
+        pushBits(Value.NIL);
+
+        break;
+      case OP_TRUE:
+        pushBits(Value.TRUE);
+
+        break;
+      case OP_FALSE:
+        pushBits(Value.FALSE);
+
+        break;
+      case OP_POP:
+        depth--;
+
+        break;
+      case OP_GET_LOCAL:
+        copy(word(at), depth++);
+
+        break;
+      case OP_SET_LOCAL:
+        copy(top, word(at));
+
+        break;
+      case OP_GET_GLOBAL:
+        getGlobal(word(at), end);
+
+        break;
+      case OP_SET_GLOBAL:
+        code.local(ALOAD, VM);
+        code.iconst(end);
+        code.iconst(word(at));
+        load(top);
+        runtime("setGlobal", "(Lvm/VM;IIJ" + OBJECT + ")Z");
+        code.jump(IFEQ, failed);
+
+        break;
+      case OP_GET_UPVALUE:
+        code.local(ALOAD, VM);
+        code.local(ALOAD, CLOSURE);
+        code.iconst(word(at));
+        runtime("upvalueBits", "(Lvm/VM;Lvm/Closure;I)J");
+        code.local(LSTORE, bits(depth));
+
+        code.local(ALOAD, VM);
+        code.local(ALOAD, CLOSURE);
+        code.iconst(word(at));
+        runtime("upvalueRef", "(Lvm/VM;Lvm/Closure;I)" + OBJECT);
+        code.local(ASTORE, ref(depth));
+
+        depth++;
+
+        break;
+      case OP_SET_UPVALUE:
+        code.local(ALOAD, VM);
+        code.local(ALOAD, CLOSURE);
+        code.iconst(word(at));
+        load(top);
+        runtime("setUpvalue", "(Lvm/VM;Lvm/Closure;IJ" + OBJECT + ")V");
+
+        break;
+      case OP_GET_PROPERTY:
+        code.local(ALOAD, VM);
+        code.iconst(end);
+        load(top);
+        constant(word(at));
+        runtime("getProperty", "(Lvm/VM;IJ" + OBJECT + OBJECT + ")" + OBJECT);
+        storeBoxed(top);
+
+        break;
+      case OP_SET_PROPERTY:
+        code.local(ALOAD, VM);
+        code.iconst(end);
+        load(top - 1);
+        constant(word(at));
+        load(top);
+        runtime("setProperty", "(Lvm/VM;IJ" + OBJECT + OBJECT + "J" + OBJECT + ")Z");
+        code.jump(IFEQ, failed);
+
+        //the value replaces the instance
+        copy(top, top - 1);
+
+        depth--;
+
+        break;
+      case OP_GET_SUPER:
+        code.local(ALOAD, VM);
+        code.iconst(end);
+        code.local(ALOAD, ref(top - 1));
+        code.local(ALOAD, ref(top));
+        constant(word(at));
+        runtime("getSuper", "(Lvm/VM;I" + OBJECT + OBJECT + OBJECT + ")" + OBJECT);
+        storeBoxed(top - 1);
+
+        depth--;
+
+        break;
+      case OP_EQUAL:
+        load(top - 1);
+        load(top);
+        code.invoke(INVOKESTATIC, VALUE, "equal", "(J" + OBJECT + "J" + OBJECT + ")Z");
+        bool(IFEQ, top - 1);
+
+        depth--;
+
+        break;
+      case OP_GREATER:
+        compare(DCMPL, IFLE, end);
+
+        break;
+      case OP_LESS:
+        compare(DCMPG, IFGE, end);
+
+        break;
+      case OP_ADD:
+        add(end);
+
+        break;
+      case OP_SUBTRACT:
+        arithmetic(DSUB, end);
+
+        break;
+      case OP_MULTIPLY:
+        arithmetic(DMUL, end);
+
+        break;
+      case OP_DIVIDE:
+        arithmetic(DDIV, end);
+
+        break;
+      case OP_NOT:
+        code.local(LLOAD, bits(top));
+        code.invoke(INVOKESTATIC, VALUE, "isFalsey", "(J)Z");
+        bool(IFEQ, top);
+
+        break;
+      case OP_NEGATE:
+        checkNumber(top, end, "Operand must be a number");
+
+        code.local(LLOAD, bits(top));
+        code.invoke(INVOKESTATIC, VALUE, "asNumber", "(J)D");
+        code.op(DNEG);
+        code.invoke(INVOKESTATIC, VALUE, "number", "(D)J");
+        code.local(LSTORE, bits(top));
+
+        break;
+      case OP_JUMP:
+        jump(GOTO, targets.target(at, end, opCode));
+
+        targets.leave(depth);
+        unreachable = true;
+
+        break;
+      case OP_JUMP_IF_FALSE:
+        code.local(LLOAD, bits(top));
+        code.invoke(INVOKESTATIC, VALUE, "isFalsey", "(J)Z");
+        jump(IFNE, targets.target(at, end, opCode));
+
+        break;
+      case OP_LOOP:
+        jump(GOTO, targets.target(at, end, opCode));
+
+        targets.leave(depth);
+        unreachable = true;
+
+        break;
+      case OP_CALL:
+        call(chunk.codes()[at] & 0xFF, end);
+
+        break;
+      case OP_INVOKE:
+        int invArgCount = chunk.codes()[at + 2] & 0xFF;
+        int invFirst = depth - invArgCount - 1;
+
+        spill(invFirst, invArgCount + 1, end);
+
+        code.local(ALOAD, VM);
+        constant(word(at));
+        code.iconst(invArgCount);
+        runtime("invoke", "(Lvm/VM;" + OBJECT + "I)Z");
+        code.jump(IFEQ, failed);
+
+        result(invFirst);
+
+        break;
+      case OP_TAIL_CALL:
+      case OP_TAIL_INVOKE:
+        tailCall(opCode, at, end);
+
+        break;
+      case OP_SUPER_INVOKE:
+        int siArgCount = chunk.codes()[at + 2] & 0xFF;
+        int siFirst = depth - siArgCount - 2;
+
+        //the superclass above the arguments is passed, not spilled
+        spill(siFirst, siArgCount + 1, end);
+
+        code.local(ALOAD, VM);
+        constant(word(at));
+        code.iconst(siArgCount);
+        code.local(ALOAD, ref(top));
+        runtime("superInvoke", "(Lvm/VM;" + OBJECT + "I" + OBJECT + ")Z");
+        code.jump(IFEQ, failed);
+
+        result(siFirst);
+
+        break;
+      case OP_CONCAT_N:
+        int cnCount = chunk.codes()[at] & 0xFF;
+        int cnFirst = depth - cnCount;
+
+        spill(cnFirst, cnCount, end);
+
+        code.local(ALOAD, VM);
+        code.iconst(cnCount);
+        runtime("concat", "(Lvm/VM;I)Z");
+        code.jump(IFEQ, stub(end, "Operands must be two numbers or two strings."));
+
+        result(cnFirst);
+
+        break;
+      case OP_RETURN:
+        //loop code leaves the frame to the interpreter to return from
+        if (loop != -1) {
+          code.jump(GOTO, exit(offset));
+
+          unreachable = true;
+
+          break;
+        }
+
+        code.local(ALOAD, VM);
+        code.local(ILOAD, BASE);
+        load(top);
+        runtime("ret", "(Lvm/VM;IJ" + OBJECT + ")Z");
+        code.op(IRETURN);
+
+        unreachable = true;
+
+        break;
+      default:
+        throw new IllegalStateException("Can't compile opcode " + opCode + ".");
+    }
+  }
+
+  //tailCall(byte, int, int)
+  private void tailCall(byte opCode, int at, int end) {
+    boolean isInvoke = opCode == OP_TAIL_INVOKE;
+    int argCount = chunk.codes()[isInvoke ? at + 2 : at] & 0xFF;
+    int first = depth - argCount - 1;
+
+    //loop code leaves the frame to the interpreter to call from
+    if (loop != -1) {
+      code.jump(GOTO, exit(offset));
+
+      unreachable = true;
+
+      return;
+    }
+
+    //A call of the function itself starts it over with the new
+    //arguments, so tail recursion in compiled code needs no JVM
+    //stack either.  (The frame has made no closures to close.)
+    if (!isInvoke && argCount == function.arity()) {
+      Label other = new Label();
+
+      code.local(LLOAD, bits(first));
+      code.lconst(Value.OBJ);
+      code.op(LCMP);
+      code.jump(IFNE, other);
+      code.local(ALOAD, ref(first));
+      code.local(ALOAD, CLOSURE);
+      code.jump(IF_ACMPNE, other);
+
+      for (int slot = 1; slot <= argCount; slot++)
+        copy(first + slot, slot);
+
+      code.jump(GOTO, start);
+      code.place(other);
+    }
+
+    spill(first, argCount + 1, end);
+
+    code.local(ALOAD, VM);
+
+    if (isInvoke)
+      constant(word(at));
+    else
+      code.op(ACONST_NULL);
+
+    code.iconst(argCount);
+    runtime("tailCall", "(Lvm/VM;" + OBJECT + "I)Z");
+    code.op(IRETURN);
+
+    unreachable = true;
+  }
+
+  //getGlobal(int, int)
+  private void getGlobal(int slot, int end) {
+    code.local(ALOAD, VM);
+    code.field(GETFIELD, "vm/VM", "globals", "Lvm/GlobalTable;");
+    code.invoke(INVOKEVIRTUAL, "vm/GlobalTable", "bits", "()[J");
+    code.iconst(slot);
+    code.op(LALOAD);
+    code.local(LSTORE, bits(depth));
+
+    Label undefined = new Label();
+
+    code.local(LLOAD, bits(depth));
+    code.lconst(Value.UNDEFINED);
+    code.op(LCMP);
+    code.jump(IFEQ, undefined);
+
+    stubs.add(() -> {
+      code.place(undefined);
+      code.local(ALOAD, VM);
+      code.iconst(end);
+      code.iconst(slot);
+      runtime("undefinedVariable", "(Lvm/VM;II)Z");
+      code.op(IRETURN);
+    });
+
+    code.local(ALOAD, VM);
+    code.field(GETFIELD, "vm/VM", "globals", "Lvm/GlobalTable;");
+    code.invoke(INVOKEVIRTUAL, "vm/GlobalTable", "refs", "()[Ljava/lang/Object;");
+    code.iconst(slot);
+    code.op(AALOAD);
+    code.local(ASTORE, ref(depth));
+
+    depth++;
+  }
+
+  //add(int)
+  private void add(int end) {
+    int a = depth - 2;
+    int b = depth - 1;
+    Label strings = new Label();
+    Label done = new Label();
+
+    code.local(LLOAD, bits(a));
+    code.invoke(INVOKESTATIC, VALUE, "isNumber", "(J)Z");
+    code.jump(IFEQ, strings);
+    code.local(LLOAD, bits(b));
+    code.invoke(INVOKESTATIC, VALUE, "isNumber", "(J)Z");
+    code.jump(IFEQ, strings);
+
+    number(a);
+    number(b);
+    code.op(DADD);
+    code.invoke(INVOKESTATIC, VALUE, "number", "(D)J");
+    code.local(LSTORE, bits(a));
+    code.jump(GOTO, done);
+
+    code.place(strings);
+    load(a);
+    load(b);
+    runtime("add", "(J" + OBJECT + "J" + OBJECT + ")" + OBJECT);
+    code.local(ASTORE, SCRATCH);
+    code.local(ALOAD, SCRATCH);
+    code.jump(IFNULL, stub(end, "Operands must be two numbers or two strings."));
+    code.lconst(Value.OBJ);
+    code.local(LSTORE, bits(a));
+    code.local(ALOAD, SCRATCH);
+    code.local(ASTORE, ref(a));
+
+    code.place(done);
+
+    depth--;
+  }
+
+  //arithmetic(int, int)
+  private void arithmetic(int opCode, int end) {
+    int a = depth - 2;
+    int b = depth - 1;
+
+    checkNumbers(a, b, end);
+
+    number(a);
+    number(b);
+    code.op(opCode);
+    code.invoke(INVOKESTATIC, VALUE, "number", "(D)J");
+    code.local(LSTORE, bits(a));
+
+    depth--;
+  }
+
+  //compare(int, int, int)
+  private void compare(int opCode, int ifFalse, int end) {
+    //opCode is the DCMP variant that makes NaN compare false
+    int a = depth - 2;
+    int b = depth - 1;
+
+    checkNumbers(a, b, end);
+
+    number(a);
+    number(b);
+    code.op(opCode);
+    bool(ifFalse, a);
+
+    depth--;
+  }
+
+  //checkNumbers(int, int, int)
+  protected void checkNumbers(int a, int b, int end) {
+    Label error = stub(end, "Operands must be two numbers.");
+
+    code.local(LLOAD, bits(a));
+    code.invoke(INVOKESTATIC, VALUE, "isNumber", "(J)Z");
+    code.jump(IFEQ, error);
+    code.local(LLOAD, bits(b));
+    code.invoke(INVOKESTATIC, VALUE, "isNumber", "(J)Z");
+    code.jump(IFEQ, error);
+  }
+
+  //checkNumber(int, int, String)
+  private void checkNumber(int slot, int end, String message) {
+    code.local(LLOAD, bits(slot));
+    code.invoke(INVOKESTATIC, VALUE, "isNumber", "(J)Z");
+    code.jump(IFEQ, stub(end, message));
+  }
+
+  //call(int, int)
+  private void call(int argCount, int end) {
+    int first = depth - argCount - 1;
+
+    spill(first, argCount + 1, end);
+
+    code.local(ALOAD, VM);
+    load(first);
+    index(first);
+    code.iconst(argCount);
+    runtime("enter", "(Lvm/VM;J" + OBJECT + "II)Lvm/CompiledCode;");
+
+    dispatch(first, () -> {
+      code.local(ALOAD, VM);
+      code.iconst(argCount);
+      runtime("call", "(Lvm/VM;I)Z");
+    });
+  }
+
+  //dispatch(int, Runnable)
+  protected void dispatch(int first, Runnable general) {
+    //Finish a call, given the callee's code as returned by one of
+    //the JitRuntime.enter methods.  If it is compiled its frame is
+    //pushed, and it is run (see JitRuntime.run()); otherwise
+    //general emits the slow path.
+    Label slow = new Label();
+    Label done = new Label();
+
+    code.local(ASTORE, SCRATCH);
+    code.local(ALOAD, SCRATCH);
+    code.jump(IFNULL, slow);
+
+    code.local(ALOAD, VM);
+    code.local(ALOAD, SCRATCH);
+    code.type(CHECKCAST, "vm/CompiledCode");
+    index(first);
+    runtime("run", "(Lvm/VM;Lvm/CompiledCode;I)Z");
+    code.jump(IFEQ, failed);
+    code.jump(GOTO, done);
+
+    code.place(slow);
+    general.run();
+    code.jump(IFEQ, failed);
+
+    code.place(done);
+
+    result(first);
+  }
+
+  //spill(int, int, int)
+  protected void spill(int first, int count, int end) {
+    //Store slots first..first+count-1 to vStack and make them its
+    //top, with the frame resuming after this instruction.
+    for (int slot = first; slot < first + count; slot++) {
+      code.local(ALOAD, VM);
+      index(slot);
+      load(slot);
+      runtime("store", "(Lvm/VM;IJ" + OBJECT + ")V");
+    }
+
+    code.local(ALOAD, VM);
+    index(first + count);
+    code.iconst(end);
+    runtime("spill", "(Lvm/VM;II)V");
+  }
+
+  //result(int)
+  protected void result(int slot) {
+    //the VM has left the result in vStack at slot
+    unspill(slot);
+
+    depth = slot + 1;
+  }
+
+  //unspill(int)
+  protected void unspill(int slot) {
+    code.local(ALOAD, VM);
+    index(slot);
+    runtime("bits", "(Lvm/VM;I)J");
+    code.local(LSTORE, bits(slot));
+
+    code.local(ALOAD, VM);
+    index(slot);
+    runtime("ref", "(Lvm/VM;I)" + OBJECT);
+    code.local(ASTORE, ref(slot));
+  }
+
+  //index(int)
+  protected void index(int slot) {
+    //the vStack index of a stack slot: base + slot
+    code.local(ILOAD, BASE);
+
+    if (slot != 0) {
+      code.iconst(slot);
+      code.op(IADD);
+    }
+  }
+
+  //storeBoxed(int)
+  private void storeBoxed(int slot) {
+    //a boxed value returned by JitRuntime, or FAILED
+    code.local(ASTORE, SCRATCH);
+    code.local(ALOAD, SCRATCH);
+    code.field(GETSTATIC, RUNTIME, "FAILED", OBJECT);
+    code.jump(IF_ACMPEQ, failed);
+
+    code.local(ALOAD, SCRATCH);
+    storeValue(slot);
+  }
+
+  //storeValue(int)
+  protected void storeValue(int slot) {
+    //a boxed value
+    code.local(ASTORE, SCRATCH);
+    code.local(ALOAD, SCRATCH);
+    code.invoke(INVOKESTATIC, VALUE, "bits", "(" + OBJECT + ")J");
+    code.local(LSTORE, bits(slot));
+    code.local(ALOAD, SCRATCH);
+    code.local(ASTORE, ref(slot));
+  }
+
+  //stub(int, String)
+  private Label stub(int end, String message) {
+    //an out-of-line path reporting a runtime error
+    Label label = new Label();
+
+    stubs.add(() -> {
+      code.place(label);
+      code.local(ALOAD, VM);
+      code.iconst(end);
+      code.sconst(message);
+      runtime("error", "(Lvm/VM;ILjava/lang/String;)Z");
+      code.op(IRETURN);
+    });
+
+    return label;
+  }
+
+  //exit(int)
+  private Label exit(int ip) {
+    //an out-of-line path handing the frame back to the interpreter
+    //at ip, from loop code
+    Label label = new Label();
+    int top = depth;
+
+    stubs.add(() -> {
+      code.place(label);
+      spill(0, top, ip);
+      code.iconst(1);
+      code.op(IRETURN);
+    });
+
+    return label;
+  }
+
+  //bool(int, int)
+  protected void bool(int ifFalse, int slot) {
+    //branch on a JVM condition to store true or false
+    Label isFalse = new Label();
+    Label done = new Label();
+
+    code.jump(ifFalse, isFalse);
+    code.lconst(Value.TRUE);
+    code.local(LSTORE, bits(slot));
+    code.jump(GOTO, done);
+
+    code.place(isFalse);
+    code.lconst(Value.FALSE);
+    code.local(LSTORE, bits(slot));
+
+    code.place(done);
+  }
+
+  //jump(int, int)
+  private void jump(int opCode, int target) {
+    if (target < first || target >= last) {
+      code.jump(opCode, exit(target));
+
+      return;
+    }
+
+    targets.jump(target, depth);
+    code.jump(opCode, targets.label(target));
+  }
+
+  //pushBits(long)
+  private void pushBits(long bits) {
+    code.lconst(bits);
+    code.local(LSTORE, bits(depth++));
+  }
+
+  //number(int)
+  protected void number(int slot) {
+    code.local(LLOAD, bits(slot));
+    code.invoke(INVOKESTATIC, VALUE, "asNumber", "(J)D");
+  }
+
+  //data(Object, String)
+  protected void data(Object object, String type) {
+    //load an object from the data array, cast to type
+    int index = 0;
+
+    while (index < data.size() && data.get(index) != object)
+      index++;
+
+    if (index == data.size())
+      data.add(object);
+
+    code.local(ALOAD, 0);
+    code.field(GETFIELD, className, "data", DATA);
+    code.iconst(index);
+    code.op(AALOAD);
+    code.type(CHECKCAST, type);
+  }
+
+  //constant(int)
+  protected void constant(int index) {
+    code.local(ALOAD, CONSTANTS);
+    code.iconst(index);
+    code.op(AALOAD);
+  }
+
+  //load(int)
+  protected void load(int slot) {
+    code.local(LLOAD, bits(slot));
+    code.local(ALOAD, ref(slot));
+  }
+
+  //copy(int, int)
+  protected void copy(int from, int to) {
+    load(from);
+    code.local(ASTORE, ref(to));
+    code.local(LSTORE, bits(to));
+  }
+
+  //runtime(String, String)
+  protected void runtime(String name, String descriptor) {
+    code.invoke(INVOKESTATIC, RUNTIME, name, descriptor);
+  }
+
+  //bits(int)
+  protected static int bits(int slot) {
+    return FIRST_SLOT + 3 * slot;
+  }
+
+  //ref(int)
+  protected static int ref(int slot) {
+    return FIRST_SLOT + 3 * slot + 2;
+  }
+
+  //word(int)
+  protected int word(int at) {
+    return ((chunk.codes()[at] & 0xFF) << 8) | (chunk.codes()[at + 1] & 0xFF);
+  }
+}
@@ -0,0 +1,285 @@
+package jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Just enough of the JVM class file format to write the classes the
+//JIT generates: a constant pool, interfaces, and methods with a Code
+//attribute, and fields.  Classes are written as version 49, which the JVM
+//verifies by type inference, so no StackMapTable is needed.
+public class ClassFile {
+  public static final int ACC_PUBLIC  = 0x0001;
+  public static final int ACC_PRIVATE = 0x0002;
+  public static final int ACC_STATIC  = 0x0008;
+  public static final int ACC_FINAL   = 0x0010;
+  public static final int ACC_SUPER   = 0x0020;
+
+  private static final int VERSION = 49;
+
+  //Constant pool tags
+  private static final int CONSTANT_UTF8               = 1;
+  private static final int CONSTANT_INTEGER            = 3;
+  private static final int CONSTANT_LONG               = 5;
+  private static final int CONSTANT_CLASS              = 7;
+  private static final int CONSTANT_STRING             = 8;
+  private static final int CONSTANT_FIELDREF           = 9;
+  private static final int CONSTANT_METHODREF          = 10;
+  private static final int CONSTANT_INTERFACEMETHODREF = 11;
+  private static final int CONSTANT_NAMEANDTYPE        = 12;
+
+  private ByteArrayOutputStream pool;
+  private DataOutputStream poolOut;
+  private Map<String, Integer> poolIndexes; //dedups pool entries
+  private int poolCount;
+  private int thisClass;
+  private int superClass;
+  private List<Integer> interfaces;
+  private List<int[]> fields; //{ access, name, descriptor }
+  private List<byte[]> methods;
+
+  //ClassFile(String, String)
+  public ClassFile(String name, String superName) {
+    pool = new ByteArrayOutputStream();
+    poolOut = new DataOutputStream(pool);
+    poolIndexes = new HashMap<>();
+    poolCount = 1; //entry 0 is unused
+    interfaces = new ArrayList<>();
+    fields = new ArrayList<>();
+    methods = new ArrayList<>();
+
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+  }
+
+  //addInterface(String)
+  public void addInterface(String name) {
+    interfaces.add(classRef(name));
+  }
+
+  //utf8(String)
+  public int utf8(String s) {
+    Integer index = poolIndexes.get("U" + s);
+
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.writeByte(CONSTANT_UTF8);
+      poolOut.writeUTF(s);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return entry("U" + s, 1);
+  }
+
+  //classRef(String)
+  public int classRef(String name) {
+    return ref("C" + name, CONSTANT_CLASS, utf8(name));
+  }
+
+  //string(String)
+  public int string(String s) {
+    return ref("S" + s, CONSTANT_STRING, utf8(s));
+  }
+
+  //integer(int)
+  public int integer(int i) {
+    Integer index = poolIndexes.get("I" + i);
+
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.writeByte(CONSTANT_INTEGER);
+      poolOut.writeInt(i);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return entry("I" + i, 1);
+  }
+
+  //longConstant(long)
+  public int longConstant(long l) {
+    Integer index = poolIndexes.get("J" + l);
+
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.writeByte(CONSTANT_LONG);
+      poolOut.writeLong(l);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return entry("J" + l, 2); //longs take two pool slots
+  }
+
+  //fieldRef(String, String, String)
+  public int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  //methodRef(String, String, String)
+  public int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  //interfaceMethodRef(String, String, String)
+  public int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_INTERFACEMETHODREF, owner, name, descriptor);
+  }
+
+  //addField(int, String, String)
+  public void addField(int access, String name, String descriptor) {
+    fields.add(new int[] { access, utf8(name), utf8(descriptor) });
+  }
+
+  //addMethod(int, String, String, Code)
+  public void addMethod(int access, String name, String descriptor, Code code) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    byte[] body = code.bytes();
+
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(1); //attributes: Code
+
+      out.writeShort(utf8("Code"));
+      out.writeInt(12 + body.length);
+      out.writeShort(code.maxStack());
+      out.writeShort(code.maxLocals());
+      out.writeInt(body.length);
+      out.write(body);
+      out.writeShort(0); //exception table
+      out.writeShort(0); //attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    methods.add(bytes.toByteArray());
+  }
+
+  //toBytes()
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); //minor version
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      out.write(pool.toByteArray());
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+
+      out.writeShort(interfaces.size());
+
+      for (int i : interfaces)
+        out.writeShort(i);
+
+      out.writeShort(fields.size());
+
+      for (int[] field : fields) {
+        out.writeShort(field[0]);
+        out.writeShort(field[1]);
+        out.writeShort(field[2]);
+        out.writeShort(0); //attributes
+      }
+
+      out.writeShort(methods.size());
+
+      for (byte[] method : methods)
+        out.write(method);
+
+      out.writeShort(0); //attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  //memberRef(int, String, String, String)
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    String key = "M" + tag + owner + "." + name + descriptor;
+    Integer index = poolIndexes.get(key);
+
+    if (index != null)
+      return index;
+
+    int ownerIndex = classRef(owner);
+    int nameAndType = ref2(
+      "N" + name + descriptor, CONSTANT_NAMEANDTYPE, utf8(name), utf8(descriptor)
+    );
+
+    try {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(ownerIndex);
+      poolOut.writeShort(nameAndType);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return entry(key, 1);
+  }
+
+  //ref(String, int, int)
+  private int ref(String key, int tag, int target) {
+    Integer index = poolIndexes.get(key);
+
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(target);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return entry(key, 1);
+  }
+
+  //ref2(String, int, int, int)
+  private int ref2(String key, int tag, int first, int second) {
+    Integer index = poolIndexes.get(key);
+
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(first);
+      poolOut.writeShort(second);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return entry(key, 1);
+  }
+
+  //entry(String, int)
+  private int entry(String key, int slots) {
+    int index = poolCount;
+
+    if (index + slots > 0xFFFF)
+      throw new IllegalStateException("Constant pool overflow.");
+
+    poolIndexes.put(key, index);
+    poolCount += slots;
+
+    return index;
+  }
+}
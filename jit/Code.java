@@ -0,0 +1,373 @@
+package jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Assembles one method body.  Tracks operand stack depth and the
+//locals used as it goes, to compute max_stack and max_locals, and
+//resolves branches to Labels once the code is complete.  Branches
+//are 16 bits; a method too big for them is refused
+//(IllegalStateException) rather than widened.
+public class Code {
+  //JVM opcodes used by the JIT
+  public static final int ACONST_NULL     = 0x01;
+  public static final int ICONST_0        = 0x03;
+  public static final int LCONST_0        = 0x09;
+  public static final int BIPUSH          = 0x10;
+  public static final int SIPUSH          = 0x11;
+  public static final int LDC_W           = 0x13;
+  public static final int LDC2_W          = 0x14;
+  public static final int ILOAD           = 0x15;
+  public static final int LLOAD           = 0x16;
+  public static final int DLOAD           = 0x18;
+  public static final int ALOAD           = 0x19;
+  public static final int LALOAD          = 0x2F;
+  public static final int AALOAD          = 0x32;
+  public static final int ISTORE          = 0x36;
+  public static final int LSTORE          = 0x37;
+  public static final int DSTORE          = 0x39;
+  public static final int ASTORE          = 0x3A;
+  public static final int LASTORE         = 0x50;
+  public static final int AASTORE         = 0x53;
+  public static final int POP             = 0x57;
+  public static final int POP2            = 0x58;
+  public static final int DUP             = 0x59;
+  public static final int DUP2            = 0x5C;
+  public static final int IADD            = 0x60;
+  public static final int DADD            = 0x63;
+  public static final int ISUB            = 0x64;
+  public static final int DSUB            = 0x67;
+  public static final int DMUL            = 0x6B;
+  public static final int DDIV            = 0x6F;
+  public static final int DNEG            = 0x77;
+  public static final int LCMP            = 0x94;
+  public static final int DCMPL           = 0x97;
+  public static final int DCMPG           = 0x98;
+  public static final int IFEQ            = 0x99;
+  public static final int IFNE            = 0x9A;
+  public static final int IFLT            = 0x9B;
+  public static final int IFGE            = 0x9C;
+  public static final int IFGT            = 0x9D;
+  public static final int IFLE            = 0x9E;
+  public static final int IF_ICMPEQ       = 0x9F;
+  public static final int IF_ICMPNE       = 0xA0;
+  public static final int IF_ICMPLT       = 0xA1;
+  public static final int IF_ICMPGE       = 0xA2;
+  public static final int IF_ACMPEQ       = 0xA5;
+  public static final int IF_ACMPNE       = 0xA6;
+  public static final int GOTO            = 0xA7;
+  public static final int IRETURN         = 0xAC;
+  public static final int RETURN          = 0xB1;
+  public static final int GETSTATIC       = 0xB2;
+  public static final int GETFIELD        = 0xB4;
+  public static final int PUTFIELD        = 0xB5;
+  public static final int INVOKEVIRTUAL   = 0xB6;
+  public static final int INVOKESPECIAL   = 0xB7;
+  public static final int INVOKESTATIC    = 0xB8;
+  public static final int INVOKEINTERFACE = 0xB9;
+  public static final int CHECKCAST       = 0xC0;
+  public static final int INSTANCEOF      = 0xC1;
+  public static final int IFNULL          = 0xC6;
+  public static final int IFNONNULL       = 0xC7;
+  public static final int WIDE            = 0xC4;
+
+  //Label
+  public static class Label {
+    private int offset = -1;
+  }
+
+  private ClassFile classFile;
+  private byte[] code;
+  private int count;
+  private int stack;
+  private int maxStack;
+  private int maxLocals;
+  private List<Object[]> fixups; //{ Label, branch offset, operand offset }
+
+  //Code(ClassFile, int)
+  public Code(ClassFile classFile, int maxLocals) {
+    this.classFile = classFile;
+    this.maxLocals = maxLocals;
+
+    code = new byte[256];
+    fixups = new ArrayList<>();
+  }
+
+  //maxStack()
+  public int maxStack() {
+    return maxStack;
+  }
+
+  //maxLocals()
+  public int maxLocals() {
+    return maxLocals;
+  }
+
+  //bytes()
+  public byte[] bytes() {
+    for (Object[] fixup : fixups) {
+      Label label = (Label)fixup[0];
+      int from = (int)fixup[1];
+      int at = (int)fixup[2];
+
+      if (label.offset == -1)
+        throw new IllegalStateException("Branch to unplaced label.");
+
+      int distance = label.offset - from;
+
+      if (distance != (short)distance)
+        throw new IllegalStateException("Branch too far.");
+
+      code[at] = (byte)(distance >> 8);
+      code[at + 1] = (byte)distance;
+    }
+
+    if (count > 0xFFFF)
+      throw new IllegalStateException("Method too large.");
+
+    return Arrays.copyOf(code, count);
+  }
+
+  //op(int)
+  public void op(int opCode) {
+    emit(opCode);
+
+    adjust(delta(opCode));
+  }
+
+  //iconst(int)
+  public void iconst(int i) {
+    if (i >= -1 && i <= 5)
+      emit(ICONST_0 + i);
+    else if (i == (byte)i) {
+      emit(BIPUSH);
+      emit(i);
+    } else if (i == (short)i) {
+      emit(SIPUSH);
+      emit16(i);
+    } else {
+      emit(LDC_W);
+      emit16(classFile.integer(i));
+    }
+
+    adjust(1);
+  }
+
+  //lconst(long)
+  public void lconst(long l) {
+    if (l == 0)
+      emit(LCONST_0);
+    else {
+      emit(LDC2_W);
+      emit16(classFile.longConstant(l));
+    }
+
+    adjust(2);
+  }
+
+  //sconst(String)
+  public void sconst(String s) {
+    emit(LDC_W);
+    emit16(classFile.string(s));
+
+    adjust(1);
+  }
+
+  //local(int, int)
+  public void local(int opCode, int index) {
+    //xLOAD and xSTORE with an explicit index
+    int size = (opCode == LLOAD || opCode == LSTORE || opCode == DLOAD || opCode == DSTORE) ? 2 : 1;
+
+    if (index + size > maxLocals)
+      maxLocals = index + size;
+
+    if (index > 0xFF) {
+      emit(WIDE);
+      emit(opCode);
+      emit16(index);
+    } else {
+      emit(opCode);
+      emit(index);
+    }
+
+    adjust(delta(opCode));
+  }
+
+  //field(int, String, String, String)
+  public void field(int opCode, String owner, String name, String descriptor) {
+    emit(opCode);
+    emit16(classFile.fieldRef(owner, name, descriptor));
+
+    int size = size(descriptor.charAt(0));
+
+    switch (opCode) {
+      case GETSTATIC:
+        adjust(size);
+
+        break;
+      case GETFIELD:
+        adjust(size - 1);
+
+        break;
+      default: //PUTFIELD
+        adjust(-size - 1);
+    }
+  }
+
+  //invoke(int, String, String, String)
+  public void invoke(int opCode, String owner, String name, String descriptor) {
+    int args = argumentSlots(descriptor);
+    int result = size(descriptor.charAt(descriptor.indexOf(')') + 1));
+
+    if (opCode == INVOKEINTERFACE) {
+      emit(opCode);
+      emit16(classFile.interfaceMethodRef(owner, name, descriptor));
+      emit(args + 1);
+      emit(0);
+    } else {
+      emit(opCode);
+      emit16(classFile.methodRef(owner, name, descriptor));
+    }
+
+    adjust(result - args - (opCode == INVOKESTATIC ? 0 : 1));
+  }
+
+  //type(int, String)
+  public void type(int opCode, String className) {
+    //CHECKCAST or INSTANCEOF
+    emit(opCode);
+    emit16(classFile.classRef(className));
+  }
+
+  //jump(int, Label)
+  public void jump(int opCode, Label label) {
+    int from = count;
+
+    emit(opCode);
+
+    fixups.add(new Object[] { label, from, count });
+
+    emit16(0);
+
+    adjust(delta(opCode));
+  }
+
+  //place(Label)
+  public void place(Label label) {
+    label.offset = count;
+  }
+
+  //emit(int)
+  private void emit(int b) {
+    if (count == code.length)
+      code = Arrays.copyOf(code, count * 2);
+
+    code[count++] = (byte)b;
+  }
+
+  //emit16(int)
+  private void emit16(int s) {
+    emit(s >> 8);
+    emit(s);
+  }
+
+  //adjust(int)
+  private void adjust(int delta) {
+    stack += delta;
+
+    if (stack > maxStack)
+      maxStack = stack;
+  }
+
+  //delta(int)
+  private static int delta(int opCode) {
+    switch (opCode) {
+      case ACONST_NULL:
+      case ILOAD:
+      case ALOAD:
+      case DUP:
+        return 1;
+      case LLOAD:
+      case DLOAD:
+      case DUP2:
+        return 2;
+      case LALOAD:
+      case DNEG:
+      case GOTO:
+      case RETURN:
+        return 0;
+      case AALOAD:
+      case ISTORE:
+      case ASTORE:
+      case POP:
+      case IADD:
+      case ISUB:
+      case IFEQ:
+      case IFNE:
+      case IFLT:
+      case IFGE:
+      case IFGT:
+      case IFLE:
+      case IFNULL:
+      case IFNONNULL:
+      case IRETURN:
+        return -1;
+      case LSTORE:
+      case DSTORE:
+      case POP2:
+      case DADD:
+      case DSUB:
+      case DMUL:
+      case DDIV:
+      case IF_ICMPEQ:
+      case IF_ICMPNE:
+      case IF_ICMPLT:
+      case IF_ICMPGE:
+      case IF_ACMPEQ:
+      case IF_ACMPNE:
+        return -2;
+      case AASTORE:
+      case LCMP:
+      case DCMPL:
+      case DCMPG:
+        return -3;
+      case LASTORE:
+        return -4;
+      default:
+        throw new IllegalStateException("No stack effect for JVM opcode " + opCode + ".");
+    }
+  }
+
+  //argumentSlots(String)
+  private static int argumentSlots(String descriptor) {
+    int slots = 0;
+
+    for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+      char c = descriptor.charAt(i);
+
+      slots += size(c);
+
+      while (c == '[')
+        c = descriptor.charAt(++i);
+
+      if (c == 'L')
+        i = descriptor.indexOf(';', i);
+    }
+
+    return slots;
+  }
+
+  //size(char)
+  private static int size(char type) {
+    switch (type) {
+      case 'V':
+        return 0;
+      case 'J':
+      case 'D':
+        return 2;
+      default:
+        return 1;
+    }
+  }
+}
@@ -0,0 +1,433 @@
+package jit;
+
+import java.util.Arrays;
+
+import compiler.Function;
+import vm.FunctionState;
+import vm.GlobalCache;
+import vm.InvokeCache;
+import vm.PropertyCache;
+import vm.Value;
+
+import static compiler.OpCode.*;
+import static jit.Code.*;
+
+//The optimizing tier.  Compiles a function that has stayed hot in
+//baseline code, specializing each instruction to what the
+//interpreter saw it do there: a quickened arithmetic instruction
+//becomes bare double arithmetic, a string OP_ADD a direct concat,
+//and a monomorphic property, invoke or constant-global cache a
+//guard followed by the field access, the call to the one method, or
+//the value itself.  Guards don't fall back to a slow path; they
+//deoptimize, writing the frame's slots back to vStack and finishing
+//the frame in the interpreter from the start of the instruction
+//(see JitRuntime.deoptimize()).  A site that has deoptimized stays
+//generic when the function is next optimized.
+//
+//Slots known to hold numbers (numeric constants, arithmetic results,
+//and locals last set from either) are tracked through straight-line
+//code, and arithmetic on them needs no guard at all.  Knowledge is
+//dropped at jump targets.
+public class OptimizingCompiler extends BaselineCompiler {
+  private static final String INSTANCE = "vm/LoxInstance";
+
+  private boolean[] isNumber; //by stack slot
+
+  //OptimizingCompiler(Function)
+  public OptimizingCompiler(Function function) {
+    super(function);
+
+    isNumber = new boolean[8];
+  }
+
+  //label(int)
+  @Override
+  protected void label(int offset) {
+    super.label(offset);
+
+    Arrays.fill(isNumber, false);
+  }
+
+  //instruction(byte, int, int)
+  @Override
+  protected void instruction(byte opCode, int at, int end) {
+    //the quickened form is feedback only for a whole instruction
+    //whose speculation hasn't failed before
+    byte quickened = (isFused || FunctionState.of(function).isUnstable(offset)) ? opCode : chunk.codes()[offset];
+    int before = depth;
+
+    switch (opCode) {
+      case OP_CONSTANT:
+        super.instruction(opCode, at, end);
+
+        setNumber(before, chunk.constants()[word(at)] instanceof Double);
+
+        return;
+      case OP_GET_LOCAL:
+        super.instruction(opCode, at, end);
+
+        setNumber(before, isNumber(word(at)));
+
+        return;
+      case OP_SET_LOCAL:
+        super.instruction(opCode, at, end);
+
+        setNumber(word(at), isNumber(before - 1));
+
+        return;
+      case OP_POP:
+        super.instruction(opCode, at, end);
+
+        return;
+      case OP_ADD:
+        if (quickened == OP_ADD_STR) {
+          addStrings();
+
+          return;
+        }
+
+        if (arithmetic(DADD, quickened == OP_ADD_NUM))
+          return;
+
+        break;
+      case OP_SUBTRACT:
+        if (arithmetic(DSUB, quickened == OP_SUBTRACT_NUM))
+          return;
+
+        break;
+      case OP_MULTIPLY:
+        if (arithmetic(DMUL, quickened == OP_MULTIPLY_NUM))
+          return;
+
+        break;
+      case OP_DIVIDE:
+        if (arithmetic(DDIV, quickened == OP_DIVIDE_NUM))
+          return;
+
+        break;
+      case OP_GREATER:
+        if (compare(DCMPL, IFLE, quickened == OP_GREATER_NUM))
+          return;
+
+        break;
+      case OP_LESS:
+        if (compare(DCMPG, IFGE, quickened == OP_LESS_NUM))
+          return;
+
+        break;
+      case OP_NEGATE:
+        if (isNumber(before - 1)) {
+          number(before - 1);
+          code.op(DNEG);
+          code.invoke(INVOKESTATIC, VALUE, "number", "(D)J");
+          code.local(LSTORE, bits(before - 1));
+
+          return;
+        }
+
+        break;
+      case OP_GET_GLOBAL:
+        if (quickened == OP_GET_GLOBAL_CACHED && getGlobal())
+          return;
+
+        break;
+      case OP_GET_PROPERTY:
+        if (quickened == OP_GET_PROPERTY_CACHED && getProperty())
+          return;
+
+        break;
+      case OP_SET_PROPERTY:
+        if (quickened == OP_SET_PROPERTY_CACHED && setProperty())
+          return;
+
+        break;
+      case OP_INVOKE:
+        if (quickened == OP_INVOKE_CACHED && invoke(chunk.codes()[at + 2] & 0xFF, end))
+          return;
+
+        break;
+    }
+
+    super.instruction(opCode, at, end);
+
+    //whatever it left on top is unknown
+    if (depth > 0)
+      setNumber(depth - 1, false);
+  }
+
+  //arithmetic(int, boolean)
+  private boolean arithmetic(int opCode, boolean speculate) {
+    int a = depth - 2;
+    int b = depth - 1;
+
+    if (!numbers(a, b, speculate))
+      return false;
+
+    number(a);
+    number(b);
+    code.op(opCode);
+    code.invoke(INVOKESTATIC, VALUE, "number", "(D)J");
+    code.local(LSTORE, bits(a));
+
+    setNumber(a, true);
+
+    depth--;
+
+    return true;
+  }
+
+  //compare(int, int, boolean)
+  private boolean compare(int opCode, int ifFalse, boolean speculate) {
+    int a = depth - 2;
+    int b = depth - 1;
+
+    if (!numbers(a, b, speculate))
+      return false;
+
+    number(a);
+    number(b);
+    code.op(opCode);
+    bool(ifFalse, a);
+
+    setNumber(a, false);
+
+    depth--;
+
+    return true;
+  }
+
+  //numbers(int, int, boolean)
+  private boolean numbers(int a, int b, boolean speculate) {
+    //Whether a and b can be taken to be numbers: known to be, or
+    //guarded to be if the site has only seen numbers.
+    if (isNumber(a) && isNumber(b))
+      return true;
+
+    if (!speculate)
+      return false;
+
+    Label deopt = deopt();
+
+    for (int slot : new int[] { a, b })
+      if (!isNumber(slot)) {
+        code.local(LLOAD, bits(slot));
+        code.invoke(INVOKESTATIC, VALUE, "isNumber", "(J)Z");
+        code.jump(IFEQ, deopt);
+      }
+
+    return true;
+  }
+
+  //addStrings()
+  private void addStrings() {
+    int a = depth - 2;
+    int b = depth - 1;
+    Label deopt = deopt();
+
+    for (int slot : new int[] { a, b }) {
+      load(slot);
+      runtime("isString", "(J" + OBJECT + ")Z");
+      code.jump(IFEQ, deopt);
+    }
+
+    code.local(ALOAD, ref(a));
+    code.type(CHECKCAST, "vm/LoxString");
+    code.local(ALOAD, ref(b));
+    code.type(CHECKCAST, "vm/LoxString");
+    code.invoke(INVOKEVIRTUAL, "vm/LoxString", "concat", "(Lvm/LoxString;)Lvm/LoxString;");
+    code.local(ASTORE, ref(a));
+
+    code.lconst(Value.OBJ);
+    code.local(LSTORE, bits(a));
+
+    setNumber(a, false);
+
+    depth--;
+  }
+
+  //getGlobal()
+  private boolean getGlobal() {
+    //a constant global: the value the cache holds, while it's valid
+    GlobalCache cache = (GlobalCache)chunk.inlineCache(offset);
+
+    data(cache, "vm/GlobalCache");
+    code.local(ALOAD, VM);
+    code.field(GETFIELD, "vm/VM", "globals", "Lvm/GlobalTable;");
+    code.invoke(INVOKEVIRTUAL, "vm/GlobalCache", "isValid", "(Lvm/GlobalTable;)Z");
+    code.jump(IFEQ, deopt());
+
+    code.lconst(cache.bits());
+    code.local(LSTORE, bits(depth));
+
+    if (cache.bits() == Value.OBJ) {
+      data(cache.ref(), "java/lang/Object");
+
+      code.local(ASTORE, ref(depth));
+    }
+
+    setNumber(depth, Value.isNumber(cache.bits()));
+
+    depth++;
+
+    return true;
+  }
+
+  //getProperty()
+  private boolean getProperty() {
+    PropertyCache cache = (PropertyCache)chunk.inlineCache(offset);
+    int top = depth - 1;
+
+    if (cache.count() != 1)
+      return false;
+
+    guardShape(top, cache);
+
+    code.local(ALOAD, ref(top));
+    code.type(CHECKCAST, INSTANCE);
+    code.iconst(cache.slot(0));
+    code.invoke(INVOKEVIRTUAL, INSTANCE, "field", "(I)" + OBJECT);
+    storeValue(top);
+
+    setNumber(top, false);
+
+    return true;
+  }
+
+  //setProperty()
+  private boolean setProperty() {
+    PropertyCache cache = (PropertyCache)chunk.inlineCache(offset);
+    int top = depth - 1;
+
+    if (cache.count() != 1)
+      return false;
+
+    guardShape(top - 1, cache);
+
+    code.local(ALOAD, ref(top - 1));
+    code.type(CHECKCAST, INSTANCE);
+
+    //a store that adds the field moves the instance to target
+    if (cache.target(0) == cache.shape(0)) {
+      code.iconst(cache.slot(0));
+      box(top);
+      code.invoke(INVOKEVIRTUAL, INSTANCE, "setField", "(I" + OBJECT + ")V");
+    } else {
+      data(cache.target(0), "vm/Shape");
+      code.iconst(cache.slot(0));
+      box(top);
+      code.invoke(INVOKEVIRTUAL, INSTANCE, "addField", "(Lvm/Shape;I" + OBJECT + ")V");
+    }
+
+    //the value replaces the instance
+    copy(top, top - 1);
+
+    setNumber(top - 1, isNumber(top));
+
+    depth--;
+
+    return true;
+  }
+
+  //invoke(int, int)
+  private boolean invoke(int argCount, int end) {
+    //The receiver's class, shape and class version are the ones
+    //seen, so the method is the one the cache resolved.
+    InvokeCache cache = (InvokeCache)chunk.inlineCache(offset);
+    int first = depth - argCount - 1;
+
+    if (cache.count() != 1)
+      return false;
+
+    Label deopt = deopt();
+
+    load(first);
+    runtime("shapeOf", "(J" + OBJECT + ")Lvm/Shape;");
+    data(cache.shape(0), "vm/Shape");
+    code.jump(IF_ACMPNE, deopt);
+
+    code.local(ALOAD, ref(first));
+    code.type(CHECKCAST, INSTANCE);
+    code.invoke(INVOKEVIRTUAL, INSTANCE, "klass", "()Lvm/LoxClass;");
+    data(cache.klass(0), "vm/LoxClass");
+    code.jump(IF_ACMPNE, deopt);
+
+    data(cache.klass(0), "vm/LoxClass");
+    code.invoke(INVOKEVIRTUAL, "vm/LoxClass", "version", "()I");
+    code.iconst(cache.version(0));
+    code.jump(IF_ICMPNE, deopt);
+
+    spill(first, argCount + 1, end);
+
+    code.local(ALOAD, VM);
+    data(cache.method(0), "vm/Closure");
+    index(first);
+    code.iconst(argCount);
+    runtime("enterClosure", "(Lvm/VM;Lvm/Closure;II)Lvm/CompiledCode;");
+
+    dispatch(first, () -> {
+      code.local(ALOAD, VM);
+      data(cache.method(0), "vm/Closure");
+      code.iconst(argCount);
+      runtime("callClosure", "(Lvm/VM;Lvm/Closure;I)Z");
+    });
+
+    setNumber(first, false);
+
+    return true;
+  }
+
+  //guardShape(int, PropertyCache)
+  private void guardShape(int slot, PropertyCache cache) {
+    load(slot);
+    runtime("shapeOf", "(J" + OBJECT + ")Lvm/Shape;");
+    data(cache.shape(0), "vm/Shape");
+    code.jump(IF_ACMPNE, deopt());
+  }
+
+  //box(int)
+  private void box(int slot) {
+    load(slot);
+    code.invoke(INVOKESTATIC, VALUE, "box", "(J" + OBJECT + ")" + OBJECT);
+  }
+
+  //deopt()
+  private Label deopt() {
+    //An out-of-line exit to the interpreter for the instruction
+    //being translated, with the stack as it was before it.
+    Label label = new Label();
+    int ip = offset;
+    int top = startDepth;
+
+    stubs.add(() -> {
+      code.place(label);
+
+      for (int slot = 0; slot < top; slot++) {
+        code.local(ALOAD, VM);
+        index(slot);
+        load(slot);
+        runtime("store", "(Lvm/VM;IJ" + OBJECT + ")V");
+      }
+
+      code.local(ALOAD, VM);
+      index(top);
+      code.iconst(ip);
+      runtime("deoptimize", "(Lvm/VM;II)Z");
+      code.op(IRETURN);
+    });
+
+    return label;
+  }
+
+  //isNumber(int)
+  private boolean isNumber(int slot) {
+    return slot < isNumber.length && isNumber[slot];
+  }
+
+  //setNumber(int, boolean)
+  private void setNumber(int slot, boolean b) {
+    if (slot >= isNumber.length)
+      isNumber = Arrays.copyOf(isNumber, Math.max(isNumber.length * 2, slot + 1));
+
+    isNumber[slot] = b;
+  }
+}
@@ -0,0 +1,171 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import compiler.Function;
+import compiler.Image;
+import jit.BaselineCompiler;
+import vm.GlobalTable;
+
+//Compiles a script ahead of time into a jar that runs it with
+//java -jar (see AotMain).  The jar holds the script's image (see
+//compiler.Image), a class of baseline code for each function the
+//JIT can compile, the properties a run reads, and the runtime those
+//link against, copied from wherever this class was loaded.  Nothing
+//in the jar compiles: the scanner, parser and compiler are left
+//out, and so are the JIT's compilers, since a run's JIT is off and
+//only the baseline code in the jar is run, as are the register
+//engine, snapshots and the tools for measuring and debugging.  A
+//run never traces or prints debug output, whatever the machine that
+//wrote the jar was set to.
+public class Aot {
+  static final String IMAGE = "script.loxi";
+  static final String PROPS = "main/props";
+  static final String CLASS_PREFIX = "vm/Aot$"; //plus the function's index in the image
+
+  private static final String[] RUNTIME = { "compiler", "debug", "main", "nativefn", "vm" };
+  //classes in those packages a run never loads
+  private static final String[] COMPILE_TIME = {
+    "compiler/CodeCache", "compiler/Compiler", "compiler/CompilerClass", "compiler/CompilerLocals",
+    "compiler/Local", "compiler/RegisterChunk", "compiler/RegisterEmitter", "compiler/RegisterOpCode",
+    "compiler/Upvalue", "debug/OpcodeProfile", "debug/SuperinstructionProfiler",
+    "debug/ThroughputBenchmark", "main/Aot", "main/ExecutionService", "main/JBLox", "vm/Jit",
+    "vm/LoopCache", "vm/Profile", "vm/Program", "vm/RegisterVM", "vm/Snapshot", "vm/TreeCode",
+    "vm/TreeCompiler"
+  };
+  //the properties a run reads; debugging ones and JIT are left
+  //unset, so off
+  private static final String[] RUNTIME_PROPS = { "MAX_STACK", "MAX_FRAMES", "SUPERINSTRUCTIONS" };
+
+  private Props properties;
+
+  //Aot(Props)
+  public Aot(Props properties) {
+    this.properties = properties;
+  }
+
+  //write(Function, GlobalTable, String)
+  public void write(Function script, GlobalTable globals, String jarPath) throws IOException {
+    Manifest manifest = new Manifest();
+
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "main.AotMain");
+
+    try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarPath), manifest)) {
+      writeRuntime(jar);
+      writeClasses(script, jar);
+
+      ByteArrayOutputStream image = new ByteArrayOutputStream();
+
+      Image.write(script, globals, new DataOutputStream(image));
+
+      entry(jar, IMAGE, image.toByteArray());
+
+      ByteArrayOutputStream props = new ByteArrayOutputStream();
+
+      properties.write(props, RUNTIME_PROPS);
+
+      entry(jar, PROPS, props.toByteArray());
+    }
+  }
+
+  //writeClasses(Function, JarOutputStream)
+  private void writeClasses(Function script, JarOutputStream jar) throws IOException {
+    //The script itself defines things, which baseline code can't,
+    //and only runs once anyway; a function refused is interpreted.
+    List<Function> functions = Image.functions(script);
+
+    for (int index = 1; index < functions.size(); index++)
+      try {
+        String className = CLASS_PREFIX + index;
+
+        entry(jar, className + ".class", new BaselineCompiler(functions.get(index), className).compile());
+      } catch (IllegalStateException e) {
+        //left to be interpreted
+      }
+  }
+
+  //writeRuntime(JarOutputStream)
+  private void writeRuntime(JarOutputStream jar) throws IOException {
+    Path location;
+
+    try {
+      location = Paths.get(Aot.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException("Can't locate the runtime classes.", e);
+    }
+
+    //running from a jar, or from a directory of classes
+    if (Files.isRegularFile(location)) {
+      try (JarFile source = new JarFile(location.toFile())) {
+        Enumeration<JarEntry> entries = source.entries();
+
+        while (entries.hasMoreElements()) {
+          JarEntry entry = entries.nextElement();
+
+          if (isRuntime(entry.getName()))
+            try (InputStream in = source.getInputStream(entry)) {
+              entry(jar, entry.getName(), in.readAllBytes());
+            }
+        }
+      }
+
+      return;
+    }
+
+    for (String pkg : RUNTIME) {
+      Path dir = location.resolve(pkg);
+
+      if (!Files.isDirectory(dir))
+        continue;
+
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : (Iterable<Path>)files::iterator) {
+          String name = pkg + "/" + file.getFileName();
+
+          if (isRuntime(name))
+            entry(jar, name, Files.readAllBytes(file));
+        }
+      }
+    }
+  }
+
+  //isRuntime(String)
+  private static boolean isRuntime(String name) {
+    if (!name.endsWith(".class"))
+      return false;
+
+    for (String cls : COMPILE_TIME)
+      if (name.equals(cls + ".class") || name.startsWith(cls + "$"))
+        return false;
+
+    for (String pkg : RUNTIME)
+      if (name.startsWith(pkg + "/") && name.indexOf('/', pkg.length() + 1) == -1)
+        return true;
+
+    return false;
+  }
+
+  //entry(JarOutputStream, String, byte[])
+  private static void entry(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+    jar.putNextEntry(new JarEntry(name));
+    jar.write(bytes);
+    jar.closeEntry();
+  }
+}
@@ -0,0 +1,74 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import compiler.Function;
+import compiler.Image;
+import debug.Debugger;
+import vm.CompiledCode;
+import vm.FunctionState;
+import vm.VM;
+
+//The entry point of a jar written by Aot: reads the script's image
+//into a VM, gives each function its class of baseline code, if it
+//has one, and runs the script.  Exit codes are those of JBLox.
+public class AotMain {
+  //main(String[])
+  public static void main(String[] args) {
+    Props properties = new Props(resource(Aot.PROPS));
+    VM vm = new VM(properties, new Debugger(properties));
+    Function script;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(resource(Aot.IMAGE)))) {
+      script = Image.read(in, vm.globals());
+    } catch (IOException e) {
+      System.err.println("Failed to load script: " + e.getMessage());
+
+      System.exit(1);
+
+      return;
+    }
+
+    link(Image.functions(script));
+
+    if (vm.interpret(script) == VM.InterpretResult.INTERPRET_RUNTIME_ERROR)
+      System.exit(70);
+  }
+
+  //link(List<Function>)
+  private static void link(List<Function> functions) {
+    for (int index = 1; index < functions.size(); index++) {
+      String className = (Aot.CLASS_PREFIX + index).replace('/', '.');
+
+      try {
+        Class<?> c = Class.forName(className);
+
+        FunctionState.of(functions.get(index)).setBaseline(
+          (CompiledCode)c.getDeclaredConstructor(Object[].class).newInstance((Object)new Object[0])
+        );
+      } catch (ClassNotFoundException e) {
+        continue; //refused by the compiler, so interpreted
+      } catch (ReflectiveOperationException | LinkageError e) {
+        System.err.println("Failed to link " + className + ": " + e);
+      }
+    }
+  }
+
+  //resource(String)
+  private static InputStream resource(String name) {
+    //exits if it is missing, as from a jar not written by Aot
+    InputStream in = AotMain.class.getClassLoader().getResourceAsStream(name);
+
+    if (in == null) {
+      System.err.println("Failed to load " + name + ": not in the jar.");
+
+      System.exit(1);
+    }
+
+    return in;
+  }
+}
@@ -0,0 +1,147 @@
+package main;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import debug.Debugger;
+import vm.Program;
+import vm.RegisterVM;
+import vm.VM;
+
+//Runs compiled programs concurrently.  A script is compiled once
+//(see compile()) and each submitted run borrows a VM from a pool of
+//at most poolSize, which it has to itself until the run ends; the
+//VM's stacks and globals are reset for the next run, and the
+//program's code is copied per run (see vm.Program), so nothing a
+//run changes is seen by another.
+//
+//Runs are started on virtual threads where the JVM has them, and
+//otherwise on a thread per pooled VM; either way no more than
+//poolSize run at once.
+public class ExecutionService implements AutoCloseable {
+  private Props properties;
+  private Debugger debugger;
+  private VM compilingVM; //compiles programs, never runs them
+  private int poolSize;
+  private BlockingQueue<VM> idle;
+  private AtomicInteger created;
+  private ExecutorService executor;
+
+  //ExecutionService(Props, int)
+  public ExecutionService(Props properties, int poolSize) {
+    this.properties = properties;
+    this.poolSize = poolSize;
+
+    debugger = new Debugger(properties);
+    compilingVM = newVM();
+    idle = new LinkedBlockingQueue<>();
+    created = new AtomicInteger();
+    executor = newExecutor(poolSize);
+  }
+
+  //poolSize()
+  public int poolSize() {
+    return poolSize;
+  }
+
+  //compile(String)
+  public synchronized Program compile(String source) {
+    //null on a compile error, which has been reported
+    return compilingVM.compileProgram(source);
+  }
+
+  //submit(Program)
+  public Future<VM.InterpretResult> submit(Program program) {
+    return executor.submit(() -> run(program));
+  }
+
+  //run(Program)
+  public VM.InterpretResult run(Program program) throws InterruptedException {
+    //runs program on a pooled VM in the calling thread
+    VM vm = acquire();
+    boolean isReusable = false;
+
+    try {
+      VM.InterpretResult result = vm.interpret(program);
+
+      isReusable = true;
+
+      return result;
+    } finally {
+      //a VM a run escaped from may be left mid-run, so it's dropped
+      if (!isReusable) {
+        vm.stopObserving();
+
+        vm = newVM();
+      }
+
+      release(vm);
+    }
+  }
+
+  //acquire()
+  private VM acquire() throws InterruptedException {
+    VM vm = idle.poll();
+
+    if (vm != null)
+      return vm;
+
+    //VMs are made as runs first need them
+    if (created.getAndUpdate(n -> n < poolSize ? n + 1 : n) < poolSize)
+      return newVM();
+
+    return idle.take();
+  }
+
+  //release(VM)
+  private void release(VM vm) {
+    idle.add(vm);
+  }
+
+  //newVM()
+  private VM newVM() {
+    //the register engine runs the same programs, for comparison
+    if (properties.getBool("REGISTER_VM"))
+      return new RegisterVM(properties, debugger);
+
+    return new VM(properties, debugger);
+  }
+
+  //newExecutor(int)
+  private static ExecutorService newExecutor(int poolSize) {
+    //Executors.newVirtualThreadPerTaskExecutor() where there is one
+    //(JDK 21 on), so a run waiting for a VM holds no platform thread
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(poolSize);
+    }
+  }
+
+  //close()
+  @Override
+  public void close() {
+    //waits for the runs already submitted
+    executor.shutdown();
+
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+        continue;
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+
+      Thread.currentThread().interrupt();
+    }
+
+    //the VMs are done with, so the props needn't keep them
+    for (VM vm = idle.poll(); vm != null; vm = idle.poll())
+      vm.stopObserving();
+
+    compilingVM.stopObserving();
+  }
+}
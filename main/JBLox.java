@@ -6,9 +6,15 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import compiler.CodeCache;
+import compiler.Function;
 import debug.Debugger;
+import vm.Profile;
+import vm.RegisterVM;
+import vm.Snapshot;
 import vm.VM;
 
 public class JBLox {
@@ -17,6 +23,8 @@ public class JBLox {
   private VM vm;
   private int exitCode;
   private String exitMessage;
+  private boolean persistProfiles;
+  private boolean cacheCode;
 
   //JBLox()
   public JBLox() {
@@ -24,18 +32,29 @@ public class JBLox {
 
     properties = new Props(propsFile);
     debugger = new Debugger(properties);
-    vm = new VM(properties, debugger);
+    persistProfiles = properties.getBool("PERSIST_PROFILES");
+    cacheCode = properties.getBool("CODE_CACHE");
+    //the register engine runs the same scripts, for comparison
+    if (properties.getBool("REGISTER_VM"))
+      vm = new RegisterVM(properties, debugger);
+    else
+      vm = new VM(properties, debugger);
   }
 
-  //runFile(String)
-  public void runFile(String path) {
+  //runFile(String, boolean)
+  public void runFile(String path, boolean snapshot) {
     try {
-      byte[] source = Files.readAllBytes(Paths.get(path));
+      String source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+      Function function = compile(source, path);
 
-      VM.InterpretResult result = vm.interpret(new String(source, Charset.defaultCharset()));
+      //a run starts from what the last run of the same source learned
+      if (persistProfiles)
+        Profile.read(function, source, path + ".profile", properties.getBool("SUPERINSTRUCTIONS"));
 
-      if (result == VM.InterpretResult.INTERPRET_COMPILE_ERROR)
-        shutdown(65, null);
+      VM.InterpretResult result = run(function, source, path, snapshot);
+
+      if (persistProfiles)
+        Profile.write(function, source, path + ".profile", properties.getBool("SUPERINSTRUCTIONS"));
 
       if (result == VM.InterpretResult.INTERPRET_RUNTIME_ERROR)
         shutdown(70, null);
@@ -43,6 +62,94 @@ public class JBLox {
       shutdown(1, "File not found: " + path);
     } catch (IOException i) {
       shutdown(1, "IOException occurred.");
+    } catch (IllegalStateException e) {
+      //A function from a damaged cache file fails its checksum when
+      //it is first called (see CodeCache), too late to compile it
+      //afresh; the file goes, so the next run does.
+      if (!cacheCode)
+        throw e;
+
+      try {
+        Files.deleteIfExists(Paths.get(CodeCache.path(path)));
+      } catch (IOException i) {
+        //reported below either way
+      }
+
+      shutdown(70, "Compiled script '" + CodeCache.path(path) + "' was damaged and has been removed.");
+    }
+  }
+
+  //run(Function, String, String, boolean)
+  private VM.InterpretResult run(Function function, String source, String path, boolean snapshot)
+      throws IOException {
+    //With snapshot, the heap is stored when the script calls
+    //snapshot(); otherwise a stored heap for this source is
+    //restored, and the script goes on from that call.  Snapshots
+    //are of stack frames, so the register engine runs from scratch.
+    Path snapshotPath = Paths.get(path + ".snapshot");
+
+    if (vm instanceof RegisterVM)
+      return vm.interpret(function);
+
+    if (snapshot) {
+      Files.deleteIfExists(snapshotPath);
+
+      vm.snapshotTo(source, snapshotPath.toString());
+
+      VM.InterpretResult result = vm.interpret(function);
+
+      if (result == VM.InterpretResult.INTERPRET_OK && !Files.exists(snapshotPath))
+        System.err.println("No snapshot taken: the script never called snapshot().");
+
+      return result;
+    }
+
+    if (
+      Files.exists(snapshotPath) &&
+      Snapshot.read(vm, function, source, snapshotPath.toString(), properties.getBool("SUPERINSTRUCTIONS"))
+    )
+      return vm.resume();
+
+    return vm.interpret(function);
+  }
+
+  //compile(String, String)
+  private Function compile(String source, String path) {
+    //from the code cache if it's on and fresh, which skips compiling
+    Function function = null;
+
+    if (cacheCode)
+      function = CodeCache.read(source, CodeCache.path(path), vm.globals(), properties);
+
+    if (function != null)
+      return function;
+
+    function = vm.compile(source);
+
+    if (function == null)
+      shutdown(65, null);
+
+    if (cacheCode)
+      CodeCache.write(function, vm.globals(), source, CodeCache.path(path), properties);
+
+    return function;
+  }
+
+  //aot(String, String)
+  public void aot(String path, String jarPath) {
+    try {
+      byte[] source = Files.readAllBytes(Paths.get(path));
+
+      Function function = vm.compile(new String(source, Charset.defaultCharset()));
+
+      if (function == null)
+        shutdown(65, null);
+
+      new Aot(properties).write(function, vm.globals(), jarPath);
+    } catch (FileNotFoundException f) {
+      shutdown(1, "File not found: " + path);
+    } catch (IOException i) {
+      shutdown(1, "IOException occurred.");
     }
   }
 
@@ -195,10 +302,14 @@ public class JBLox {
   public static void main(String[] args) throws IOException {
     JBLox jblox = new JBLox();
 
-    if (args.length > 1)
-      jblox.shutdown(64, "Usage: jblox [script]");
+    if (args.length == 4 && args[0].equals("aot") && args[2].equals("-o"))
+      jblox.aot(args[1], args[3]);
+    else if (args.length == 2 && args[0].equals("--snapshot"))
+      jblox.runFile(args[1], true);
+    else if (args.length > 1)
+      jblox.shutdown(64, "Usage: jblox [script] | jblox --snapshot [script] | jblox aot [script] -o [jar]");
     else if (args.length == 1)
-      jblox.runFile(args[0]);
+      jblox.runFile(args[0], false);
     else
       jblox.repl();
   }
@@ -1,6 +1,5 @@
 package main;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -8,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class Props {
   private String propsFile;
@@ -28,7 +28,21 @@ public final class Props {
       System.err.println("Failed to load properties file '" + propsFile + "'.");
     }
 
-    observers = new ArrayList<>();
+    observers = new CopyOnWriteArrayList<>(); //VMs register from any thread
+  }
+
+  //Props(InputStream)
+  public Props(InputStream input) {
+    //read-only: with no file, nothing is ever stored
+    properties = new Properties();
+
+    try {
+      properties.load(input);
+    } catch (IOException e) {
+      System.err.println("Failed to load properties.");
+    }
+
+    observers = new CopyOnWriteArrayList<>();
   }
 
   //close()
@@ -38,6 +52,9 @@ public final class Props {
 
   //store()
   private void store() {
+    if (propsFile == null)
+      return;
+
     try (OutputStream out = new FileOutputStream(propsFile)) {
       properties.store(out, "---No Comment---");
 
@@ -47,6 +64,18 @@ public final class Props {
     }
   }
 
+  //write(OutputStream, String[])
+  public void write(OutputStream out, String[] keys) throws IOException {
+    //only the properties named in keys, those that are set
+    Properties subset = new Properties();
+
+    for (String key : keys)
+      if (properties.getProperty(key) != null)
+        subset.setProperty(key, properties.getProperty(key));
+
+    subset.store(out, "---No Comment---");
+  }
+
   //getBool(String)
   public boolean getBool(String key) {
     String property = properties.getProperty(key);
@@ -68,6 +97,15 @@ public final class Props {
     return newState;
   }
 
+  //setBool(String, boolean)
+  public void setBool(String key, boolean value) {
+    //In-memory only; unlike toggleBool(), nothing is stored.
+    properties.setProperty(key, String.valueOf(value));
+
+    for (PropsObserver observer : observers)
+      observer.notifyPropertiesChanged();
+  }
+
   //getInt(String)
   public int getInt(String key) {
     String property = properties.getProperty(key);
@@ -85,4 +123,9 @@ public final class Props {
   public void registerObserver(PropsObserver observer) {
     observers.add(observer);
   }
+
+  //unregisterObserver(PropsObserver)
+  public void unregisterObserver(PropsObserver observer) {
+    observers.remove(observer);
+  }
 }
@@ -18,6 +18,13 @@ public abstract class PropsObserver {
     updateCachedProperties();
   }
 
+  //stopObserving()
+  public void stopObserving() {
+    //for an observer being dropped, which the props would otherwise
+    //keep, and keep notifying
+    properties.unregisterObserver(this);
+  }
+
   //notifyPropertiesChanged()
   public void notifyPropertiesChanged() {
     updateCachedProperties();
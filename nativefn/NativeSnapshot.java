@@ -0,0 +1,16 @@
+package nativefn;
+
+public class NativeSnapshot extends NativeFn {
+  //execute(Object[])
+  public Object execute(Object[] args) {
+    //Marks the end of a script's setup.  Does nothing itself; a VM
+    //taking a snapshot (see vm.Snapshot) takes it when this returns.
+    return null;
+  }
+
+  //toString()
+  @Override
+  public String toString() {
+    return "<nativefn: snapshot>";
+  }
+}
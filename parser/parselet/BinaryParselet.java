@@ -13,7 +13,9 @@ public class BinaryParselet implements Parselet {
     TokenType operatorType = compiler.parser().previous().type();
     ParseRule rule = compiler.getRule(operatorType);
 
-    compiler.parsePrecedence(rule.precedence() + 1);
+    //'+' parses its own operands (see plusChain())
+    if (operatorType != TOKEN_PLUS)
+      compiler.parsePrecedence(rule.precedence() + 1);
 
     switch (operatorType) {
       case TOKEN_BANG_EQUAL:
@@ -44,7 +46,7 @@ public class BinaryParselet implements Parselet {
 
         break;
       case TOKEN_PLUS:
-        compiler.emitByte(OP_ADD);
+        plusChain(compiler, rule);
 
         break;
       case TOKEN_MINUS:
@@ -63,4 +65,54 @@ public class BinaryParselet implements Parselet {
         return;
     }
   }
+
+  //plusChain(compiler.Compiler, ParseRule)
+  private void plusChain(compiler.Compiler compiler, ParseRule rule) {
+    //Once a string literal shows the chain is building a string,
+    //its operands are left on the stack and joined by one
+    //OP_CONCAT_N, which adds pairwise from the left as OP_ADD
+    //would.  An operand that could fail or have a side effect is
+    //only evaluated after every pending pair is added, so errors
+    //happen at the same point as in a chain of OP_ADD, and chains
+    //without a string literal stay on OP_ADD.
+    int operandPrecedence = rule.precedence() + 1;
+    boolean concat = compiler.endsWithString();
+    int pending = 1; //chain values on the stack, not yet added
+
+    do {
+      boolean pure = compiler.pureOperandAhead(operandPrecedence);
+
+      if (pure && compiler.parser().current().type() == TOKEN_STRING)
+        concat = true;
+
+      if (pending > 1 && (!pure || pending == 255)) {
+        emitPlus(compiler, pending);
+
+        pending = 1;
+      }
+
+      compiler.parsePrecedence(operandPrecedence);
+
+      pending++;
+
+      if (!concat) {
+        emitPlus(compiler, pending);
+
+        pending = 1;
+      }
+    } while (compiler.match(TOKEN_PLUS));
+
+    if (pending > 1)
+      emitPlus(compiler, pending);
+  }
+
+  //emitPlus(compiler.Compiler, int)
+  private void emitPlus(compiler.Compiler compiler, int operands) {
+    if (operands == 2)
+      compiler.emitByte(OP_ADD);
+    else {
+      compiler.emitByte(OP_CONCAT_N);
+      compiler.emitByte((byte)operands);
+    }
+  }
 }
@@ -11,6 +11,7 @@ public class CallParselet implements Parselet {
   public void parse(compiler.Compiler compiler, boolean canAssign) {
     byte argCount = compiler.argumentList();
 
+    compiler.markCall();
     compiler.emitByte(OP_CALL);
     compiler.emitByte(argCount);
   }
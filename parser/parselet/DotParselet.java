@@ -11,7 +11,7 @@ public class DotParselet implements Parselet {
   public void parse(compiler.Compiler compiler, boolean canAssign) {
     compiler.consume(TOKEN_IDENTIFIER, "Expect property name after '.'.");
 
-    int nameIdx = compiler.identifierConstant(compiler.parser().previous());
+    int nameIdx = compiler.selectorConstant(compiler.parser().previous());
 
     if (canAssign && compiler.match(TOKEN_EQUAL)) {
       compiler.expression();
@@ -21,6 +21,7 @@ public class DotParselet implements Parselet {
     } else if (compiler.match(TOKEN_LEFT_PAREN)) {
       byte argCount = compiler.argumentList();
 
+      compiler.markCall();
       compiler.emitByte(OP_INVOKE);
       compiler.emitWord((short)nameIdx);
       compiler.emitByte(argCount);
@@ -7,6 +7,7 @@ public class StringParselet implements Parselet {
   public void parse(compiler.Compiler compiler, boolean canAssign) {
     Object value = compiler.parser().previous().literal();
 
+    compiler.markString();
     compiler.emitConstant(value);
   }
 }
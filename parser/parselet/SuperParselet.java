@@ -17,7 +17,7 @@ public class SuperParselet implements Parselet {
 
     compiler.consume(TOKEN_IDENTIFIER, "Expect superclass method name.");
 
-    int nameIdx = compiler.identifierConstant(compiler.parser().previous());
+    int nameIdx = compiler.selectorConstant(compiler.parser().previous());
 
     compiler.namedVariable(compiler.syntheticToken("this"), false);
 
@@ -8,6 +8,7 @@ import java.util.Map;
 import debug.Debugger;
 import main.Props;
 import main.PropsObserver;
+import vm.LoxString;
 
 import static scanner.TokenType.*;
 
@@ -199,7 +200,7 @@ public class Scanner extends PropsObserver {
     // The closing '"'.
     ss.advance();
 
-    addToken(TOKEN_STRING, ss.readTrimmed()); //trim surrounding quotes
+    addToken(TOKEN_STRING, LoxString.intern(ss.readTrimmed())); //trim surrounding quotes
   }
 
   //addToken(TokenType)
@@ -230,6 +231,15 @@ public class Scanner extends PropsObserver {
       return new Token(TOKEN_EOF, "", null, ss.line());
   }
 
+  //peekNextToken()
+  public Token peekNextToken() {
+    //the token getNextToken() will return, without consuming it
+    if (nextToken <= (tokens.size() - 1))
+      return tokens.get(nextToken);
+    else
+      return new Token(TOKEN_EOF, "", null, ss.line());
+  }
+
   //isWhitespace(char)
   private boolean isWhitespace(char c) {
     return (c == ' ') || (c == '\r') || (c == '\t');
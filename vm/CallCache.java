@@ -0,0 +1,57 @@
+package vm;
+
+//Call-site cache for OP_CALL: the callee last called there, already
+//known to accept the site's argument count.  For a closure the
+//target is its Function, so every closure over the same function
+//hits; for a class it is the class, with its initializer as of the
+//class version recorded.  A native call fills args rather than
+//allocating an array each time.  A site that has been retargeted
+//more than MAX_TARGETS times stays generic.
+public class CallCache {
+  private static final int MAX_TARGETS = 4;
+
+  private Object target;
+  private Closure initializer;
+  private int version;
+  private Object[] args;
+  private int targets;
+
+  //CallCache(int)
+  CallCache(int argCount) {
+    args = new Object[argCount];
+    targets = 0;
+  }
+
+  //retarget(Object, Closure, int)
+  boolean retarget(Object target, Closure initializer, int version) {
+    if (targets == MAX_TARGETS)
+      return false;
+
+    this.target = target;
+    this.initializer = initializer;
+    this.version = version;
+    targets++;
+
+    return true;
+  }
+
+  //target()
+  Object target() {
+    return target;
+  }
+
+  //initializer()
+  Closure initializer() {
+    return initializer;
+  }
+
+  //version()
+  int version() {
+    return version;
+  }
+
+  //args()
+  Object[] args() {
+    return args;
+  }
+}
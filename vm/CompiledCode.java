@@ -0,0 +1,15 @@
+package vm;
+
+//A function compiled to JVM bytecode by the JIT (see Jit).  run()
+//executes the frame the caller has already pushed at base, and
+//leaves the result at base exactly as OP_RETURN would.  It returns
+//false after reporting a runtime error.
+//
+//Code compiled for a loop instead takes over the running frame at
+//the loop's header, and returns true once it has handed the frame
+//back to the interpreter, its values on vStack and its ip in
+//frameIPs.
+public interface CompiledCode {
+  //run(VM, int)
+  boolean run(VM vm, int base);
+}
@@ -0,0 +1,270 @@
+package vm;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import compiler.Chunk;
+import compiler.Function;
+import compiler.FunctionRuntime;
+import compiler.RegisterChunk;
+import compiler.RegisterEmitter;
+
+//What the VM keeps about a function as it runs it: its constants
+//unboxed, its register code, and its JIT tier and counts (see Jit).
+//The compiled function (compiler.Function) stays as the compiler
+//made it, and holds this only as an opaque slot (see
+//Function.runtime()), made on first use; a function that never runs
+//never has one.
+//
+//Each run of a Program runs its own copy of the compiled code (see
+//Function.copy()).  A copy's state refers to its template's, which
+//holds what every run can use: the call count towards baseline code,
+//the baseline and loop code itself, which depend only on the
+//function's code, and whether the JIT refused it.  Optimized code is
+//specialized to the objects one run has seen, so each run counts
+//towards it, and makes it, on its own.
+public final class FunctionState implements FunctionRuntime {
+  private final Function function;
+  private long[] constantBits; //unboxed twin of the chunk's constants
+  private RegisterChunk registerChunk; //built on first use
+  //JIT state (see Jit)
+  private CompiledCode compiled; //what calls run; null to interpret
+  private CompiledCode baseline;
+  private boolean isOptimized;
+  private boolean isCompilable;
+  private boolean isOptimizable;
+  private int callCount;
+  private int deoptCount;
+  private int warmup; //calls left uncounted after priming (see Profile)
+  private BitSet unstable; //offsets where optimized code's guards failed
+  private byte[] pendingProfile; //for code not decoded yet (see Profile)
+  private final FunctionState template; //of the function this is a run's copy of, or null
+  //in a template, code its copies share
+  private volatile CompiledCode shared;
+  private Map<Integer, CompiledCode> sharedLoops; //by OP_LOOP offset
+
+  //FunctionState(Function, FunctionState)
+  private FunctionState(Function function, FunctionState template) {
+    this.function = function;
+    this.template = template;
+
+    //the top-level script only ever runs once
+    isCompilable = function.name() != null;
+    isOptimizable = isCompilable;
+    callCount = 0;
+    deoptCount = 0;
+    unstable = new BitSet();
+  }
+
+  //of(Function)
+  public static FunctionState of(Function function) {
+    FunctionState state = (FunctionState)function.runtime();
+
+    if (state == null) {
+      Function template = function.template();
+
+      state = new FunctionState(function, (template == function) ? null : templateOf(template));
+
+      function.setRuntime(state);
+    }
+
+    return state;
+  }
+
+  //templateOf(Function)
+  private static FunctionState templateOf(Function template) {
+    //runs of copies of it may start at once, and must share one
+    synchronized (template) {
+      return of(template);
+    }
+  }
+
+  //template()
+  FunctionState template() {
+    return template;
+  }
+
+  //shared()
+  CompiledCode shared() {
+    return shared;
+  }
+
+  //share(CompiledCode)
+  void share(CompiledCode code) {
+    shared = code;
+  }
+
+  //sharedLoop(int)
+  synchronized CompiledCode sharedLoop(int loop) {
+    return (sharedLoops == null) ? null : sharedLoops.get(loop);
+  }
+
+  //shareLoop(int, CompiledCode)
+  synchronized void shareLoop(int loop, CompiledCode code) {
+    if (sharedLoops == null)
+      sharedLoops = new HashMap<>();
+
+    sharedLoops.put(loop, code);
+  }
+
+  //decoded(Function)
+  @Override
+  public void decoded(Function function) {
+    byte[] profile = pendingProfile;
+
+    pendingProfile = null;
+
+    if (profile != null)
+      Profile.apply(function, profile);
+  }
+
+  //pendingProfile()
+  byte[] pendingProfile() {
+    return pendingProfile;
+  }
+
+  //setPendingProfile(byte[])
+  void setPendingProfile(byte[] pendingProfile) {
+    this.pendingProfile = pendingProfile;
+  }
+
+  //constantBits()
+  public long[] constantBits() {
+    if (constantBits == null) {
+      Chunk chunk = function.chunk();
+
+      constantBits = new long[chunk.constantsCount()];
+
+      for (int index = 0; index < constantBits.length; index++)
+        constantBits[index] = Value.bits(chunk.constants()[index]);
+    }
+
+    return constantBits;
+  }
+
+  //hasRegisterChunk()
+  boolean hasRegisterChunk() {
+    return registerChunk != null;
+  }
+
+  //registerChunk()
+  RegisterChunk registerChunk() {
+    if (registerChunk == null)
+      registerChunk = RegisterEmitter.emit(function.chunk(), function.arity());
+
+    return registerChunk;
+  }
+
+  //compiled()
+  CompiledCode compiled() {
+    return compiled;
+  }
+
+  //setBaseline(CompiledCode)
+  public void setBaseline(CompiledCode baseline) {
+    this.baseline = baseline;
+
+    compiled = baseline;
+  }
+
+  //setOptimized(CompiledCode)
+  void setOptimized(CompiledCode optimized) {
+    compiled = optimized;
+    isOptimized = true;
+  }
+
+  //isOptimized()
+  boolean isOptimized() {
+    return isOptimized;
+  }
+
+  //deoptimize(int)
+  int deoptimize(int offset) {
+    //Back to baseline code, with the speculation that failed at
+    //offset not to be made again, and the count towards
+    //reoptimizing started over.  Returns how many times this has
+    //happened.
+    compiled = baseline;
+    isOptimized = false;
+    callCount = 0;
+
+    unstable.set(offset);
+
+    return ++deoptCount;
+  }
+
+  //deoptCount()
+  int deoptCount() {
+    return deoptCount;
+  }
+
+  //isUnstable(int)
+  public boolean isUnstable(int offset) {
+    return unstable.get(offset);
+  }
+
+  //isCompilable()
+  boolean isCompilable() {
+    return isCompilable && (template == null || template.isCompilable);
+  }
+
+  //markNotCompilable()
+  void markNotCompilable() {
+    isCompilable = false;
+    isOptimizable = false;
+
+    if (template != null)
+      template.markNotCompilable();
+  }
+
+  //isOptimizable()
+  boolean isOptimizable() {
+    return isOptimizable;
+  }
+
+  //markNotOptimizable()
+  void markNotOptimizable() {
+    isOptimizable = false;
+  }
+
+  //callCount()
+  int callCount() {
+    return callCount;
+  }
+
+  //countCall()
+  int countCall() {
+    //Returns 0 while warming up, so nothing is compiled.
+    if (warmup > 0) {
+      warmup--;
+
+      return 0;
+    }
+
+    //Until a copy runs baseline code, it counts towards its
+    //template's, and takes it up once a run has made it.
+    if (compiled == null && template != null) {
+      CompiledCode code = template.shared;
+
+      if (code == null)
+        return ++template.callCount; //a count lost to a race only puts compiling off
+
+      setBaseline(code);
+    }
+
+    return ++callCount;
+  }
+
+  //prime(int, int, BitSet, int)
+  void prime(int callCount, int deoptCount, BitSet unstable, int warmup) {
+    //Counts and speculation failures carried over from an earlier
+    //run.  The count only takes effect after warmup more calls, for
+    //which the function is interpreted as when it was cold.
+    this.callCount = callCount;
+    this.deoptCount = deoptCount;
+    this.warmup = warmup;
+
+    this.unstable.or(unstable);
+  }
+}
@@ -0,0 +1,35 @@
+package vm;
+
+//Inline cache for an OP_GET_GLOBAL site whose global is constant.
+//Chunks may outlive (or be shared between) VMs, so the cache
+//records whose table it read as well as that table's version.
+public class GlobalCache {
+  private GlobalTable table;
+  private int version;
+  private long bits;
+  private Object ref;
+
+  //GlobalCache(GlobalTable, long, Object)
+  GlobalCache(GlobalTable table, long bits, Object ref) {
+    this.table = table;
+    this.bits = bits;
+    this.ref = ref;
+
+    version = table.version();
+  }
+
+  //isValid(GlobalTable)
+  boolean isValid(GlobalTable table) {
+    return this.table == table && version == table.version();
+  }
+
+  //bits()
+  public long bits() {
+    return bits;
+  }
+
+  //ref()
+  public Object ref() {
+    return ref;
+  }
+}
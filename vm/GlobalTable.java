@@ -0,0 +1,149 @@
+package vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+//Per-VM global variables, indexed by slot.  The compiler resolves
+//each global name to its slot once, so the VM reads and writes the
+//value arrays directly.  A slot that has been named but not yet
+//defined holds Value.UNDEFINED.
+//
+//A global defined once and never assigned (in practice, most
+//function and class declarations) is constant, so its value may be
+//cached where it is read.  Assigning or redefining it drops that
+//status for good and bumps version, which every cache checks.
+public class GlobalTable {
+  private Map<String, Integer> slots;
+  private String[] names;
+  private long[] bits;
+  private Object[] refs;
+  private boolean[] constant;
+  private int count;
+  private int version;
+
+  //GlobalTable()
+  public GlobalTable() {
+    slots = new HashMap<>();
+    names = new String[8];
+    bits = new long[8];
+    refs = new Object[8];
+    constant = new boolean[8];
+    count = 0;
+    version = 0;
+  }
+
+  //slot(String)
+  public int slot(String name) {
+    Integer slot = slots.get(name);
+
+    if (slot != null)
+      return slot;
+
+    if (count == names.length) {
+      names = Arrays.copyOf(names, count * 2);
+      bits = Arrays.copyOf(bits, count * 2);
+      refs = Arrays.copyOf(refs, count * 2);
+      constant = Arrays.copyOf(constant, count * 2);
+    }
+
+    names[count] = name;
+    bits[count] = Value.UNDEFINED;
+    slots.put(name, count);
+
+    return count++;
+  }
+
+  //count()
+  public int count() {
+    return count;
+  }
+
+  //name(int)
+  public String name(int slot) {
+    return names[slot];
+  }
+
+  //bits()
+  public long[] bits() {
+    //Slots are only added while compiling, so the VM may hold on
+    //to this array for the length of a run.
+    return bits;
+  }
+
+  //refs()
+  public Object[] refs() {
+    return refs;
+  }
+
+  //version()
+  public int version() {
+    return version;
+  }
+
+  //isConstant(int)
+  public boolean isConstant(int slot) {
+    return constant[slot];
+  }
+
+  //define(String, Object)
+  public void define(String name, Object boxed) {
+    define(slot(name), Value.bits(boxed), boxed);
+  }
+
+  //define(int, long, Object)
+  public void define(int slot, long bits, Object ref) {
+    if (this.bits[slot] == Value.UNDEFINED)
+      constant[slot] = true;
+    else if (constant[slot])
+      invalidate(slot); //redefinition
+
+    this.bits[slot] = bits;
+    refs[slot] = ref;
+  }
+
+  //assign(int, long, Object)
+  public void assign(int slot, long bits, Object ref) {
+    if (constant[slot])
+      invalidate(slot);
+
+    this.bits[slot] = bits;
+    refs[slot] = ref;
+  }
+
+  //undefine(int)
+  public void undefine(int first) {
+    //Back to named but undefined from slot first on, so a script
+    //can be run again from scratch; the slots are kept, as compiled
+    //code refers to them.
+    for (int slot = first; slot < count; slot++) {
+      bits[slot] = Value.UNDEFINED;
+      refs[slot] = null;
+      constant[slot] = false;
+    }
+
+    version++;
+  }
+
+  //invalidate(int)
+  private void invalidate(int slot) {
+    constant[slot] = false;
+    version++;
+  }
+
+  //toString()
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+
+    for (int i = 0; i < count; i++)
+      if (bits[i] != Value.UNDEFINED) {
+        if (sb.length() > 1)
+          sb.append(", ");
+
+        sb.append(names[i] + "=" + Value.box(bits[i], refs[i]));
+      }
+
+    return sb.append("}").toString();
+  }
+}
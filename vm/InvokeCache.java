@@ -0,0 +1,83 @@
+package vm;
+
+//Inline cache for an OP_INVOKE or OP_SUPER_INVOKE site: the classes
+//seen there, each with the method the selector resolved to and the
+//class version it was resolved against.  An OP_INVOKE entry is also
+//keyed on the receiver's shape, which is how it knows no field of
+//that name shadows the method; OP_SUPER_INVOKE entries, which never
+//look at fields, use a null shape.  A site that sees more than
+//MAX_ENTRIES receivers is megamorphic and stays generic.
+public class InvokeCache {
+  private static final int MAX_ENTRIES = 4;
+
+  private LoxClass[] classes;
+  private Shape[] shapes;
+  private int[] versions;
+  private Closure[] methods;
+  private int count;
+
+  //InvokeCache()
+  InvokeCache() {
+    classes = new LoxClass[MAX_ENTRIES];
+    shapes = new Shape[MAX_ENTRIES];
+    versions = new int[MAX_ENTRIES];
+    methods = new Closure[MAX_ENTRIES];
+    count = 0;
+  }
+
+  //count()
+  public int count() {
+    return count;
+  }
+
+  //klass(int)
+  public LoxClass klass(int entry) {
+    return classes[entry];
+  }
+
+  //shape(int)
+  public Shape shape(int entry) {
+    return shapes[entry];
+  }
+
+  //version(int)
+  public int version(int entry) {
+    return versions[entry];
+  }
+
+  //lookup(LoxClass, Shape)
+  int lookup(LoxClass klass, Shape shape) {
+    for (int i = 0; i < count; i++)
+      if (classes[i] == klass && shapes[i] == shape && versions[i] == klass.version())
+        return i;
+
+    return -1;
+  }
+
+  //add(LoxClass, Shape, Closure)
+  boolean add(LoxClass klass, Shape shape, Closure method) {
+    int entry = 0;
+
+    //an entry left stale by a method definition is reused
+    while (entry < count && (classes[entry] != klass || shapes[entry] != shape))
+      entry++;
+
+    if (entry == MAX_ENTRIES)
+      return false;
+
+    if (entry == count)
+      count++;
+
+    classes[entry] = klass;
+    shapes[entry] = shape;
+    versions[entry] = klass.version();
+    methods[entry] = method;
+
+    return true;
+  }
+
+  //method(int)
+  public Closure method(int entry) {
+    return methods[entry];
+  }
+}
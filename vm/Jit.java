@@ -0,0 +1,158 @@
+package vm;
+
+import java.lang.invoke.MethodHandles;
+
+import compiler.Chunk;
+import compiler.Function;
+import jit.BaselineCompiler;
+import jit.OptimizingCompiler;
+
+//Decides when a function is hot and compiles it, in two tiers: to
+//baseline code after JIT_THRESHOLD calls, then to optimized code,
+//specialized by the feedback in its inline caches, after
+//JIT_OPTIMIZE_THRESHOLD more.  Optimized code that deoptimizes puts
+//the function back on baseline code to count up again; after
+//MAX_DEOPTS it stays there.
+//
+//A loop that goes round JIT_LOOP_THRESHOLD times in the interpreter
+//is compiled on its own, to be entered at its header with the
+//frame's values taken off vStack (on-stack replacement), so a long
+//loop in code that only runs once, such as the top-level script,
+//gets compiled too.
+//
+//With JIT_TREE_BACKEND set, functions are built into trees of Java
+//objects instead (see TreeCompiler), with no optimizing tier and no
+//on-stack replacement, and no classes are defined at all.
+//
+//Each compiled function becomes a hidden class in this package, so
+//its code can reach the VM's package-private state and JitRuntime
+//directly, and is unloaded along with the function once nothing
+//refers to it.  A function the compilers refuse (or the JVM
+//rejects) is marked and never tried again at that tier.
+class Jit {
+  static final int MAX_DEOPTS = 4;
+  static final int MAX_NESTING = 512; //compiled code running at once (see VM.runCompiled())
+
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  private int threshold; //calls before a function is compiled
+  private int optimizeThreshold; //calls before it is optimized
+  private int loopThreshold; //trips before a loop is compiled
+  private boolean isTreeBackend;
+
+  //Jit(int, int, int, boolean)
+  Jit(int threshold, int optimizeThreshold, int loopThreshold, boolean isTreeBackend) {
+    this.threshold = threshold;
+    this.optimizeThreshold = optimizeThreshold;
+    this.loopThreshold = loopThreshold;
+    this.isTreeBackend = isTreeBackend;
+  }
+
+  //codeFor(Function)
+  CompiledCode codeFor(Function function) {
+    //Count a call, compiling the next tier if the function is now
+    //hot enough; returns the code to run, or null to interpret.
+    FunctionState state = FunctionState.of(function);
+    int calls = state.countCall();
+
+    if (state.compiled() == null) {
+      if (calls >= threshold && state.isCompilable())
+        compile(function, state, false);
+    } else if (
+      !state.isOptimized() && calls >= optimizeThreshold && state.isOptimizable()
+    )
+      compile(function, state, true);
+
+    return state.compiled();
+  }
+
+  //loopCodeFor(Function, int, int)
+  CompiledCode loopCodeFor(Function function, int loop, int depth) {
+    //Count a trip round the loop closed by the OP_LOOP at loop,
+    //with depth slots on the frame's stack, compiling the loop if it
+    //is now hot enough; returns the code to carry on with, or null
+    //to go on interpreting.
+    if (isTreeBackend)
+      return null;
+
+    Chunk chunk = function.chunk();
+    LoopCache cache = (LoopCache)chunk.inlineCache(loop);
+    FunctionState template = FunctionState.of(function).template();
+
+    if (cache == null) {
+      cache = new LoopCache();
+
+      chunk.setInlineCache(loop, cache);
+
+      //another run may have compiled it already
+      if (template != null && template.sharedLoop(loop) != null)
+        cache.setCode(template.sharedLoop(loop));
+    }
+
+    if (cache.code() == null && cache.countTrip() >= loopThreshold && cache.isCompilable())
+      try {
+        cache.setCode(define(new BaselineCompiler(function, loop, depth)));
+
+        if (template != null)
+          template.shareLoop(loop, cache.code());
+      } catch (IllegalStateException | ReflectiveOperationException | LinkageError e) {
+        cache.markNotCompilable();
+      }
+
+    return cache.code();
+  }
+
+  //compile(Function, FunctionState, boolean)
+  private void compile(Function function, FunctionState state, boolean optimize) {
+    if (isTreeBackend) {
+      try {
+        state.setBaseline(new TreeCompiler(function).compile());
+        state.markNotOptimizable();
+      } catch (IllegalStateException e) {
+        state.markNotCompilable();
+      }
+
+      return;
+    }
+
+    try {
+      CompiledCode code = optimize ? define(new OptimizingCompiler(function)) : baseline(function, state);
+
+      if (optimize)
+        state.setOptimized(code);
+      else
+        state.setBaseline(code);
+    } catch (IllegalStateException | ReflectiveOperationException | LinkageError e) {
+      if (optimize)
+        state.markNotOptimizable();
+      else
+        state.markNotCompilable();
+    }
+  }
+
+  //baseline(Function, FunctionState)
+  private static CompiledCode baseline(Function function, FunctionState state)
+      throws ReflectiveOperationException {
+    //Baseline code depends only on the function's code, so it is
+    //made once for all the copies of a template (see FunctionState).
+    FunctionState template = state.template();
+
+    if (template == null)
+      return define(new BaselineCompiler(function));
+
+    synchronized (template) {
+      if (template.shared() == null)
+        template.share(define(new BaselineCompiler(function)));
+
+      return template.shared();
+    }
+  }
+
+  //define(BaselineCompiler)
+  private static CompiledCode define(BaselineCompiler compiler) throws ReflectiveOperationException {
+    byte[] bytes = compiler.compile();
+    Class<?> c = lookup.defineHiddenClass(bytes, true).lookupClass();
+
+    return (CompiledCode)c.getDeclaredConstructor(Object[].class).newInstance((Object)compiler.data());
+  }
+}
@@ -0,0 +1,314 @@
+package vm;
+
+import compiler.Function;
+import compiler.Selector;
+
+//Static entry points for code generated by the JIT.  Compiled code
+//keeps a frame's values in JVM locals and comes here for anything
+//that touches the VM's stacks or needs a slow path; these are small
+//enough for HotSpot to inline into the compiled method.
+//
+//Each helper that can fail reports the error as the interpreter
+//would, with ip the end of the instruction being executed.
+final class JitRuntime {
+  //returned by getProperty() after an error
+  static final Object FAILED = new Object();
+
+  //JitRuntime()
+  private JitRuntime() {}
+
+  //bits(VM, int)
+  static long bits(VM vm, int index) {
+    return vm.vStack[index];
+  }
+
+  //ref(VM, int)
+  static Object ref(VM vm, int index) {
+    return vm.vStackRefs[index];
+  }
+
+  //store(VM, int, long, Object)
+  static void store(VM vm, int index, long bits, Object ref) {
+    vm.vStack[index] = bits;
+    vm.vStackRefs[index] = ref;
+  }
+
+  //spill(VM, int, int)
+  static void spill(VM vm, int top, int ip) {
+    //make the values stored so far the stack, and record where
+    //the frame resumes, before handing control to the VM
+    vm.vStackCount = top;
+    vm.frameIPs[vm.fStackTop()] = ip;
+  }
+
+  //error(VM, int, String)
+  static boolean error(VM vm, int ip, String message) {
+    vm.error(ip, message);
+
+    return false;
+  }
+
+  //add(long, Object, long, Object)
+  static Object add(long aBits, Object aRef, long bBits, Object bRef) {
+    //the non-numeric case of OP_ADD; null if not two strings
+    if (
+      Value.isObj(aBits) && aRef instanceof LoxString &&
+      Value.isObj(bBits) && bRef instanceof LoxString
+    )
+      return ((LoxString)aRef).concat((LoxString)bRef);
+
+    return null;
+  }
+
+  //concat(VM, int)
+  static boolean concat(VM vm, int count) {
+    return vm.concatenate(count);
+  }
+
+  //upvalueBits(VM, Closure, int)
+  static long upvalueBits(VM vm, Closure closure, int index) {
+    Upvalue upvalue = closure.upvalues()[index];
+
+    if (upvalue.location() != -1) //i.e., open
+      return vm.vStack[upvalue.location()];
+
+    return upvalue.closedBits();
+  }
+
+  //upvalueRef(VM, Closure, int)
+  static Object upvalueRef(VM vm, Closure closure, int index) {
+    Upvalue upvalue = closure.upvalues()[index];
+
+    if (upvalue.location() != -1) //i.e., open
+      return vm.vStackRefs[upvalue.location()];
+
+    return upvalue.closedRef();
+  }
+
+  //setUpvalue(VM, Closure, int, long, Object)
+  static void setUpvalue(VM vm, Closure closure, int index, long bits, Object ref) {
+    Upvalue upvalue = closure.upvalues()[index];
+
+    if (upvalue.location() != -1) //i.e., open
+      store(vm, upvalue.location(), bits, ref);
+    else //i.e., closed
+      upvalue.setClosedValue(bits, ref);
+  }
+
+  //isString(long, Object)
+  static boolean isString(long bits, Object ref) {
+    return Value.isObj(bits) && ref instanceof LoxString;
+  }
+
+  //shapeOf(long, Object)
+  static Shape shapeOf(long bits, Object ref) {
+    //null if not an instance
+    if (Value.isObj(bits) && ref instanceof LoxInstance)
+      return ((LoxInstance)ref).shape();
+
+    return null;
+  }
+
+  //undefinedVariable(VM, int, int)
+  static boolean undefinedVariable(VM vm, int ip, int slot) {
+    return error(vm, ip, "Undefined variable '" + vm.globals.name(slot) + "'.");
+  }
+
+  //setGlobal(VM, int, int, long, Object)
+  static boolean setGlobal(VM vm, int ip, int slot, long bits, Object ref) {
+    if (vm.globals.bits()[slot] == Value.UNDEFINED)
+      return undefinedVariable(vm, ip, slot);
+
+    vm.globals.assign(slot, bits, ref);
+
+    return true;
+  }
+
+  //getProperty(VM, int, long, Object, Object)
+  static Object getProperty(VM vm, int ip, long bits, Object ref, Object name) {
+    //the boxed value of the field or bound method, or FAILED
+    if (!Value.isObj(bits) || !(ref instanceof LoxInstance)) {
+      vm.error(ip, "Only instances have properties.");
+
+      return FAILED;
+    }
+
+    LoxInstance instance = (LoxInstance)ref;
+    Selector selector = (Selector)name;
+    int slot = instance.slot(selector.name());
+
+    if (slot != -1)
+      return instance.field(slot);
+
+    Closure method = instance.klass().method(selector);
+
+    if (method == null) {
+      vm.error(ip, "Undefined property '" + selector + "'.");
+
+      return FAILED;
+    }
+
+    return new BoundMethod(instance, method);
+  }
+
+  //setProperty(VM, int, long, Object, Object, long, Object)
+  static boolean setProperty(
+    VM vm, int ip, long bits, Object ref, Object name, long valueBits, Object valueRef
+  ) {
+    if (!Value.isObj(bits) || !(ref instanceof LoxInstance))
+      return error(vm, ip, "Only instances have fields.");
+
+    LoxInstance instance = (LoxInstance)ref;
+    String field = ((Selector)name).name();
+    Shape shape = instance.shape();
+    int slot = shape.slot(field);
+    Object value = Value.box(valueBits, valueRef);
+
+    if (slot != -1)
+      instance.setField(slot, value);
+    else
+      instance.addField(shape.transition(field), shape.slotCount(), value);
+
+    return true;
+  }
+
+  //getSuper(VM, int, Object, Object, Object)
+  static Object getSuper(VM vm, int ip, Object receiver, Object superclass, Object name) {
+    Closure method = ((LoxClass)superclass).method((Selector)name);
+
+    if (method == null) {
+      vm.error(ip, "Undefined property '" + name + "'.");
+
+      return FAILED;
+    }
+
+    return new BoundMethod(receiver, method);
+  }
+
+  //enter(VM, long, Object, int, int)
+  static CompiledCode enter(VM vm, long bits, Object ref, int base, int argCount) {
+    //Fast path for calling a compiled closure: pushes its frame and
+    //returns its code, or returns null for the caller to take the
+    //general path through call().
+    if (!Value.isObj(bits) || !(ref instanceof Closure))
+      return null;
+
+    return enterClosure(vm, (Closure)ref, base, argCount);
+  }
+
+  //enterClosure(VM, Closure, int, int)
+  static CompiledCode enterClosure(VM vm, Closure closure, int base, int argCount) {
+    Function function = closure.function();
+
+    //interpreted functions are counted by VM.call()
+    if (
+      FunctionState.of(function).compiled() == null || function.arity() != argCount ||
+      !vm.hasRoom(function, base)
+    )
+      return null;
+
+    CompiledCode code = vm.compiledCode(function);
+
+    if (code != null)
+      vm.pushFrame(closure, base);
+
+    return code;
+  }
+
+  //run(VM, CompiledCode, int)
+  static boolean run(VM vm, CompiledCode code, int base) {
+    //runs code entered by an enter method (see VM.runCompiled())
+    return vm.runCompiled(code, base);
+  }
+
+  //call(VM, int)
+  static boolean call(VM vm, int argCount) {
+    int callee = vm.vStackCount - argCount - 1;
+    int frames = vm.fStackCount;
+
+    if (!vm.callValue(Value.box(vm.vStack[callee], vm.vStackRefs[callee]), argCount))
+      return false;
+
+    return finish(vm, frames);
+  }
+
+  //callClosure(VM, Closure, int)
+  static boolean callClosure(VM vm, Closure closure, int argCount) {
+    int frames = vm.fStackCount;
+
+    if (!vm.call(closure, argCount))
+      return false;
+
+    return finish(vm, frames);
+  }
+
+  //invoke(VM, Object, int)
+  static boolean invoke(VM vm, Object name, int argCount) {
+    int frames = vm.fStackCount;
+
+    if (!vm.invoke((Selector)name, argCount))
+      return false;
+
+    return finish(vm, frames);
+  }
+
+  //superInvoke(VM, Object, int, Object)
+  static boolean superInvoke(VM vm, Object name, int argCount, Object superclass) {
+    int frames = vm.fStackCount;
+
+    if (!vm.invokeFromClass((LoxClass)superclass, (Selector)name, argCount))
+      return false;
+
+    return finish(vm, frames);
+  }
+
+  //tailCall(VM, Object, int)
+  static boolean tailCall(VM vm, Object name, int argCount) {
+    //A call (name null) or invoke in tail position, its callee and
+    //arguments spilled; the frame has returned after, unless the
+    //callee is left to VM.runTailCalls() to run.
+    int frame = vm.fStackTop();
+
+    return vm.tailCall(frame, (Selector)name, argCount) && vm.tailCalled(frame, false);
+  }
+
+  //finish(VM, int)
+  private static boolean finish(VM vm, int frames) {
+    //A callee that is not compiled has only had its frame pushed;
+    //interpret it until it returns here.
+    return vm.fStackCount == frames || vm.runNested(frames);
+  }
+
+  //deoptimize(VM, int, int)
+  static boolean deoptimize(VM vm, int top, int ip) {
+    //An optimized frame's guard has failed.  Its slots are back in
+    //vStack up to top; finish the frame in the interpreter, from
+    //the start of the instruction whose guard failed.
+    int frame = vm.fStackTop();
+    Function function = vm.frameClosures[frame].function();
+
+    FunctionState state = FunctionState.of(function);
+
+    if (state.deoptimize(ip) >= Jit.MAX_DEOPTS)
+      state.markNotOptimizable();
+
+    vm.vStackCount = top;
+    vm.frameIPs[frame] = ip;
+
+    return vm.runNested(frame);
+  }
+
+  //ret(VM, int, long, Object)
+  static boolean ret(VM vm, int base, long bits, Object ref) {
+    store(vm, base, bits, ref);
+
+    vm.vStackCount = base + 1;
+
+    vm.popFrame();
+
+    if (vm.fStackCount < vm.shrinkDepth)
+      vm.shrink();
+
+    return true;
+  }
+}
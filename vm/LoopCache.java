@@ -0,0 +1,54 @@
+package vm;
+
+//Back-edge counter for an OP_LOOP: how many times the loop has gone
+//round in the interpreter, and the code compiled to take it over
+//once that is often enough (see Jit.loopCodeFor()).  A loop the
+//compiler refuses is marked and never tried again.
+public class LoopCache {
+  private int trips;
+  private CompiledCode code;
+  private boolean isCompilable;
+
+  //LoopCache()
+  LoopCache() {
+    this(0);
+  }
+
+  //LoopCache(int)
+  LoopCache(int trips) {
+    //with trips carried over from an earlier run (see Profile)
+    this.trips = trips;
+
+    isCompilable = true;
+  }
+
+  //trips()
+  int trips() {
+    return trips;
+  }
+
+  //countTrip()
+  int countTrip() {
+    return ++trips;
+  }
+
+  //code()
+  CompiledCode code() {
+    return code;
+  }
+
+  //setCode(CompiledCode)
+  void setCode(CompiledCode code) {
+    this.code = code;
+  }
+
+  //isCompilable()
+  boolean isCompilable() {
+    return isCompilable;
+  }
+
+  //markNotCompilable()
+  void markNotCompilable() {
+    isCompilable = false;
+  }
+}
@@ -1,17 +1,30 @@
 package vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+
+import compiler.Selector;
 
 public class LoxClass {
+  private static final Closure[] NO_METHODS = new Closure[0];
+
   private String name;
-  private Map<String, Closure> methods;
+  private int fieldCountHint; //most fields any instance has had
+
+  //Methods indexed by selector method id.  A subclass starts out sharing
+  //its superclass's table and copies it on the first method it
+  //defines, so classes that override nothing cost no table.
+  private Closure[] methods;
+  private boolean ownsMethods;
+  private int version; //bumped whenever methods changes
 
   //LoxClass(String)
   public LoxClass(String name) {
     this.name = name;
 
-    methods = new HashMap<>();
+    methods = NO_METHODS;
+    ownsMethods = false;
+    version = 0;
+    fieldCountHint = 0;
   }
 
   //name()
@@ -24,14 +37,57 @@ public class LoxClass {
     this.name = name;
   }
 
+  //method(Selector)
+  public Closure method(Selector selector) {
+    int id = selector.methodId();
+
+    //a name never defined as a method has no id (-1)
+    return id >= 0 && id < methods.length ? methods[id] : null;
+  }
+
   //methods()
-  public Map<String, Closure> methods() {
+  public Closure[] methods() {
+    //by selector method id, and perhaps shared (see inherit()), so only
+    //to be read
     return methods;
   }
 
-  //inheritMethods(Map<String, Closure>)
-  public void inheritMethods(Map<String, Closure> methods) {
-    this.methods = new HashMap<String, Closure>(methods);
+  //version()
+  public int version() {
+    return version;
+  }
+
+  //defineMethod(Selector, Closure)
+  public void defineMethod(Selector selector, Closure method) {
+    int id = selector.defineMethodId();
+
+    if (!ownsMethods || id >= methods.length) {
+      methods = Arrays.copyOf(methods, Math.max(methods.length, id + 1));
+      ownsMethods = true;
+    }
+
+    methods[id] = method;
+    version++;
+  }
+
+  //fieldCountHint()
+  public int fieldCountHint() {
+    return fieldCountHint;
+  }
+
+  //noteFieldCount(int)
+  public void noteFieldCount(int count) {
+    if (count > fieldCountHint)
+      fieldCountHint = count;
+  }
+
+  //inherit(LoxClass)
+  public void inherit(LoxClass superclass) {
+    //Neither class may now write the table in place.
+    methods = superclass.methods;
+    ownsMethods = false;
+    superclass.ownsMethods = false;
+    version++;
   }
 
   //toString()
@@ -1,17 +1,22 @@
 package vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
+  private static final Object[] NO_FIELDS = new Object[0];
+
   private LoxClass klass;
-  private Map<String, Object> fields;
+  private Shape shape;
+  private Object[] fields; //by slot, as laid out by shape
 
   //LoxInstance()
   public LoxInstance(LoxClass klass) {
     this.klass = klass;
 
-    fields = new HashMap<>();
+    shape = Shape.ROOT;
+
+    //size for the fields earlier instances of the class ended up with
+    fields = (klass.fieldCountHint() == 0) ? NO_FIELDS : new Object[klass.fieldCountHint()];
   }
 
   //klass()
@@ -19,9 +24,46 @@ public class LoxInstance {
     return klass;
   }
 
-  //fields()
-  public Map<String, Object> fields() {
-    return fields;
+  //shape()
+  public Shape shape() {
+    return shape;
+  }
+
+  //slot(String)
+  public int slot(String name) {
+    return shape.slot(name);
+  }
+
+  //field(int)
+  public Object field(int slot) {
+    return fields[slot];
+  }
+
+  //setField(int, Object)
+  public void setField(int slot, Object value) {
+    fields[slot] = value;
+  }
+
+  //addField(Shape, int, Object)
+  public void addField(Shape target, int slot, Object value) {
+    //target is shape's transition for the new field
+    if (slot == fields.length)
+      fields = Arrays.copyOf(fields, Math.max(4, slot * 2));
+
+    klass.noteFieldCount(target.slotCount());
+
+    shape = target;
+    fields[slot] = value;
+  }
+
+  //put(String, Object)
+  public void put(String name, Object value) {
+    int slot = shape.slot(name);
+
+    if (slot != -1)
+      fields[slot] = value;
+    else
+      addField(shape.transition(name), shape.slotCount(), value);
   }
 
   //toString
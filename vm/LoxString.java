@@ -0,0 +1,226 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+//A Lox string value.  Literals and identifiers are interned when
+//scanned or compiled, so equal interned strings are one object and
+//compare by identity; strings built at run time are not interned
+//and fall back to comparing characters.  Either way the hash is
+//computed at most once.  The intern table is shared by every VM in
+//the process, and reads of it take no lock.
+//
+//Concatenation builds a rope: a node holding its two halves, whose
+//characters are only gathered (once, in place) when the string is
+//hashed, compared or printed.  Short pieces appended to either end
+//are merged into the leaf there instead of deepening the tree, and
+//a tree deeper than MAX_DEPTH is rebuilt balanced.
+public final class LoxString {
+  private static final ConcurrentHashMap<String, LoxString> interned = new ConcurrentHashMap<>();
+  private static final int LEAF_LIMIT = 256; //longest leaf built by copying
+  private static final int MAX_DEPTH = 48;
+
+  private String chars; //null while this is a rope node
+  private LoxString left;
+  private LoxString right;
+  private final int length;
+  private int depth; //0 for a flat string
+  private final boolean isInterned;
+  private int hash; //0 until first asked for
+
+  //LoxString(String, boolean)
+  private LoxString(String chars, boolean isInterned) {
+    this.chars = chars;
+    this.isInterned = isInterned;
+
+    length = chars.length();
+    depth = 0;
+  }
+
+  //LoxString(LoxString, LoxString)
+  private LoxString(LoxString left, LoxString right) {
+    this.left = left;
+    this.right = right;
+
+    length = left.length + right.length;
+    depth = Math.max(left.depth, right.depth) + 1;
+    isInterned = false;
+  }
+
+  //intern(String)
+  public static LoxString intern(String chars) {
+    LoxString string = interned.get(chars);
+
+    if (string != null)
+      return string;
+
+    return interned.computeIfAbsent(chars, c -> new LoxString(c, true));
+  }
+
+  //of(String)
+  public static LoxString of(String chars) {
+    return new LoxString(chars, false);
+  }
+
+  //chars()
+  public String chars() {
+    if (chars == null)
+      flatten();
+
+    return chars;
+  }
+
+  //isInterned()
+  boolean isInterned() {
+    return isInterned;
+  }
+
+  //length()
+  public int length() {
+    return length;
+  }
+
+  //concat(LoxString)
+  public LoxString concat(LoxString other) {
+    if (other.length == 0)
+      return this;
+    else if (length == 0)
+      return other;
+
+    if (length + other.length <= LEAF_LIMIT)
+      return of(chars() + other.chars());
+
+    //s + piece: grow the rightmost leaf rather than the tree
+    if (
+      chars == null && right.chars != null && other.chars != null &&
+      right.length + other.length <= LEAF_LIMIT
+    )
+      return new LoxString(left, of(right.chars + other.chars));
+
+    //piece + s: likewise for the leftmost leaf
+    if (
+      other.chars == null && other.left.chars != null && chars != null &&
+      length + other.left.length <= LEAF_LIMIT
+    )
+      return new LoxString(of(chars + other.left.chars), other.right);
+
+    LoxString rope = new LoxString(this, other);
+
+    if (rope.depth > MAX_DEPTH) {
+      List<LoxString> leaves = rope.leaves();
+
+      return balanced(leaves, 0, leaves.size());
+    }
+
+    return rope;
+  }
+
+  //join(Object[], int, int)
+  public static LoxString join(Object[] parts, int from, int count) {
+    int length = 0;
+
+    for (int i = from; i < from + count; i++)
+      length += ((LoxString)parts[i]).length;
+
+    //short enough to be flat: copy each part once into a buffer of
+    //the final size (a rope is always longer than LEAF_LIMIT)
+    if (length <= LEAF_LIMIT) {
+      StringBuilder sb = new StringBuilder(length);
+
+      for (int i = from; i < from + count; i++)
+        sb.append(((LoxString)parts[i]).chars);
+
+      return of(sb.toString());
+    }
+
+    LoxString joined = (LoxString)parts[from];
+
+    for (int i = from + 1; i < from + count; i++)
+      joined = joined.concat((LoxString)parts[i]);
+
+    return joined;
+  }
+
+  //leaves()
+  private List<LoxString> leaves() {
+    //Walked with an explicit stack, as a tree may be deep.
+    List<LoxString> leaves = new ArrayList<>();
+    List<LoxString> pending = new ArrayList<>();
+
+    pending.add(this);
+
+    while (!pending.isEmpty()) {
+      LoxString node = pending.remove(pending.size() - 1);
+
+      if (node.chars != null)
+        leaves.add(node);
+      else {
+        pending.add(node.right);
+        pending.add(node.left);
+      }
+    }
+
+    return leaves;
+  }
+
+  //balanced(List<LoxString>, int, int)
+  private static LoxString balanced(List<LoxString> leaves, int from, int to) {
+    if (to - from == 1)
+      return leaves.get(from);
+
+    int mid = (from + to) >>> 1;
+
+    return new LoxString(balanced(leaves, from, mid), balanced(leaves, mid, to));
+  }
+
+  //flatten()
+  private void flatten() {
+    StringBuilder sb = new StringBuilder(length);
+
+    for (LoxString leaf : leaves())
+      sb.append(leaf.chars);
+
+    //From here on this is a flat string; drop the tree.
+    chars = sb.toString();
+    left = null;
+    right = null;
+    depth = 0;
+  }
+
+  //equals(Object)
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+
+    if (!(o instanceof LoxString))
+      return false;
+
+    LoxString other = (LoxString)o;
+
+    //two distinct interned strings can't be equal
+    if (isInterned && other.isInterned)
+      return false;
+
+    if (length != other.length)
+      return false;
+
+    return hashCode() == other.hashCode() && chars().equals(other.chars());
+  }
+
+  //hashCode()
+  @Override
+  public int hashCode() {
+    if (hash == 0)
+      hash = chars().hashCode();
+
+    return hash;
+  }
+
+  //toString()
+  @Override
+  public String toString() {
+    return chars();
+  }
+}
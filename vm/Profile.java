@@ -0,0 +1,278 @@
+package vm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import compiler.Chunk;
+import compiler.Function;
+import compiler.Image;
+import compiler.OpCode;
+
+import static compiler.OpCode.*;
+
+//What a run learned about a script, stored so the next run of the
+//same source starts warm: per function, its call count, the
+//arithmetic its code was quickened to (type feedback), the offsets
+//where optimized code's speculation failed, and the trip counts of
+//its loops.  Records nest as the functions do, each function's
+//followed by those of the functions among its constants, and the
+//whole profile is matched by a hash of the source and whether it was
+//compiled with superinstructions, so a profile for other code is
+//ignored.
+//
+//Code from the code cache is only decoded when first run (see
+//Image), so a function's record is kept aside until then (see
+//FunctionState.decoded()), and one that never ran is written back
+//as it was read.  Reading or writing a profile decodes nothing.
+//
+//Inline caches aren't stored: what they hold (shapes, classes,
+//closures) only exists in the run that made them.  Instead a
+//primed function is interpreted for WARMUP calls before its count
+//counts, which fills them again, and the JIT's tiers then follow
+//as soon as the carried-over count allows.
+public class Profile {
+  private static final int MAGIC = 0x4C4F5850; //"LOXP"
+  private static final int VERSION = 3;
+  private static final int WARMUP = 10;
+  private static final int MAX_CALLS = Integer.MAX_VALUE / 2; //counts carried over, so runs add up
+
+  //Profile()
+  private Profile() {}
+
+  //write(Function, String, String, boolean)
+  public static void write(Function script, String source, String path, boolean superinstructions) {
+    try (
+      DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))
+    ) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(Image.hash(source));
+      out.writeBoolean(superinstructions);
+      out.write(record(script));
+    } catch (IOException e) {
+      System.err.println("Failed to store profile '" + path + "'.");
+    }
+  }
+
+  //read(Function, String, String, boolean)
+  public static boolean read(Function script, String source, String path, boolean superinstructions) {
+    //Primes script's functions from the profile at path; false if
+    //there is none for this source.
+    try (
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))
+    ) {
+      byte[] hash = new byte[Image.hash(source).length];
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return false;
+
+      in.readFully(hash);
+
+      if (!Arrays.equals(hash, Image.hash(source)) || in.readBoolean() != superinstructions)
+        return false;
+
+      prime(script, in.readAllBytes());
+
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  //prime(Function, byte[])
+  private static void prime(Function function, byte[] record) {
+    if (record.length == 0)
+      return;
+
+    if (function.isDecoded())
+      apply(function, record);
+    else
+      FunctionState.of(function).setPendingProfile(record);
+  }
+
+  //record(Function)
+  private static byte[] record(Function function) throws IOException {
+    //empty if nothing is known about the function
+    if (!function.isDecoded()) {
+      FunctionState state = (FunctionState)function.runtime();
+
+      return (state == null || state.pendingProfile() == null) ? new byte[0] : state.pendingProfile();
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    List<Function> nested = nested(function.chunk());
+
+    writeFunction(function, out);
+
+    out.writeInt(nested.size());
+
+    for (Function inner : nested) {
+      byte[] record = record(inner);
+
+      out.writeInt(record.length);
+      out.write(record);
+    }
+
+    return body.toByteArray();
+  }
+
+  //apply(Function, byte[])
+  static void apply(Function function, byte[] record) {
+    //A record that doesn't fit the code (corrupt, or for code
+    //compiled differently) is applied only as far as it does.
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    List<Function> nested = nested(function.chunk());
+
+    try {
+      readFunction(function, in);
+
+      if (in.readInt() != nested.size())
+        return;
+
+      for (Function inner : nested) {
+        int length = in.readInt();
+
+        if (length < 0 || length > in.available())
+          return;
+
+        byte[] innerRecord = new byte[length];
+
+        in.readFully(innerRecord);
+
+        prime(inner, innerRecord);
+      }
+    } catch (IOException e) {
+      return;
+    }
+  }
+
+  //nested(Chunk)
+  private static List<Function> nested(Chunk chunk) {
+    //the functions among chunk's constants, in order
+    List<Function> nested = new ArrayList<>();
+
+    for (int index = 0; index < chunk.constantsCount(); index++)
+      if (chunk.constants()[index] instanceof Function)
+        nested.add((Function)chunk.constants()[index]);
+
+    return nested;
+  }
+
+  //writeFunction(Function, DataOutputStream)
+  private static void writeFunction(Function function, DataOutputStream out) throws IOException {
+    Chunk chunk = function.chunk();
+    byte[] codes = chunk.codes();
+    int count = chunk.codesCount();
+    BitSet unstable = new BitSet();
+
+    FunctionState state = FunctionState.of(function);
+
+    out.writeInt(Math.min(state.callCount(), MAX_CALLS));
+    out.writeInt(state.deoptCount());
+
+    for (int offset = 0; offset < count; offset++)
+      if (state.isUnstable(offset))
+        unstable.set(offset);
+
+    out.writeInt(unstable.cardinality());
+
+    for (int offset = unstable.nextSetBit(0); offset != -1; offset = unstable.nextSetBit(offset + 1))
+      out.writeInt(offset);
+
+    //quickened arithmetic, then loops, each ended by -1
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset))
+      if (isTypeFeedback(codes[offset])) {
+        out.writeInt(offset);
+        out.writeByte(codes[offset]);
+      }
+
+    out.writeInt(-1);
+
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset))
+      if (chunk.inlineCache(offset) instanceof LoopCache) {
+        out.writeInt(offset);
+        out.writeInt(Math.min(((LoopCache)chunk.inlineCache(offset)).trips(), MAX_CALLS));
+      }
+
+    out.writeInt(-1);
+  }
+
+  //readFunction(Function, DataInputStream)
+  private static void readFunction(Function function, DataInputStream in) throws IOException {
+    //Offsets are checked against the code before use: only those
+    //where an instruction starts are patched, and only if it is
+    //still the generic form, since an operand byte can hold any
+    //value, that of an opcode included.
+    Chunk chunk = function.chunk();
+    byte[] codes = chunk.codes();
+    BitSet starts = new BitSet();
+    int callCount = in.readInt();
+    int deoptCount = in.readInt();
+    BitSet unstable = new BitSet();
+
+    for (int offset = 0; offset < chunk.codesCount(); offset += chunk.instructionWidth(offset))
+      starts.set(offset);
+
+    for (int n = in.readInt(); n > 0; n--) {
+      int offset = in.readInt();
+
+      if (offset >= 0 && starts.get(offset))
+        unstable.set(offset);
+    }
+
+    for (int offset = in.readInt(); offset != -1; offset = in.readInt()) {
+      byte opCode = in.readByte();
+
+      if (
+        offset >= 0 && starts.get(offset) && isTypeFeedback(opCode) &&
+        codes[offset] == OpCode.generic(opCode)
+      )
+        codes[offset] = opCode;
+    }
+
+    for (int offset = in.readInt(); offset != -1; offset = in.readInt()) {
+      int trips = in.readInt();
+
+      if (offset >= 0 && starts.get(offset) && codes[offset] == OP_LOOP)
+        chunk.setInlineCache(offset, new LoopCache(trips));
+    }
+
+    FunctionState state = FunctionState.of(function);
+
+    if (callCount > 0)
+      state.prime(callCount, deoptCount, unstable, WARMUP);
+
+    if (deoptCount >= Jit.MAX_DEOPTS)
+      state.markNotOptimizable();
+  }
+
+  //isTypeFeedback(byte)
+  private static boolean isTypeFeedback(byte opCode) {
+    //the quickened forms that guard themselves, with no cache
+    switch (opCode) {
+      case OP_ADD_NUM:
+      case OP_ADD_STR:
+      case OP_SUBTRACT_NUM:
+      case OP_MULTIPLY_NUM:
+      case OP_DIVIDE_NUM:
+      case OP_GREATER_NUM:
+      case OP_LESS_NUM:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package vm;
+
+import compiler.Function;
+
+//A script compiled once to be run any number of times, by any
+//number of VMs, including at once.  The compiled code is a template
+//that is never run itself: each run gets its own copy (see
+//Function.copy()), since running code rewrites it.
+//
+//Compiled code refers to globals by slot, so a program remembers
+//the names its slots were given; a VM running it names them in its
+//own table in the same order (see link()).  VMs that run nothing
+//else all agree.
+public final class Program {
+  private final Function script;
+  private final String[] globals; //names, by slot
+
+  //Program(Function, GlobalTable)
+  Program(Function script, GlobalTable globals) {
+    this.script = script;
+    this.globals = new String[globals.count()];
+
+    for (int slot = 0; slot < this.globals.length; slot++)
+      this.globals[slot] = globals.name(slot);
+  }
+
+  //script()
+  Function script() {
+    //a fresh copy for one run
+    return script.copy();
+  }
+
+  //link(GlobalTable)
+  void link(GlobalTable table) {
+    for (int slot = 0; slot < globals.length; slot++)
+      if (table.slot(globals[slot]) != slot)
+        throw new IllegalArgumentException("Program was compiled against other globals.");
+  }
+}
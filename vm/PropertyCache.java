@@ -0,0 +1,64 @@
+package vm;
+
+//Inline cache for an OP_GET_PROPERTY or OP_SET_PROPERTY site: the
+//shapes seen there, each with the slot the field lives in.  For a
+//store that adds the field, target is the shape the instance moves
+//to; otherwise target is the shape itself.  A site that sees more
+//than MAX_ENTRIES shapes is megamorphic and stays generic.
+public class PropertyCache {
+  private static final int MAX_ENTRIES = 4;
+
+  private Shape[] shapes;
+  private Shape[] targets;
+  private int[] slots;
+  private int count;
+
+  //PropertyCache()
+  PropertyCache() {
+    shapes = new Shape[MAX_ENTRIES];
+    targets = new Shape[MAX_ENTRIES];
+    slots = new int[MAX_ENTRIES];
+    count = 0;
+  }
+
+  //count()
+  public int count() {
+    return count;
+  }
+
+  //shape(int)
+  public Shape shape(int entry) {
+    return shapes[entry];
+  }
+
+  //lookup(Shape)
+  int lookup(Shape shape) {
+    for (int i = 0; i < count; i++)
+      if (shapes[i] == shape)
+        return i;
+
+    return -1;
+  }
+
+  //add(Shape, int, Shape)
+  boolean add(Shape shape, int slot, Shape target) {
+    if (count == MAX_ENTRIES)
+      return false;
+
+    shapes[count] = shape;
+    targets[count] = target;
+    slots[count++] = slot;
+
+    return true;
+  }
+
+  //slot(int)
+  public int slot(int entry) {
+    return slots[entry];
+  }
+
+  //target(int)
+  public Shape target(int entry) {
+    return targets[entry];
+  }
+}
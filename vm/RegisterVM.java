@@ -0,0 +1,441 @@
+package vm;
+
+import compiler.Function;
+import compiler.RegisterChunk;
+import compiler.Selector;
+import debug.Debugger;
+import main.Props;
+
+import static compiler.RegisterOpCode.*;
+
+//Runs the register form of each function (see RegisterEmitter)
+//instead of its stack code.  Frames, calls, upvalues and natives
+//are shared with the stack VM: a frame's registers are the
+//vStack slots from its base, and vStackCount is kept just past
+//them so the shared call machinery sees the usual stack layout.
+public class RegisterVM extends VM {
+  //Cached properties
+  private boolean debugPrintCode;
+
+  //RegisterVM(Props, Debugger)
+  public RegisterVM(Props properties, Debugger debugger) {
+    super(properties, debugger);
+  }
+
+  //line(int)
+  @Override
+  int line(int frame) {
+    return FunctionState.of(frameClosures[frame].function()).registerChunk().lines()[frameIPs[frame] - 1];
+  }
+
+  //enter(int)
+  private boolean enter(int frame) {
+    Function function = frameClosures[frame].function();
+    FunctionState state = FunctionState.of(function);
+    boolean isNew = !state.hasRegisterChunk();
+    RegisterChunk chunk = state.registerChunk();
+
+    if (isNew && debugPrintCode)
+      debugger.disassembleRegisterChunk(chunk, function.toString());
+
+    int slots = frameBases[frame] + chunk.maxRegisters();
+
+    if (slots > vStack.length && !growValues(slots)) {
+      popFrame(); //never started, so it has no line to report
+
+      runtimeError("Stack overflow.");
+
+      return false;
+    }
+
+    vStackCount = slots;
+
+    return true;
+  }
+
+  //rkBits(int, int, long[])
+  private long rkBits(int rk, int base, long[] constantBits) {
+    if (isConstant(rk))
+      return constantBits[index(rk)];
+
+    return vStack[base + rk];
+  }
+
+  //rkRef(int, int, RegisterChunk)
+  private Object rkRef(int rk, int base, RegisterChunk chunk) {
+    if (isConstant(rk))
+      return chunk.constants()[index(rk)];
+
+    return vStackRefs[base + rk];
+  }
+
+  //run()
+  @Override
+  InterpretResult run() {
+    if (!enter(fStackTop()))
+      return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+    long[] globalBits = globals.bits();
+    Object[] globalRefs = globals.refs();
+
+    //As in the stack VM, frame state is held in locals and
+    //re-read whenever a call or return changes frames.
+    frames:
+    for (;;) {
+      int frame = fStackTop();
+      Closure frameClosure = frameClosures[frame];
+      FunctionState state = FunctionState.of(frameClosure.function());
+      RegisterChunk chunk = state.registerChunk();
+      long[] codes = chunk.codes();
+      long[] constantBits = state.constantBits();
+      int base = frameBases[frame];
+      int ip = frameIPs[frame];
+
+      //Register dispatch loop.
+      for (;;) {
+        if (debugTraceExecution)
+          debugger.traceRegisterExecution(chunk, ip, globals, boxedSubstack());
+
+        long instruction = codes[ip++];
+        int a = a(instruction);
+        int b = b(instruction);
+        int c = c(instruction);
+
+        switch (op(instruction)) {
+          case R_MOVE:
+            copyValue(base + b, base + a);
+
+            break;
+          case R_LOADK:
+            vStack[base + a] = constantBits[b];
+            vStackRefs[base + a] = chunk.constants()[b];
+
+            break;
+          case R_LOADNIL:
+            vStack[base + a] = Value.NIL;
+
+            break;
+          case R_LOADTRUE:
+            vStack[base + a] = Value.TRUE;
+
+            break;
+          case R_LOADFALSE:
+            vStack[base + a] = Value.FALSE;
+
+            break;
+          case R_GETGLOBAL:
+            if (globalBits[b] == Value.UNDEFINED)
+              return error(ip, "Undefined variable '" + globals.name(b) + "'.");
+
+            vStack[base + a] = globalBits[b];
+            vStackRefs[base + a] = globalRefs[b];
+
+            break;
+          case R_DEFGLOBAL:
+            globals.define(c, rkBits(b, base, constantBits), rkRef(b, base, chunk));
+
+            break;
+          case R_SETGLOBAL:
+            if (globalBits[c] == Value.UNDEFINED)
+              return error(ip, "Undefined variable '" + globals.name(c) + "'.");
+
+            globals.assign(c, rkBits(b, base, constantBits), rkRef(b, base, chunk));
+
+            break;
+          case R_GETUPVAL:
+            Upvalue guUpvalue = frameClosure.upvalues()[b];
+
+            if (guUpvalue.location() != -1) //i.e., open
+              copyValue(guUpvalue.location(), base + a);
+            else { //i.e., closed
+              vStack[base + a] = guUpvalue.closedBits();
+              vStackRefs[base + a] = guUpvalue.closedRef();
+            }
+
+            break;
+          case R_SETUPVAL:
+            Upvalue suUpvalue = frameClosure.upvalues()[c];
+
+            if (suUpvalue.location() != -1) { //i.e., open
+              vStack[suUpvalue.location()] = rkBits(b, base, constantBits);
+              vStackRefs[suUpvalue.location()] = rkRef(b, base, chunk);
+            } else //i.e., closed
+              suUpvalue.setClosedValue(rkBits(b, base, constantBits), rkRef(b, base, chunk));
+
+            break;
+          case R_GETPROP:
+            Object gpValue = vStackRefs[base + b];
+
+            if (!Value.isObj(vStack[base + b]) || !(gpValue instanceof LoxInstance))
+              return error(ip, "Only instances have properties.");
+
+            LoxInstance gpInstance = (LoxInstance)gpValue;
+            Selector gpName = (Selector)chunk.constants()[c];
+
+            int gpSlot = gpInstance.slot(gpName.name());
+
+            if (gpSlot != -1) {
+              setBoxed(base + a, gpInstance.field(gpSlot));
+
+              break;
+            }
+
+            Closure gpMethod = gpInstance.klass().method(gpName);
+
+            if (gpMethod == null)
+              return error(ip, "Undefined property '" + gpName + "'.");
+
+            setObject(base + a, new BoundMethod(gpInstance, gpMethod));
+
+            break;
+          case R_SETPROP:
+            Object spValue = vStackRefs[base + a];
+
+            if (!Value.isObj(vStack[base + a]) || !(spValue instanceof LoxInstance))
+              return error(ip, "Only instances have fields.");
+
+            ((LoxInstance)spValue).put(
+              ((Selector)chunk.constants()[c]).name(),
+              Value.box(rkBits(b, base, constantBits), rkRef(b, base, chunk))
+            );
+
+            break;
+          case R_GETSUPER:
+            Selector gsName = (Selector)chunk.constants()[b];
+            Closure gsMethod = ((LoxClass)vStackRefs[base + a + 1]).method(gsName);
+
+            if (gsMethod == null)
+              return error(ip, "Undefined property '" + gsName + "'.");
+
+            setObject(base + a, new BoundMethod(vStackRefs[base + a], gsMethod));
+
+            break;
+          case R_EQ:
+            vStack[base + a] = Value.bool(Value.equal(
+              rkBits(b, base, constantBits), rkRef(b, base, chunk),
+              rkBits(c, base, constantBits), rkRef(c, base, chunk)
+            ));
+
+            break;
+          case R_GT:
+          case R_LT:
+          case R_SUB:
+          case R_MUL:
+          case R_DIV:
+            long nB = rkBits(b, base, constantBits);
+            long nC = rkBits(c, base, constantBits);
+
+            if (!Value.isNumber(nB) || !Value.isNumber(nC))
+              return error(ip, "Operands must be two numbers.");
+
+            vStack[base + a] = arithmetic(op(instruction), Value.asNumber(nB), Value.asNumber(nC));
+
+            break;
+          case R_ADD:
+            long addB = rkBits(b, base, constantBits);
+            long addC = rkBits(c, base, constantBits);
+
+            if (Value.isNumber(addB) && Value.isNumber(addC)) {
+              vStack[base + a] = Value.number(Value.asNumber(addB) + Value.asNumber(addC));
+
+              break;
+            }
+
+            Object addRefB = rkRef(b, base, chunk);
+            Object addRefC = rkRef(c, base, chunk);
+
+            if (
+              !Value.isObj(addB) || !(addRefB instanceof LoxString) ||
+              !Value.isObj(addC) || !(addRefC instanceof LoxString)
+            )
+              return error(ip, "Operands must be two numbers or two strings.");
+
+            setObject(base + a, ((LoxString)addRefB).concat((LoxString)addRefC));
+
+            break;
+          case R_NOT:
+            vStack[base + a] = Value.bool(Value.isFalsey(rkBits(b, base, constantBits)));
+
+            break;
+          case R_NEG:
+            long negB = rkBits(b, base, constantBits);
+
+            if (!Value.isNumber(negB))
+              return error(ip, "Operand must be a number");
+
+            vStack[base + a] = Value.number(-Value.asNumber(negB));
+
+            break;
+          case R_JMP:
+            ip = b;
+
+            break;
+          case R_JMPF:
+            if (Value.isFalsey(vStack[base + a]))
+              ip = b;
+
+            break;
+          case R_CALL:
+          case R_INVOKE:
+          case R_SUPERINVOKE:
+            int frames = fStackCount;
+
+            //callee (or receiver) and arguments on top of the stack
+            vStackCount = base + a + b + 1;
+            frameIPs[frame] = ip;
+
+            if (!call(op(instruction), base + a, b, c, chunk))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            if (fStackCount == frames) {
+              //a native or a class without an initializer has
+              //already left its result in R[A]
+              vStackCount = base + chunk.maxRegisters();
+
+              break;
+            }
+
+            if (!enter(fStackTop()))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            continue frames;
+          case R_TAILCALL:
+          case R_TAILINVOKE:
+            vStackCount = base + a + b + 1;
+            frameIPs[frame] = ip;
+
+            Selector name = (op(instruction) == R_TAILINVOKE) ? (Selector)chunk.constants()[c] : null;
+
+            if (!tailCall(frame, name, b))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            //the callee has taken the frame over
+            if (fStackCount > frame) {
+              if (!enter(frame))
+                return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+              continue frames;
+            }
+
+            //or, a native, has returned from it with its result at base
+            if (fStackCount == 0)
+              return InterpretResult.INTERPRET_OK;
+
+            vStackCount =
+              frameBases[fStackTop()] +
+              FunctionState.of(frameClosures[fStackTop()].function()).registerChunk().maxRegisters();
+
+            continue frames;
+          case R_CLOSURE:
+            Function function = (Function)chunk.constants()[b];
+            Closure closure = new Closure(function);
+
+            setObject(base + a, closure);
+
+            for (int i = 0; i < c; i++) {
+              long upvalue = codes[ip++];
+
+              if (a(upvalue) != 0)
+                closure.upvalues()[i] = captureUpvalue(base + b(upvalue));
+              else
+                closure.upvalues()[i] = frameClosure.upvalues()[b(upvalue)];
+            }
+
+            break;
+          case R_CLOSE:
+            closeUpvalues(base + a);
+
+            break;
+          case R_RETURN:
+            long resultBits = rkBits(b, base, constantBits);
+            Object resultRef = rkRef(b, base, chunk);
+
+            closeUpvalues(base);
+
+            popFrame();
+
+            if (fStackCount == 0) {
+              vStackCount = 0;
+
+              return InterpretResult.INTERPRET_OK;
+            }
+
+            //the result replaces the callee in the caller's registers
+            vStack[base] = resultBits;
+            vStackRefs[base] = resultRef;
+
+            vStackCount =
+              frameBases[fStackTop()] +
+              FunctionState.of(frameClosures[fStackTop()].function()).registerChunk().maxRegisters();
+
+            //(after vStackCount, which it keeps room for)
+            if (fStackCount < shrinkDepth)
+              shrink();
+
+            continue frames;
+          case R_CLASS:
+            setObject(base + a, new LoxClass(((LoxString)chunk.constants()[b]).chars()));
+
+            break;
+          case R_INHERIT:
+            Object superclass = vStackRefs[base + b];
+
+            if (!Value.isObj(vStack[base + b]) || !(superclass instanceof LoxClass))
+              return error(ip, "Superclass must be a class.");
+
+            ((LoxClass)vStackRefs[base + a]).inherit((LoxClass)superclass);
+
+            break;
+          case R_METHOD:
+            ((LoxClass)vStackRefs[base + a]).defineMethod(
+              (Selector)chunk.constants()[c], (Closure)vStackRefs[base + b]
+            );
+
+            break;
+        } //switch
+      } //for(;;)
+    } //frames
+  }
+
+  //call(int, int, int, int, RegisterChunk)
+  private boolean call(int op, int callee, int argCount, int name, RegisterChunk chunk) {
+    switch (op) {
+      case R_CALL:
+        return callValue(Value.box(vStack[callee], vStackRefs[callee]), argCount);
+      case R_INVOKE:
+        return invoke((Selector)chunk.constants()[name], argCount);
+      default:
+        LoxClass superclass = (LoxClass)vStackRefs[callee + argCount + 1];
+
+        return invokeFromClass(superclass, (Selector)chunk.constants()[name], argCount);
+    }
+  }
+
+  //arithmetic(int, double, double)
+  private long arithmetic(int op, double b, double c) {
+    switch (op) {
+      case R_GT:
+        return Value.bool(b > c);
+      case R_LT:
+        return Value.bool(b < c);
+      case R_SUB:
+        return Value.number(b - c);
+      case R_MUL:
+        return Value.number(b * c);
+      default:
+        return Value.number(b / c);
+    }
+  }
+
+  //updateCachedProperties()
+  @Override
+  protected void updateCachedProperties() {
+    super.updateCachedProperties();
+
+    debugPrintCode =
+      properties.getBool("DEBUG_MASTER") && properties.getBool("DEBUG_PRINT_CODE");
+
+    //compiled code runs stack frames, not register frames
+    jit = null;
+  }
+}
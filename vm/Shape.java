@@ -0,0 +1,78 @@
+package vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//Hidden class describing which field lives in which slot of a
+//LoxInstance.  Every instance starts at ROOT; adding a field moves
+//it to the child shape for that name, so instances that gain the
+//same fields in the same order share a shape, and a shape check is
+//all an inline cache needs to trust a slot index.
+public class Shape {
+  public static final Shape ROOT = new Shape(null, new HashMap<>());
+
+  private Shape parent;
+  private Map<String, Integer> slots; //every field, not just the newest
+  private Map<String, Shape> transitions;
+
+  //Shape(Shape, Map<String, Integer>)
+  private Shape(Shape parent, Map<String, Integer> slots) {
+    this.parent = parent;
+    this.slots = slots;
+
+    transitions = new HashMap<>();
+  }
+
+  //parent()
+  public Shape parent() {
+    return parent;
+  }
+
+  //slotCount()
+  public int slotCount() {
+    return slots.size();
+  }
+
+  //slot(String)
+  public int slot(String name) {
+    Integer slot = slots.get(name);
+
+    return (slot == null) ? -1 : slot;
+  }
+
+  //names()
+  public String[] names() {
+    //the fields, by slot
+    String[] names = new String[slots.size()];
+
+    for (Map.Entry<String, Integer> entry : slots.entrySet())
+      names[entry.getValue()] = entry.getKey();
+
+    return names;
+  }
+
+  //transition(String)
+  public synchronized Shape transition(String name) {
+    //Shapes are shared by every VM, so the one mutable part
+    //(the transition tree) is guarded.
+    Shape child = transitions.get(name);
+
+    if (child == null) {
+      Map<String, Integer> childSlots = new HashMap<>(slots);
+
+      childSlots.put(name, slots.size());
+
+      child = new Shape(this, childSlots);
+
+      transitions.put(name, child);
+    }
+
+    return child;
+  }
+
+  //toString()
+  @Override
+  public String toString() {
+    return "Shape" + slots.keySet();
+  }
+}
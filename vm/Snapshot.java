@@ -0,0 +1,445 @@
+package vm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Function;
+import compiler.Image;
+import compiler.Selector;
+import nativefn.NativeFn;
+
+//A script's heap as it stood when the script first called
+//snapshot(), stored so later runs of the same source start from
+//there instead of running the script's setup again.  It holds the
+//globals, the script's frame (its stack and where it had got to)
+//and every object they reach: strings, classes and their methods,
+//instances, closures and their upvalues, bound methods and natives.
+//
+//Objects are written once each, numbered, and referred to by
+//number, so sharing and cycles survive.  Strings that were interned
+//are interned again, so they stay identical to the script's own
+//literals (see LoxString.equals()).  Functions are matched by
+//their order in the function tree (see Image.functions()) and
+//natives by the name the VM defined them as, and the whole snapshot
+//by a hash of the source, so a snapshot for other source is
+//ignored.  Reading one costs what it holds, however long the setup
+//took to run.
+public class Snapshot {
+  private static final int MAGIC = 0x4C4F5853; //"LOXS"
+  private static final int VERSION = 2;
+
+  //Object tags
+  private static final int OBJECT_STRING   = 0;
+  private static final int OBJECT_NATIVE   = 1;
+  private static final int OBJECT_CLASS    = 2;
+  private static final int OBJECT_CLOSURE  = 3;
+  private static final int OBJECT_UPVALUE  = 4;
+  private static final int OBJECT_INSTANCE = 5;
+  private static final int OBJECT_BOUND    = 6;
+  private static final int OBJECT_INTERNED = 7; //a string, interned again when read
+
+  //Snapshot()
+  private Snapshot() {}
+
+  //write(VM, String, String, boolean)
+  static void write(VM vm, String source, String path, boolean superinstructions) {
+    //Called from the script's frame, just after snapshot() returned.
+    GlobalTable globals = vm.globals();
+    Function script = vm.frameClosures[0].function();
+    List<Object> objects = new ArrayList<>();
+    Map<Object, Integer> ids = new IdentityHashMap<>();
+
+    for (int slot = 0; slot < globals.count(); slot++)
+      add(globals.bits()[slot], globals.refs()[slot], objects, ids);
+
+    for (int slot = 0; slot < vm.vStackCount; slot++)
+      add(vm.vStack[slot], vm.vStackRefs[slot], objects, ids);
+
+    for (Upvalue upvalue = vm.openUpvalues(); upvalue != null; upvalue = upvalue.next())
+      add(upvalue, objects, ids);
+
+    //objects added as they're reached
+    for (int id = 0; id < objects.size(); id++)
+      addReferences(objects.get(id), objects, ids);
+
+    //Numbered so that what making an object takes (an instance's
+    //class, a bound method's receiver and method) comes before it.
+    objects.sort((a, b) -> Integer.compare(rank(a), rank(b)));
+
+    for (int id = 0; id < objects.size(); id++)
+      ids.put(objects.get(id), id);
+
+    try (
+      DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))
+    ) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(Image.hash(source));
+      out.writeBoolean(superinstructions);
+
+      out.writeInt(globals.count());
+
+      for (int slot = 0; slot < globals.count(); slot++)
+        writeString(globals.name(slot), out);
+
+      //every object, then what each refers to
+      Map<Function, Integer> functions = new IdentityHashMap<>();
+
+      for (Function function : Image.functions(script))
+        functions.put(function, functions.size());
+
+      out.writeInt(objects.size());
+
+      for (Object object : objects)
+        writeObject(vm, object, functions, ids, out);
+
+      for (Object object : objects)
+        writeReferences(object, ids, out);
+
+      for (int slot = 0; slot < globals.count(); slot++)
+        writeValue(globals.bits()[slot], globals.refs()[slot], ids, out);
+
+      out.writeInt(vm.frameIPs[0]);
+      out.writeInt(vm.vStackCount);
+
+      for (int slot = 0; slot < vm.vStackCount; slot++)
+        writeValue(vm.vStack[slot], vm.vStackRefs[slot], ids, out);
+
+      for (Upvalue upvalue = vm.openUpvalues(); upvalue != null; upvalue = upvalue.next())
+        out.writeInt(ids.get(upvalue));
+
+      out.writeInt(-1);
+    } catch (IOException | IllegalStateException e) {
+      System.err.println("Failed to store snapshot '" + path + "': " + e.getMessage());
+    }
+  }
+
+  //read(VM, Function, String, String, boolean)
+  public static boolean read(VM vm, Function script, String source, String path, boolean superinstructions) {
+    //Restores vm to where script was when its snapshot at path was
+    //taken, ready for vm.resume(); false if there is none for this
+    //source.  script is as compiled, not yet run.
+    try (
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))
+    ) {
+      byte[] hash = new byte[Image.hash(source).length];
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return false;
+
+      in.readFully(hash);
+
+      if (!Arrays.equals(hash, Image.hash(source)) || in.readBoolean() != superinstructions)
+        return false;
+
+      GlobalTable globals = vm.globals();
+      int count = in.readInt();
+
+      for (int slot = 0; slot < count; slot++)
+        if (globals.slot(readString(in)) != slot)
+          return false;
+
+      List<Function> functions = Image.functions(script);
+      Object[] objects = new Object[in.readInt()];
+
+      for (int id = 0; id < objects.length; id++)
+        objects[id] = readObject(vm, in, functions, objects);
+
+      for (Object object : objects)
+        readReferences(object, objects, in);
+
+      for (int slot = 0; slot < count; slot++) {
+        long bits = in.readLong();
+        Object ref = (bits == Value.OBJ) ? objects[in.readInt()] : null;
+
+        //natives, already there, keep their status as constants
+        if (bits != Value.UNDEFINED && (bits != globals.bits()[slot] || ref != globals.refs()[slot]))
+          globals.define(slot, bits, ref);
+      }
+
+      int ip = in.readInt();
+      long[] bits = new long[in.readInt()];
+      Object[] refs = new Object[bits.length];
+
+      for (int slot = 0; slot < bits.length; slot++) {
+        bits[slot] = in.readLong();
+        refs[slot] = (bits[slot] == Value.OBJ) ? objects[in.readInt()] : null;
+      }
+
+      Upvalue openUpvalues = null;
+      Upvalue last = null;
+
+      for (int id = in.readInt(); id != -1; id = in.readInt()) {
+        Upvalue upvalue = (Upvalue)objects[id];
+
+        if (last == null)
+          openUpvalues = upvalue;
+        else
+          last.setNext(upvalue);
+
+        last = upvalue;
+      }
+
+      return refs.length > 0 && refs[0] instanceof Closure &&
+        ((Closure)refs[0]).function() == script &&
+        vm.restore((Closure)refs[0], ip, bits, refs, openUpvalues);
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  //add(long, Object, List<Object>, Map<Object, Integer>)
+  private static void add(long bits, Object ref, List<Object> objects, Map<Object, Integer> ids) {
+    if (bits == Value.OBJ)
+      add(ref, objects, ids);
+  }
+
+  //add(Object, List<Object>, Map<Object, Integer>)
+  private static void add(Object object, List<Object> objects, Map<Object, Integer> ids) {
+    //boxed values too: numbers, booleans and nil aren't objects
+    if (object == null || object instanceof Double || object instanceof Boolean || ids.containsKey(object))
+      return;
+
+    ids.put(object, objects.size());
+    objects.add(object);
+  }
+
+  //addReferences(Object, List<Object>, Map<Object, Integer>)
+  private static void addReferences(Object object, List<Object> objects, Map<Object, Integer> ids) {
+    if (object instanceof LoxClass) {
+      for (Closure method : ((LoxClass)object).methods())
+        add(method, objects, ids);
+    } else if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance)object;
+
+      add(instance.klass(), objects, ids);
+
+      for (int slot = 0; slot < instance.shape().slotCount(); slot++)
+        add(instance.field(slot), objects, ids);
+    } else if (object instanceof Closure) {
+      for (Upvalue upvalue : ((Closure)object).upvalues())
+        add(upvalue, objects, ids);
+    } else if (object instanceof Upvalue) {
+      Upvalue upvalue = (Upvalue)object;
+
+      if (upvalue.location() == -1)
+        add(upvalue.closedBits(), upvalue.closedRef(), objects, ids);
+    } else if (object instanceof BoundMethod) {
+      add(((BoundMethod)object).receiver(), objects, ids);
+      add(((BoundMethod)object).method(), objects, ids);
+    }
+  }
+
+  //rank(Object)
+  private static int rank(Object object) {
+    if (object instanceof LoxInstance)
+      return 1;
+    else if (object instanceof BoundMethod)
+      return 2; //receivers are instances, never bound methods themselves
+
+    return 0;
+  }
+
+  //writeObject(VM, Object, Map<Function, Integer>, Map<Object, Integer>, DataOutputStream)
+  private static void writeObject(
+    VM vm, Object object, Map<Function, Integer> functions, Map<Object, Integer> ids, DataOutputStream out
+  ) throws IOException {
+    //what it takes to make the object, which refers only to objects
+    //already made
+    if (object instanceof LoxString) {
+      out.writeByte(((LoxString)object).isInterned() ? OBJECT_INTERNED : OBJECT_STRING);
+      writeString(((LoxString)object).chars(), out);
+    } else if (object instanceof NativeFn) {
+      String name = vm.nativeName((NativeFn)object);
+
+      if (name == null)
+        throw new IllegalStateException("Can't store native " + object + ".");
+
+      out.writeByte(OBJECT_NATIVE);
+      writeString(name, out);
+    } else if (object instanceof LoxClass) {
+      out.writeByte(OBJECT_CLASS);
+      writeString(((LoxClass)object).name(), out);
+      out.writeInt(((LoxClass)object).fieldCountHint());
+    } else if (object instanceof Closure) {
+      Integer index = functions.get(((Closure)object).function());
+
+      if (index == null)
+        throw new IllegalStateException("Can't store closure " + object + ".");
+
+      out.writeByte(OBJECT_CLOSURE);
+      out.writeInt(index);
+    } else if (object instanceof Upvalue) {
+      out.writeByte(OBJECT_UPVALUE);
+      out.writeInt(((Upvalue)object).location());
+    } else if (object instanceof LoxInstance) {
+      out.writeByte(OBJECT_INSTANCE);
+      out.writeInt(ids.get(((LoxInstance)object).klass()));
+    } else if (object instanceof BoundMethod) {
+      out.writeByte(OBJECT_BOUND);
+      writeValue(((BoundMethod)object).receiver(), ids, out);
+      out.writeInt(ids.get(((BoundMethod)object).method()));
+    } else
+      throw new IllegalStateException("Can't store " + object + ".");
+  }
+
+  //readObject(VM, DataInputStream, List<Function>, Object[])
+  private static Object readObject(VM vm, DataInputStream in, List<Function> functions, Object[] objects)
+      throws IOException {
+    int tag = in.readByte();
+
+    switch (tag) {
+      case OBJECT_STRING:
+        return LoxString.of(readString(in));
+      case OBJECT_INTERNED:
+        return LoxString.intern(readString(in));
+      case OBJECT_NATIVE:
+        NativeFn nativeFn = vm.nativeFn(readString(in));
+
+        if (nativeFn == null)
+          throw new IOException("Unknown native.");
+
+        return nativeFn;
+      case OBJECT_CLASS:
+        LoxClass klass = new LoxClass(readString(in));
+
+        klass.noteFieldCount(in.readInt());
+
+        return klass;
+      case OBJECT_CLOSURE:
+        return new Closure(functions.get(in.readInt()));
+      case OBJECT_UPVALUE:
+        return new Upvalue(in.readInt());
+      case OBJECT_INSTANCE:
+        return new LoxInstance((LoxClass)objects[in.readInt()]);
+      case OBJECT_BOUND:
+        return new BoundMethod(readRef(in, objects), (Closure)objects[in.readInt()]);
+      default:
+        throw new IOException("Bad object tag " + tag + ".");
+    }
+  }
+
+  //writeReferences(Object, Map<Object, Integer>, DataOutputStream)
+  private static void writeReferences(Object object, Map<Object, Integer> ids, DataOutputStream out)
+      throws IOException {
+    if (object instanceof LoxClass) {
+      Closure[] methods = ((LoxClass)object).methods();
+
+      for (int id = 0; id < methods.length; id++)
+        if (methods[id] != null) {
+          writeString(Selector.forMethodId(id).name(), out);
+          out.writeInt(ids.get(methods[id]));
+        }
+
+      out.writeInt(-1);
+    } else if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance)object;
+      String[] names = instance.shape().names();
+
+      out.writeInt(names.length);
+
+      for (int slot = 0; slot < names.length; slot++) {
+        writeString(names[slot], out);
+        writeValue(instance.field(slot), ids, out);
+      }
+    } else if (object instanceof Closure) {
+      for (Upvalue upvalue : ((Closure)object).upvalues())
+        out.writeInt((upvalue == null) ? -1 : ids.get(upvalue));
+    } else if (object instanceof Upvalue) {
+      Upvalue upvalue = (Upvalue)object;
+
+      if (upvalue.location() == -1)
+        writeValue(upvalue.closedBits(), upvalue.closedRef(), ids, out);
+    }
+  }
+
+  //readReferences(Object, Object[], DataInputStream)
+  private static void readReferences(Object object, Object[] objects, DataInputStream in)
+      throws IOException {
+    if (object instanceof LoxClass) {
+      LoxClass klass = (LoxClass)object;
+
+      for (int length = in.readInt(); length != -1; length = in.readInt())
+        klass.defineMethod(Selector.of(readString(length, in)), (Closure)objects[in.readInt()]);
+    } else if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance)object;
+
+      //the same fields in the same order make the same shape
+      for (int n = in.readInt(); n > 0; n--)
+        instance.put(readString(in), readRef(in, objects));
+    } else if (object instanceof Closure) {
+      Upvalue[] upvalues = ((Closure)object).upvalues();
+
+      for (int index = 0; index < upvalues.length; index++) {
+        int id = in.readInt();
+
+        upvalues[index] = (id == -1) ? null : (Upvalue)objects[id];
+      }
+    } else if (object instanceof Upvalue) {
+      Upvalue upvalue = (Upvalue)object;
+
+      if (upvalue.location() == -1) {
+        long bits = in.readLong();
+
+        upvalue.setClosedValue(bits, (bits == Value.OBJ) ? objects[in.readInt()] : null);
+      }
+    }
+  }
+
+  //writeValue(Object, Map<Object, Integer>, DataOutputStream)
+  private static void writeValue(Object boxed, Map<Object, Integer> ids, DataOutputStream out)
+      throws IOException {
+    writeValue(Value.bits(boxed), boxed, ids, out);
+  }
+
+  //writeValue(long, Object, Map<Object, Integer>, DataOutputStream)
+  private static void writeValue(long bits, Object ref, Map<Object, Integer> ids, DataOutputStream out)
+      throws IOException {
+    out.writeLong(bits);
+
+    if (bits == Value.OBJ)
+      out.writeInt(ids.get(ref));
+  }
+
+  //readRef(DataInputStream, Object[])
+  private static Object readRef(DataInputStream in, Object[] objects) throws IOException {
+    //a value as boxed
+    long bits = in.readLong();
+
+    return Value.box(bits, (bits == Value.OBJ) ? objects[in.readInt()] : null);
+  }
+
+  //writeString(String, DataOutputStream)
+  private static void writeString(String s, DataOutputStream out) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  //readString(DataInputStream)
+  private static String readString(DataInputStream in) throws IOException {
+    return readString(in.readInt(), in);
+  }
+
+  //readString(int, DataInputStream)
+  private static String readString(int length, DataInputStream in) throws IOException {
+    byte[] bytes = new byte[length];
+
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,68 @@
+package vm;
+
+//A function compiled to a tree of pre-linked Java objects (see
+//TreeCompiler) rather than to a class: the JIT's backend for when
+//generating classes at run time isn't wanted or isn't allowed.
+//
+//The code is a graph of blocks, each a run of statements and an
+//exit choosing the next block.  A statement is a tree of nodes, one
+//per Lox instruction, each running its operands' nodes and then its
+//own operation, with its constants, slots, names and targets fixed
+//when it was built.  Values stay in vStack, where the interpreter
+//keeps them, so nothing is copied in or out; what goes is the
+//decoding of operands and the dispatch on opcodes.
+final class TreeCode implements CompiledCode {
+  //Node
+  interface Node {
+    //execute(VM, int)
+    boolean execute(VM vm, int base); //false after a runtime error
+  }
+
+  //Exit
+  interface Exit {
+    //next(VM, int)
+    Block next(VM vm, int base); //null once the frame has returned, FAILED after a runtime error
+  }
+
+  //Block
+  static final class Block {
+    private Node[] statements;
+    private Exit exit;
+
+    //isSet()
+    boolean isSet() {
+      return exit != null;
+    }
+
+    //set(Node[], Exit)
+    void set(Node[] statements, Exit exit) {
+      this.statements = statements;
+      this.exit = exit;
+    }
+  }
+
+  static final Block FAILED = new Block();
+
+  private final Block entry;
+
+  //TreeCode(Block)
+  TreeCode(Block entry) {
+    this.entry = entry;
+  }
+
+  //run(VM, int)
+  @Override
+  public boolean run(VM vm, int base) {
+    Block block = entry;
+
+    do {
+      for (Node statement : block.statements)
+        if (!statement.execute(vm, base))
+          return false;
+
+      block = block.exit.next(vm, base);
+    } while (block != null && block != FAILED);
+
+    return block == null;
+  }
+}
@@ -0,0 +1,854 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import compiler.Chunk;
+import compiler.Function;
+import compiler.JumpTargets;
+import compiler.OpCode;
+import compiler.Selector;
+import compiler.SuperinstructionPass;
+import vm.TreeCode.Block;
+import vm.TreeCode.Exit;
+import vm.TreeCode.Node;
+
+import static compiler.OpCode.*;
+
+//Builds a TreeCode from a function's stack code, tracking the
+//operand stack as BaselineCompiler does.  An instruction's node
+//isn't run where the instruction stands: it waits on a symbolic
+//stack for the instruction that takes its value, and becomes one of
+//that node's operands, so each expression becomes one tree.  Nodes
+//still waiting are flushed, as statements in stack order, before
+//anything that isn't part of an expression (a pop, a jump, a return,
+//the end of a block) and before a local is read whose value hasn't
+//been computed yet.  Either way nodes run in the order of the
+//instructions they come from.
+//
+//A value waiting on the stack needn't be in its own slot: a local
+//just read, or just assigned, is left where the local is, and the
+//node taking it reads it from there.  Such a read is made real (a
+//copy to its own slot) before the local is next assigned, and when
+//flushed.
+//
+//A function using an instruction BaselineCompiler doesn't handle is
+//refused (IllegalStateException) here too.
+final class TreeCompiler {
+  private static final String TWO_NUMBERS = "Operands must be two numbers.";
+  private static final String NUMBERS_OR_STRINGS = "Operands must be two numbers or two strings.";
+
+  private Function function;
+  private Chunk chunk;
+  private int depth;
+  //By stack slot: the node still to run to compute the value there,
+  //or null, and the slot the value is in once it has run.
+  private Node[] pending;
+  private int[] sources;
+  private JumpTargets<Block> blocks; //labelled with the block starting there
+  private Block entry;
+  private Block block; //being built
+  private List<Node> statements; //of block
+  private int branchSlot; //condition of an OP_JUMP_IF_FALSE ending block
+  private int branchTarget; //its target, or -1
+  private boolean unreachable;
+
+  //TreeCompiler(Function)
+  TreeCompiler(Function function) {
+    this.function = function;
+
+    chunk = function.chunk();
+    pending = new Node[0];
+    sources = new int[0];
+    branchTarget = -1;
+
+    grow(function.arity() + 8);
+  }
+
+  //compile()
+  TreeCode compile() {
+    byte[] codes = chunk.codes();
+    int count = chunk.codesCount();
+    entry = new Block();
+    blocks = new JumpTargets<>(chunk, Block::new);
+
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset)) {
+      byte opCode = codes[offset];
+
+      //a block starts at each jump target, and at the code a
+      //conditional jump falls through to
+      if (opCode == OP_JUMP_IF_FALSE || opCode == OP_JUMP_IF_FALSE_POP)
+        blocks.setLabel(offset + chunk.instructionWidth(offset), new Block());
+    }
+
+    begin(entry);
+
+    //callee (or receiver) plus arguments
+    depth = function.arity() + 1;
+
+    for (int offset = 0; offset < count; offset += chunk.instructionWidth(offset)) {
+      if (blocks.label(offset) != null)
+        label(offset);
+
+      if (unreachable)
+        continue;
+
+      byte opCode = OpCode.generic(codes[offset]);
+      byte[] components = SuperinstructionPass.components(opCode);
+      int end = offset + chunk.instructionWidth(offset);
+
+      if (components == null)
+        instruction(opCode, offset + 1, end);
+      else
+        for (int at = offset + 1, i = 0; i < components.length; i++) {
+          instruction(components[i], at, end);
+
+          at += OpCode.operandWidth(components[i]);
+        }
+    }
+
+    if (!unreachable)
+      throw new IllegalStateException("Code runs off its end.");
+
+    for (int offset = 0; offset <= count; offset++)
+      if (blocks.isJumpedTo(offset) && !blocks.label(offset).isSet())
+        throw new IllegalStateException("Jump to code not compiled.");
+
+    return new TreeCode(entry);
+  }
+
+  //label(int)
+  private void label(int offset) {
+    Block next = blocks.label(offset);
+
+    if (!unreachable) {
+      //falling through, or not taking a conditional jump
+      if (branchTarget == -1)
+        finish(goTo(next));
+      else {
+        finish(ifFalse(branchSlot, blocks.label(branchTarget), next));
+
+        branchTarget = -1;
+      }
+    } else {
+      int targetDepth = blocks.resumeDepth(offset);
+
+      if (targetDepth == -1)
+        return;
+
+      depth = targetDepth;
+      unreachable = false;
+    }
+
+    begin(next);
+  }
+
+  //instruction(byte, int, int)
+  private void instruction(byte opCode, int at, int end) {
+    int top = depth - 1;
+
+    switch (opCode) {
+      case OP_CONSTANT:
+        long constantBits = Value.bits(chunk.constants()[word(at)]);
+        Object constant = chunk.constants()[word(at)];
+
+        push(top + 1, (vm, base) -> {
+          JitRuntime.store(vm, base + top + 1, constantBits, constant);
+
+          return true;
+        }, top + 1);
+
+        break;
+      case OP_NIL:
+        pushBits(Value.NIL);
+
+        break;
+      case OP_TRUE:
+        pushBits(Value.TRUE);
+
+        break;
+      case OP_FALSE:
+        pushBits(Value.FALSE);
+
+        break;
+      case OP_POP:
+        flush();
+
+        depth--;
+
+        break;
+      case OP_GET_LOCAL:
+        int glSlot = word(at);
+
+        if (pending[glSlot] != null || sources[glSlot] != glSlot)
+          flush();
+
+        //nothing to run: whatever takes it reads the local
+        push(top + 1, null, glSlot);
+
+        break;
+      case OP_SET_LOCAL:
+        int slSlot = word(at);
+        Node slValue = take(top);
+        int slFrom = source(top);
+
+        //reads of the local still waiting are made now
+        for (int slot = 0; slot < top; slot++)
+          if (sources[slot] == slSlot && slot != slSlot)
+            pending[slot] = inPlace(slot);
+
+        push(top, (vm, base) -> {
+          if (slValue != null && !slValue.execute(vm, base))
+            return false;
+
+          JitRuntime.store(vm, base + slSlot, vm.vStack[base + slFrom], vm.vStackRefs[base + slFrom]);
+
+          return true;
+        }, slSlot);
+
+        break;
+      case OP_GET_GLOBAL:
+        int ggSlot = word(at);
+
+        push(top + 1, (vm, base) -> {
+          long bits = vm.globals.bits()[ggSlot];
+
+          if (bits == Value.UNDEFINED)
+            return JitRuntime.undefinedVariable(vm, end, ggSlot);
+
+          JitRuntime.store(vm, base + top + 1, bits, vm.globals.refs()[ggSlot]);
+
+          return true;
+        }, top + 1);
+
+        break;
+      case OP_SET_GLOBAL:
+        int sgSlot = word(at);
+        Node sgValue = take(top);
+        int sgFrom = source(top);
+
+        push(top, (vm, base) ->
+          (sgValue == null || sgValue.execute(vm, base)) &&
+          JitRuntime.setGlobal(vm, end, sgSlot, vm.vStack[base + sgFrom], vm.vStackRefs[base + sgFrom]),
+          sgFrom
+        );
+
+        break;
+      case OP_GET_UPVALUE:
+        int guIndex = word(at);
+
+        push(top + 1, (vm, base) -> {
+          Closure closure = vm.frameClosures[vm.fStackTop()];
+
+          JitRuntime.store(
+            vm, base + top + 1,
+            JitRuntime.upvalueBits(vm, closure, guIndex), JitRuntime.upvalueRef(vm, closure, guIndex)
+          );
+
+          return true;
+        }, top + 1);
+
+        break;
+      case OP_SET_UPVALUE:
+        int suIndex = word(at);
+
+        push(top, consume(top, (vm, base) -> {
+          Closure closure = vm.frameClosures[vm.fStackTop()];
+
+          JitRuntime.setUpvalue(vm, closure, suIndex, vm.vStack[base + top], vm.vStackRefs[base + top]);
+
+          return true;
+        }), top);
+
+        break;
+      case OP_GET_PROPERTY:
+        Object gpName = chunk.constants()[word(at)];
+        PropertyCache gpCache = new PropertyCache();
+        Node gpInstance = take(top);
+        int gpFrom = source(top);
+
+        push(top, (vm, base) ->
+          (gpInstance == null || gpInstance.execute(vm, base)) &&
+          storeBoxed(vm, base + top, getProperty(vm, end, base + gpFrom, gpName, gpCache)),
+          top
+        );
+
+        break;
+      case OP_SET_PROPERTY:
+        Object spName = chunk.constants()[word(at)];
+        PropertyCache spCache = new PropertyCache();
+
+        push(top - 1, consume(top - 1, (vm, base) -> {
+          int i = base + top - 1;
+
+          if (!setProperty(vm, end, i, spName, spCache))
+            return false;
+
+          //the value replaces the instance
+          JitRuntime.store(vm, i, vm.vStack[i + 1], vm.vStackRefs[i + 1]);
+
+          return true;
+        }), top - 1);
+
+        depth--;
+
+        break;
+      case OP_GET_SUPER:
+        Object gsName = chunk.constants()[word(at)];
+
+        push(top - 1, consume(top - 1, (vm, base) -> {
+          int i = base + top - 1;
+          Object method = JitRuntime.getSuper(vm, end, vm.vStackRefs[i], vm.vStackRefs[i + 1], gsName);
+
+          return storeBoxed(vm, i, method);
+        }), top - 1);
+
+        depth--;
+
+        break;
+      case OP_EQUAL:
+      case OP_GREATER:
+      case OP_LESS:
+      case OP_ADD:
+      case OP_SUBTRACT:
+      case OP_MULTIPLY:
+      case OP_DIVIDE:
+        binary(opCode, end);
+
+        break;
+      case OP_NOT:
+        Node notValue = take(top);
+        int notFrom = source(top);
+
+        push(top, (vm, base) -> {
+          if (notValue != null && !notValue.execute(vm, base))
+            return false;
+
+          vm.vStack[base + top] = Value.bool(Value.isFalsey(vm.vStack[base + notFrom]));
+
+          return true;
+        }, top);
+
+        break;
+      case OP_NEGATE:
+        Node negValue = take(top);
+        int negFrom = source(top);
+
+        push(top, (vm, base) -> {
+          if (negValue != null && !negValue.execute(vm, base))
+            return false;
+
+          long bits = vm.vStack[base + negFrom];
+
+          if (!Value.isNumber(bits))
+            return JitRuntime.error(vm, end, "Operand must be a number");
+
+          vm.vStack[base + top] = Value.number(-Value.asNumber(bits));
+
+          return true;
+        }, top);
+
+        break;
+      case OP_JUMP:
+        finish(goTo(target(blocks.target(at, end, opCode))));
+
+        blocks.leave(depth);
+        unreachable = true;
+
+        break;
+      case OP_JUMP_IF_FALSE:
+        //the block ends at the code falling through (see label())
+        flush();
+
+        branchSlot = top;
+        branchTarget = blocks.target(at, end, opCode);
+
+        target(branchTarget);
+
+        break;
+      case OP_LOOP:
+        finish(goTo(target(blocks.target(at, end, opCode))));
+
+        blocks.leave(depth);
+        unreachable = true;
+
+        break;
+      case OP_CALL:
+        int callArgCount = chunk.codes()[at] & 0xFF;
+        int callFirst = depth - callArgCount - 1;
+
+        call(callFirst, (vm, base) -> {
+          int callee = base + callFirst;
+
+          JitRuntime.spill(vm, callee + callArgCount + 1, end);
+
+          CompiledCode code =
+            JitRuntime.enter(vm, vm.vStack[callee], vm.vStackRefs[callee], callee, callArgCount);
+
+          return (code != null) ? vm.runCompiled(code, callee) : JitRuntime.call(vm, callArgCount);
+        });
+
+        break;
+      case OP_INVOKE:
+        Object invName = chunk.constants()[word(at)];
+        int invArgCount = chunk.codes()[at + 2] & 0xFF;
+        int invFirst = depth - invArgCount - 1;
+
+        call(invFirst, (vm, base) -> {
+          JitRuntime.spill(vm, base + invFirst + invArgCount + 1, end);
+
+          return JitRuntime.invoke(vm, invName, invArgCount);
+        });
+
+        break;
+      case OP_TAIL_CALL:
+        int tcArgCount = chunk.codes()[at] & 0xFF;
+
+        tailCall(null, tcArgCount, depth - tcArgCount - 1, end);
+
+        break;
+      case OP_TAIL_INVOKE:
+        int tiArgCount = chunk.codes()[at + 2] & 0xFF;
+
+        tailCall(chunk.constants()[word(at)], tiArgCount, depth - tiArgCount - 1, end);
+
+        break;
+      case OP_SUPER_INVOKE:
+        Object siName = chunk.constants()[word(at)];
+        int siArgCount = chunk.codes()[at + 2] & 0xFF;
+        int siFirst = depth - siArgCount - 2;
+
+        //the superclass above the arguments is passed, not left
+        call(siFirst, (vm, base) -> {
+          int superclass = base + siFirst + siArgCount + 1;
+
+          JitRuntime.spill(vm, superclass, end);
+
+          return JitRuntime.superInvoke(vm, siName, siArgCount, vm.vStackRefs[superclass]);
+        });
+
+        break;
+      case OP_CONCAT_N:
+        int cnCount = chunk.codes()[at] & 0xFF;
+        int cnFirst = depth - cnCount;
+
+        call(cnFirst, (vm, base) -> {
+          JitRuntime.spill(vm, base + cnFirst + cnCount, end);
+
+          return JitRuntime.concat(vm, cnCount) || JitRuntime.error(vm, end, NUMBERS_OR_STRINGS);
+        });
+
+        break;
+      case OP_RETURN:
+        finish((vm, base) -> {
+          JitRuntime.ret(vm, base, vm.vStack[base + top], vm.vStackRefs[base + top]);
+
+          return null;
+        });
+
+        unreachable = true;
+
+        break;
+      default:
+        throw new IllegalStateException("Can't compile opcode " + opCode + ".");
+    }
+  }
+
+  //tailCall(Object, int, int, int)
+  private void tailCall(Object name, int argCount, int first, int end) {
+    //A call of the function itself starts it over with the new
+    //arguments; any other leaves its frame to the callee.
+    boolean isSelf = (name == null && argCount == function.arity());
+    Block start = entry;
+
+    finish((vm, base) -> {
+      int callee = base + first;
+
+      if (
+        isSelf && Value.isObj(vm.vStack[callee]) &&
+        vm.vStackRefs[callee] == vm.frameClosures[vm.fStackTop()]
+      ) {
+        for (int slot = 1; slot <= argCount; slot++)
+          JitRuntime.store(vm, base + slot, vm.vStack[callee + slot], vm.vStackRefs[callee + slot]);
+
+        return start;
+      }
+
+      JitRuntime.spill(vm, callee + argCount + 1, end);
+
+      return JitRuntime.tailCall(vm, name, argCount) ? null : TreeCode.FAILED;
+    });
+
+    unreachable = true;
+  }
+
+  //binary(byte, int)
+  private void binary(byte opCode, int end) {
+    //an operation on the top two values, leaving its result in the
+    //lower one's slot
+    int r = depth - 2;
+    Node x = take(r);
+    Node y = take(r + 1);
+    int a = source(r);
+    int b = source(r + 1);
+    Node node;
+
+    switch (opCode) {
+      case OP_EQUAL:
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          vm.vStack[base + r] = Value.bool(
+            Value.equal(
+              vm.vStack[base + a], vm.vStackRefs[base + a], vm.vStack[base + b], vm.vStackRefs[base + b]
+            )
+          );
+
+          return true;
+        };
+
+        break;
+      case OP_GREATER:
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          long p = vm.vStack[base + a];
+          long q = vm.vStack[base + b];
+
+          if (!Value.isNumber(p) || !Value.isNumber(q))
+            return JitRuntime.error(vm, end, TWO_NUMBERS);
+
+          vm.vStack[base + r] = Value.bool(Value.asNumber(p) > Value.asNumber(q));
+
+          return true;
+        };
+
+        break;
+      case OP_LESS:
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          long p = vm.vStack[base + a];
+          long q = vm.vStack[base + b];
+
+          if (!Value.isNumber(p) || !Value.isNumber(q))
+            return JitRuntime.error(vm, end, TWO_NUMBERS);
+
+          vm.vStack[base + r] = Value.bool(Value.asNumber(p) < Value.asNumber(q));
+
+          return true;
+        };
+
+        break;
+      case OP_ADD:
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          long p = vm.vStack[base + a];
+          long q = vm.vStack[base + b];
+
+          if (Value.isNumber(p) && Value.isNumber(q)) {
+            vm.vStack[base + r] = Value.number(Value.asNumber(p) + Value.asNumber(q));
+
+            return true;
+          }
+
+          Object sum = JitRuntime.add(p, vm.vStackRefs[base + a], q, vm.vStackRefs[base + b]);
+
+          if (sum == null)
+            return JitRuntime.error(vm, end, NUMBERS_OR_STRINGS);
+
+          JitRuntime.store(vm, base + r, Value.OBJ, sum);
+
+          return true;
+        };
+
+        break;
+      case OP_SUBTRACT:
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          long p = vm.vStack[base + a];
+          long q = vm.vStack[base + b];
+
+          if (!Value.isNumber(p) || !Value.isNumber(q))
+            return JitRuntime.error(vm, end, TWO_NUMBERS);
+
+          vm.vStack[base + r] = Value.number(Value.asNumber(p) - Value.asNumber(q));
+
+          return true;
+        };
+
+        break;
+      case OP_MULTIPLY:
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          long p = vm.vStack[base + a];
+          long q = vm.vStack[base + b];
+
+          if (!Value.isNumber(p) || !Value.isNumber(q))
+            return JitRuntime.error(vm, end, TWO_NUMBERS);
+
+          vm.vStack[base + r] = Value.number(Value.asNumber(p) * Value.asNumber(q));
+
+          return true;
+        };
+
+        break;
+      default: //OP_DIVIDE
+        node = (vm, base) -> {
+          if (!operands(vm, base, x, y))
+            return false;
+
+          long p = vm.vStack[base + a];
+          long q = vm.vStack[base + b];
+
+          if (!Value.isNumber(p) || !Value.isNumber(q))
+            return JitRuntime.error(vm, end, TWO_NUMBERS);
+
+          vm.vStack[base + r] = Value.number(Value.asNumber(p) / Value.asNumber(q));
+
+          return true;
+        };
+    }
+
+    push(r, node, r);
+
+    depth = r + 1;
+  }
+
+  //call(int, Node)
+  private void call(int first, Node operation) {
+    //an operation handing slots first and up to the VM, which
+    //leaves its result at first; what's waiting below runs before
+    //it, as the call may change locals through upvalues
+    for (int slot = 0; slot < first; slot++) {
+      Node node = inPlace(slot);
+
+      if (node != null)
+        statements.add(node);
+    }
+
+    push(first, consume(first, operation), first);
+
+    depth = first + 1;
+  }
+
+  //push(int, Node, int)
+  private void push(int slot, Node node, int source) {
+    //node, if not null, computes the slot's value, which is then in
+    //slot source
+    if (slot >= pending.length)
+      grow(slot + 1);
+
+    pending[slot] = node;
+    sources[slot] = source;
+    depth = Math.max(depth, slot + 1);
+  }
+
+  //pushBits(long)
+  private void pushBits(long bits) {
+    int slot = depth;
+
+    push(slot, (vm, base) -> {
+      JitRuntime.store(vm, base + slot, bits, null);
+
+      return true;
+    }, slot);
+  }
+
+  //take(int)
+  private Node take(int slot) {
+    //the node to run for an operand, which is consumed
+    Node node = pending[slot];
+
+    pending[slot] = null;
+
+    return node;
+  }
+
+  //source(int)
+  private int source(int slot) {
+    //where an operand is once its node has run
+    int source = sources[slot];
+
+    sources[slot] = slot;
+
+    return source;
+  }
+
+  //inPlace(int)
+  private Node inPlace(int slot) {
+    //the node to run to have slot's value in slot itself, or null if
+    //it already is
+    Node node = take(slot);
+    int from = source(slot);
+
+    if (from == slot)
+      return node;
+
+    return (vm, base) -> {
+      if (node != null && !node.execute(vm, base))
+        return false;
+
+      JitRuntime.store(vm, base + slot, vm.vStack[base + from], vm.vStackRefs[base + from]);
+
+      return true;
+    };
+  }
+
+  //consume(int, Node)
+  private Node consume(int first, Node operation) {
+    //operation, after the nodes putting slots first and up in place
+    Node node = operation;
+
+    for (int slot = depth - 1; slot >= first; slot--) {
+      Node operand = inPlace(slot);
+      Node then = node;
+
+      if (operand != null)
+        node = (vm, base) -> operand.execute(vm, base) && then.execute(vm, base);
+    }
+
+    return node;
+  }
+
+  //flush()
+  private void flush() {
+    for (int slot = 0; slot < depth; slot++) {
+      Node node = inPlace(slot);
+
+      if (node != null)
+        statements.add(node);
+    }
+  }
+
+  //grow(int)
+  private void grow(int size) {
+    int from = pending.length;
+
+    size = Math.max(size, from * 2);
+    pending = Arrays.copyOf(pending, size);
+    sources = Arrays.copyOf(sources, size);
+
+    for (int slot = from; slot < size; slot++)
+      sources[slot] = slot;
+  }
+
+  //begin(Block)
+  private void begin(Block next) {
+    block = next;
+    statements = new ArrayList<>();
+  }
+
+  //finish(Exit)
+  private void finish(Exit exit) {
+    flush();
+
+    block.set(statements.toArray(new Node[0]), exit);
+  }
+
+  //target(int)
+  private Block target(int offset) {
+    blocks.jump(offset, depth);
+
+    return blocks.label(offset);
+  }
+
+  //goTo(Block)
+  private static Exit goTo(Block target) {
+    return (vm, base) -> target;
+  }
+
+  //ifFalse(int, Block, Block)
+  private static Exit ifFalse(int slot, Block target, Block next) {
+    return (vm, base) -> Value.isFalsey(vm.vStack[base + slot]) ? target : next;
+  }
+
+  //operands(VM, int, Node, Node)
+  private static boolean operands(VM vm, int base, Node x, Node y) {
+    //run a binary operation's operand nodes, where there are any
+    return (x == null || x.execute(vm, base)) && (y == null || y.execute(vm, base));
+  }
+
+  //getProperty(VM, int, int, Object, PropertyCache)
+  private static Object getProperty(VM vm, int ip, int index, Object name, PropertyCache cache) {
+    //As JitRuntime.getProperty(), with the node's own cache of the
+    //shapes it has found the field in.
+    Object ref = vm.vStackRefs[index];
+
+    if (Value.isObj(vm.vStack[index]) && ref instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance)ref;
+      Shape shape = instance.shape();
+      int entry = cache.lookup(shape);
+
+      if (entry != -1)
+        return instance.field(cache.slot(entry));
+
+      int slot = instance.slot(((Selector)name).name());
+
+      if (slot != -1) {
+        cache.add(shape, slot, shape);
+
+        return instance.field(slot);
+      }
+    }
+
+    return JitRuntime.getProperty(vm, ip, vm.vStack[index], ref, name);
+  }
+
+  //setProperty(VM, int, int, Object, PropertyCache)
+  private static boolean setProperty(VM vm, int ip, int index, Object name, PropertyCache cache) {
+    //As JitRuntime.setProperty(), with the node's own cache of the
+    //shapes it has stored the field into, and where that took them.
+    long bits = vm.vStack[index];
+    Object ref = vm.vStackRefs[index];
+    Object value = Value.box(vm.vStack[index + 1], vm.vStackRefs[index + 1]);
+
+    if (!Value.isObj(bits) || !(ref instanceof LoxInstance))
+      return JitRuntime.error(vm, ip, "Only instances have fields.");
+
+    LoxInstance instance = (LoxInstance)ref;
+    Shape shape = instance.shape();
+    int entry = cache.lookup(shape);
+
+    if (entry != -1) {
+      if (cache.target(entry) == shape)
+        instance.setField(cache.slot(entry), value);
+      else
+        instance.addField(cache.target(entry), cache.slot(entry), value);
+
+      return true;
+    }
+
+    JitRuntime.setProperty(vm, ip, bits, ref, name, vm.vStack[index + 1], vm.vStackRefs[index + 1]);
+
+    cache.add(shape, instance.slot(((Selector)name).name()), instance.shape());
+
+    return true;
+  }
+
+  //storeBoxed(VM, int, Object)
+  private static boolean storeBoxed(VM vm, int index, Object value) {
+    //a boxed value returned by JitRuntime, or FAILED
+    if (value == JitRuntime.FAILED)
+      return false;
+
+    JitRuntime.store(vm, index, Value.bits(value), value);
+
+    return true;
+  }
+
+  //word(int)
+  private int word(int at) {
+    return ((chunk.codes()[at] & 0xFF) << 8) | (chunk.codes()[at + 1] & 0xFF);
+  }
+}
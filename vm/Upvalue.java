@@ -2,12 +2,15 @@ package vm;
 
 public class Upvalue {
   private int location;
-  private Object closedValue;
+  private long closedBits;
+  private Object closedRef;
   private Upvalue next;
 
   //Upvalue(int)
   public Upvalue(int location) {
     this.location = location;
+
+    closedBits = Value.NIL;
   }
 
   //location()
@@ -20,14 +23,20 @@ public class Upvalue {
     this.location = location;
   }
 
-  //closedValue()
-  public Object closedValue() {
-    return closedValue;
+  //closedBits()
+  public long closedBits() {
+    return closedBits;
+  }
+
+  //closedRef()
+  public Object closedRef() {
+    return closedRef;
   }
 
-  //setClosedValue(Object)
-  public void setClosedValue(Object closedValue) {
-    this.closedValue = closedValue;
+  //setClosedValue(long, Object)
+  public void setClosedValue(long closedBits, Object closedRef) {
+    this.closedBits = closedBits;
+    this.closedRef = closedRef;
   }
 
   //next()
@@ -43,8 +52,8 @@ public class Upvalue {
   //toString()
   @Override
   public String toString() {
-    if (closedValue != null)
-      return closedValue.toString();
+    if (location == -1)
+      return String.valueOf(Value.box(closedBits, closedRef));
     else
       return Integer.toString(location);
   }
@@ -2,14 +2,16 @@ package vm;
 
 import java.lang.Math;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import compiler.Chunk;
 import compiler.Compiler;
 import compiler.Function;
 import compiler.HasArity;
+import compiler.Selector;
 import debug.Debugger;
+import debug.OpcodeProfile;
 import main.Props;
 import main.PropsObserver;
 import nativefn.*;
@@ -34,63 +36,174 @@ public class VM extends PropsObserver {
     OPERATION_LT,
   }
 
-  private Compiler compiler;
-  private Map<String, Object> globals;
-  private Object[] vStack; //Value stack
-  private int vStackCount;
-  private CallFrame[] fStack; //Frame stack
-  private int fStackCount;
-  private String initString;
+  //The stacks start a segment long and grow, a segment or more at
+  //a time, as calls need (see hasRoom()), up to MAX_STACK slots and
+  //MAX_FRAMES frames; once deep recursion unwinds they shrink back.
+  private static final int STACK_SEGMENT = 256; //value slots
+  private static final int FRAME_SEGMENT = 16;
+
+  private Compiler compiler; //made on first use (see compile())
+  GlobalTable globals;
+  private int nativeCount; //globals defined by the VM itself, in the first slots
+  private Map<String, NativeFn> natives; //by the name each was defined as
+  long[] vStack; //Value stack, NaN-boxed (see Value)
+  Object[] vStackRefs; //references for OBJ values in vStack
+  int vStackCount;
+  //Frame stack, as parallel arrays so a call allocates nothing
+  Closure[] frameClosures;
+  int[] frameBases; //vStack slot holding the callee
+  int[] frameIPs; //resume point, valid while the frame is not running
+  int fStackCount;
+  private int maxStack;
+  private int maxFrames;
+  int shrinkDepth = 1; //a return leaving fewer frames than this calls shrink()
+  private Selector initSelector;
   private Upvalue openUpvalues; //linked list
+  private OpcodeProfile opcodeProfile; //null unless profiling
+  Jit jit; //null when compiling is off
+  private int exitDepth; //run() returns when a return leaves this many frames
+  private boolean isTailCall; //call() leaves compiled code to its caller to run
+  private int tailFrame = -1; //the frame runTailCalls() is running, or -1
+  private int compiledDepth; //compiled code running, nested on the JVM stack
+  private String snapshotSource; //what the script was compiled from, while a snapshot is due
+  private String snapshotPath; //where snapshot() is to write one, or null
 
   //Cached properties
   private boolean debugMaster;
   private boolean debugPrintProgress;
-  private boolean debugTraceExecution;
+  boolean debugTraceExecution;
 
   //VM()
   public VM(Props properties, Debugger debugger) {
     super(properties, debugger);
 
-    compiler = new Compiler(properties, debugger);
-    globals = new HashMap<>();
-    vStack = new Object[properties.getInt("MAX_STACK")];
-    fStack = new CallFrame[properties.getInt("MAX_FRAMES")];
-    initString = "init";
+    globals = new GlobalTable();
+    maxStack = properties.getInt("MAX_STACK");
+    maxFrames = properties.getInt("MAX_FRAMES");
+    vStack = new long[Math.min(STACK_SEGMENT, maxStack)];
+    vStackRefs = new Object[vStack.length];
+    frameClosures = new Closure[Math.min(FRAME_SEGMENT, maxFrames)];
+    frameBases = new int[frameClosures.length];
+    frameIPs = new int[frameClosures.length];
+    initSelector = Selector.of("init");
+    natives = new LinkedHashMap<>();
 
     defineNativeFn("clock", new NativeClock());
     defineNativeFn("foo", new NativeFoo());
     defineNativeFn("print", new NativePrint());
     defineNativeFn("println", new NativePrintLn());
+    defineNativeFn("snapshot", new NativeSnapshot());
+
+    nativeCount = globals.count();
 
     reset();
 
     if (debugPrintProgress) debugger.printProgress("VM initialized.");
   }
 
+  //setOpcodeProfile(OpcodeProfile)
+  public void setOpcodeProfile(OpcodeProfile opcodeProfile) {
+    this.opcodeProfile = opcodeProfile;
+  }
+
   //fStackTop()
-  private int fStackTop() {
+  int fStackTop() {
     return fStackCount - 1;
   }
 
-  //getFrame(int)
-  private CallFrame getFrame(int index) {
-    return fStack[index];
+  //popFrame()
+  void popFrame() {
+    //drop the closure so a finished frame keeps nothing alive
+    frameClosures[--fStackCount] = null;
   }
 
-  //peekFrame()
-  private CallFrame peekFrame() {
-    return fStack[fStackCount - 1];
+  //hasRoom(Function, int)
+  boolean hasRoom(Function function, int base) {
+    //The one bounds check on the call path: room for another frame,
+    //and for all function's frame at base can push (so pushes
+    //needn't check).  Grows the stacks if not; false when they
+    //can't grow that far.
+    int slots = base + function.maxSlots();
+
+    return (fStackCount < frameClosures.length && slots <= vStack.length) || grow(slots);
   }
 
-  //popFrame()
-  private CallFrame popFrame() {
-    return fStack[(fStackCount--) - 1];
+  //grow(int)
+  private boolean grow(int slots) {
+    //A stack that grows at least doubles, so deep recursion copies
+    //each entry a few times at most.
+    if (fStackCount == frameClosures.length) {
+      if (fStackCount >= maxFrames)
+        return false;
+
+      resizeFrames(Math.min(fStackCount * 2, maxFrames));
+    }
+
+    return slots <= vStack.length || growValues(slots);
   }
 
-  //pushFrame(CallFrame)
-  private void pushFrame(CallFrame frame) {
-    fStack[fStackCount++] = frame;
+  //growValues(int)
+  boolean growValues(int slots) {
+    if (slots > maxStack)
+      return false;
+
+    resizeValues(Math.min(Math.max(vStack.length * 2, segments(slots, STACK_SEGMENT)), maxStack));
+
+    return true;
+  }
+
+  //shrink()
+  void shrink() {
+    //Deep recursion has unwound, or the script has returned: keep
+    //twice what the frames left can use, so calls around here don't
+    //grow the stacks again straight away.
+    int top = fStackTop();
+    int slots = (top < 0) ? 0 : frameBases[top] + frameClosures[top].function().maxSlots();
+    int values = Math.max(segments(2 * Math.max(slots, vStackCount), STACK_SEGMENT), STACK_SEGMENT);
+    int frames = Math.max(segments(2 * fStackCount, FRAME_SEGMENT), FRAME_SEGMENT);
+
+    if (values < vStack.length)
+      resizeValues(values);
+
+    if (frames < frameClosures.length)
+      resizeFrames(frames);
+
+    //checked again halfway down, while they're bigger than at first
+    if (vStack.length > STACK_SEGMENT || frameClosures.length > FRAME_SEGMENT)
+      shrinkDepth = Math.max(fStackCount / 2, 1);
+    else
+      shrinkDepth = 1;
+  }
+
+  //resizeValues(int)
+  private void resizeValues(int size) {
+    vStack = Arrays.copyOf(vStack, size);
+    vStackRefs = Arrays.copyOf(vStackRefs, size);
+
+    //given back once the frames calling from here have returned
+    shrinkDepth = Math.max(shrinkDepth, fStackCount / 2);
+  }
+
+  //resizeFrames(int)
+  private void resizeFrames(int size) {
+    frameClosures = Arrays.copyOf(frameClosures, size);
+    frameBases = Arrays.copyOf(frameBases, size);
+    frameIPs = Arrays.copyOf(frameIPs, size);
+
+    shrinkDepth = Math.max(shrinkDepth, fStackCount / 2);
+  }
+
+  //segments(int, int)
+  private static int segments(int count, int segment) {
+    //count rounded up to whole segments
+    return (count + segment - 1) / segment * segment;
+  }
+
+  //pushFrame(Closure, int)
+  void pushFrame(Closure closure, int base) {
+    frameClosures[fStackCount] = closure;
+    frameBases[fStackCount] = base;
+    frameIPs[fStackCount++] = 0;
   }
 
   //vStackTop()
@@ -98,34 +211,101 @@ public class VM extends PropsObserver {
     return vStackCount - 1;
   }
 
-  //getValue(int)
-  private Object getValue(int index) {
-    return vStack[index];
-  }
-
-  //peekValue()
-  private Object peekValue() {
+  //peekBits()
+  private long peekBits() {
     return vStack[vStackCount - 1];
   }
 
-  //peekNValues(int)
-  private Object peekNValues(int n) {
+  //peekNBits(int)
+  private long peekNBits(int n) {
     return vStack[vStackCount - n];
   }
 
+  //peekRef()
+  private Object peekRef() {
+    return vStackRefs[vStackCount - 1];
+  }
+
+  //peekNRefs(int)
+  private Object peekNRefs(int n) {
+    return vStackRefs[vStackCount - n];
+  }
+
+  //peekBoxed(int)
+  private Object peekBoxed(int n) {
+    return Value.box(vStack[vStackCount - n], vStackRefs[vStackCount - n]);
+  }
+
   //popValue()
-  private Object popValue() {
-    return vStack[(vStackCount--) - 1];
+  private void popValue() {
+    vStackCount--;
+  }
+
+  //popNumber()
+  private double popNumber() {
+    return Value.asNumber(vStack[--vStackCount]);
   }
 
-  //pushValue(Object)
-  private void pushValue(Object value) {
-    vStack[vStackCount++] = value;
+  //pushValue(long, Object)
+  private void pushValue(long bits, Object ref) {
+    vStack[vStackCount] = bits;
+    vStackRefs[vStackCount++] = ref;
   }
 
-  //setValue(int, Object)
-  private void setValue(int index, Object value) {
-    vStack[index] = value;
+  //pushBits(long)
+  private void pushBits(long bits) {
+    //Non-OBJ values never read their reference slot, so
+    //it is left as is.
+    vStack[vStackCount++] = bits;
+  }
+
+  //pushNumber(double)
+  private void pushNumber(double d) {
+    vStack[vStackCount++] = Value.number(d);
+  }
+
+  //pushBool(boolean)
+  private void pushBool(boolean b) {
+    vStack[vStackCount++] = Value.bool(b);
+  }
+
+  //pushObject(Object)
+  private void pushObject(Object ref) {
+    vStack[vStackCount] = Value.OBJ;
+    vStackRefs[vStackCount++] = ref;
+  }
+
+  //pushBoxed(Object)
+  private void pushBoxed(Object boxed) {
+    pushValue(Value.bits(boxed), boxed);
+  }
+
+  //copyValue(int, int)
+  void copyValue(int from, int to) {
+    vStack[to] = vStack[from];
+    vStackRefs[to] = vStackRefs[from];
+  }
+
+  //setObject(int, Object)
+  void setObject(int index, Object ref) {
+    vStack[index] = Value.OBJ;
+    vStackRefs[index] = ref;
+  }
+
+  //setBoxed(int, Object)
+  void setBoxed(int index, Object boxed) {
+    vStack[index] = Value.bits(boxed);
+    vStackRefs[index] = boxed;
+  }
+
+  //boxedSubstack()
+  Object[] boxedSubstack() {
+    Object[] substack = new Object[vStackCount];
+
+    for (int i = 0; i < vStackCount; i++)
+      substack[i] = Value.box(vStack[i], vStackRefs[i]);
+
+    return substack;
   }
 
   //reset()
@@ -133,6 +313,8 @@ public class VM extends PropsObserver {
     vStackCount = 0;
     fStackCount = 0;
     openUpvalues = null;
+
+    shrink();
   }
 
   //runtimeError(String, String...)
@@ -143,10 +325,8 @@ public class VM extends PropsObserver {
       System.err.println(s);
 
     for (int i = fStackTop(); i >= 0; i--) {
-      CallFrame frame = getFrame(i);
-      Function function = frame.closure().function();
-      int[] lines = function.chunk().lines();
-      int line = lines[frame.ip() - 1];
+      Function function = frameClosures[i].function();
+      int line = line(i);
 
       System.err.print("[line " + line + "] in ");
 
@@ -159,39 +339,286 @@ public class VM extends PropsObserver {
     reset();
   }
 
+  //line(int)
+  int line(int frame) {
+    return frameClosures[frame].function().chunk().lines()[frameIPs[frame] - 1];
+  }
+
   //defineNativeFn(String, NativeFn)
   private void defineNativeFn(String name, NativeFn nativeFn) {
-    globals.put(name, nativeFn);
+    globals.define(name, nativeFn);
+
+    natives.put(name, nativeFn);
+  }
+
+  //nativeFn(String)
+  NativeFn nativeFn(String name) {
+    return natives.get(name);
+  }
+
+  //nativeName(NativeFn)
+  String nativeName(NativeFn nativeFn) {
+    //natives are stored by name (see Snapshot)
+    for (Map.Entry<String, NativeFn> entry : natives.entrySet())
+      if (entry.getValue() == nativeFn)
+        return entry.getKey();
+
+    return null;
+  }
+
+  //openUpvalues()
+  Upvalue openUpvalues() {
+    return openUpvalues;
+  }
+
+  //snapshotTo(String, String)
+  public void snapshotTo(String source, String path) {
+    //The heap is to be written to path when the script, compiled
+    //from source, first calls snapshot() (see Snapshot).
+    snapshotSource = source;
+    snapshotPath = path;
+  }
+
+  //takeSnapshot(int)
+  private boolean takeSnapshot(int frame) {
+    //just after snapshot() has returned, with the calling frame's
+    //ip stored; false if not called from the top level
+    if (frame != 0)
+      return false;
+
+    Snapshot.write(this, snapshotSource, snapshotPath, properties.getBool("SUPERINSTRUCTIONS"));
+
+    snapshotSource = null;
+    snapshotPath = null;
+
+    return true;
+  }
+
+  //restore(Closure, int, long[], Object[], Upvalue)
+  boolean restore(Closure script, int ip, long[] bits, Object[] refs, Upvalue openUpvalues) {
+    //The script's frame as a snapshot held it, ready for resume();
+    //false if it can't fit the stacks.
+    reset();
+
+    if (!hasRoom(script.function(), 0) || bits.length > vStack.length)
+      return false;
+
+    System.arraycopy(bits, 0, vStack, 0, bits.length);
+    System.arraycopy(refs, 0, vStackRefs, 0, refs.length);
+
+    vStackCount = bits.length;
+    this.openUpvalues = openUpvalues;
+
+    pushFrame(script, 0);
+
+    frameIPs[0] = ip;
+
+    return true;
+  }
+
+  //resume()
+  public InterpretResult resume() {
+    //runs the rest of a script restored from a snapshot (see
+    //Snapshot.read())
+    if (debugPrintProgress)
+      debugger.printProgress("Resuming....");
+
+    return run();
   }
 
   //call(Closure, int)
-  private boolean call(Closure closure, int argCount) {
+  boolean call(Closure closure, int argCount) {
     if (!checkArity(closure.function(), argCount))
       return false;
 
-    //CallFrame window on VM vStack begins at slot
+    //Frame window on VM vStack begins at slot
     //occupied by function.
     int base = vStackTop() - argCount;
-    int maxFrames = properties.getInt("MAX_FRAMES");
 
-    if (fStackCount == maxFrames) {
+    if (!hasRoom(closure.function(), base)) {
       runtimeError("Stack overflow.");
 
       return false;
     }
 
-    pushFrame(new CallFrame(closure, base));
+    pushFrame(closure, base);
+
+    if (isTailCall)
+      return true;
+
+    CompiledCode code = compiledCode(closure.function());
+
+    return code == null || runCompiled(code, base);
+  }
+
+  //tailCall(int, Selector, int)
+  boolean tailCall(int frame, Selector name, int argCount) {
+    //A call, or with name an invoke, in tail position in frame.
+    //A callee that finishes at once (a native) is returned from
+    //frame straight away.  Otherwise the callee's frame takes
+    //frame's place before it starts; see tailCalled() for running
+    //it.
+    int base = frameBases[frame];
+    int callee = vStackCount - argCount - 1;
+    boolean isCalled;
+
+    isTailCall = true;
+
+    if (name == null)
+      isCalled = callValue(Value.box(vStack[callee], vStackRefs[callee]), argCount);
+    else
+      isCalled = invoke(name, argCount);
+
+    isTailCall = false;
+
+    if (!isCalled)
+      return false;
+
+    if (fStackCount == frame + 1) {
+      long bits = vStack[callee];
+      Object ref = vStackRefs[callee];
+
+      closeUpvalues(base);
+
+      popFrame();
+
+      vStackCount = base;
+
+      pushValue(bits, ref);
+
+      return true;
+    }
+
+    reuseFrame(frame);
 
     return true;
   }
 
+  //tailCalled(int, boolean)
+  boolean tailCalled(int frame, boolean isInterpreting) {
+    //Runs frame, just taken over by tailCall(), unless it has
+    //returned already, or runTailCalls() is running it (it was the
+    //frame's code that made the tail call), or the interpreter is
+    //to carry on with it.
+    if (fStackCount == frame || frame == tailFrame)
+      return true;
+
+    CompiledCode code = compiledCode(frameClosures[frame].function());
+
+    if (code == null && isInterpreting)
+      return true;
+
+    return runTailCalls(frame, code);
+  }
+
+  //runTailCalls(int, CompiledCode)
+  private boolean runTailCalls(int frame, CompiledCode code) {
+    //Runs frame with code (or interprets it, with null) until it
+    //returns.  Tail calls the frame's code makes in turn only take
+    //the frame over and come back here for the callee to run, so a
+    //chain of them, compiled or not, runs in constant JVM stack.
+    int outerFrame = tailFrame;
+    boolean isOK;
+
+    tailFrame = frame;
+
+    do {
+      isOK = (code != null) ? runCompiled(code, frameBases[frame]) : runNested(frame);
+
+      if (isOK && fStackCount > frame)
+        code = compiledCode(frameClosures[frame].function());
+    } while (isOK && fStackCount > frame);
+
+    tailFrame = outerFrame;
+
+    return isOK;
+  }
+
+  //runCompiled(CompiledCode, int)
+  boolean runCompiled(CompiledCode code, int base) {
+    //Compiled code makes its calls on the JVM stack, so how deep it
+    //nests is capped (see compiledCode()), and calls past the cap
+    //are interpreted, in constant JVM stack.
+    if (compiledDepth == 0)
+      return runOutermost(code, base);
+
+    compiledDepth++;
+
+    boolean isOK = code.run(this, base);
+
+    compiledDepth--;
+
+    return isOK;
+  }
+
+  //runOutermost(CompiledCode, int)
+  private boolean runOutermost(CompiledCode code, int base) {
+    //Should the JVM stack run out all the same, it is reported here
+    //as any other overflow, with what the compiled code nested in
+    //this unwound.
+    int outerExitDepth = exitDepth;
+    int outerTailFrame = tailFrame;
+
+    compiledDepth = 1;
+
+    try {
+      return code.run(this, base);
+    } catch (StackOverflowError e) {
+      exitDepth = outerExitDepth;
+      tailFrame = outerTailFrame;
+      isTailCall = false;
+
+      runtimeError("Stack overflow.");
+
+      return false;
+    } finally {
+      compiledDepth = 0;
+    }
+  }
+
+  //compiledCode(Function)
+  CompiledCode compiledCode(Function function) {
+    //the code to run the function with, compiling it now if it has
+    //just become hot enough; null if it is to be interpreted
+    if (opcodeProfile != null || debugTraceExecution || compiledDepth >= Jit.MAX_NESTING)
+      return null;
+
+    //without a JIT, only code compiled ahead of time (see main.Aot)
+    if (jit == null)
+      return FunctionState.of(function).compiled();
+
+    return jit.codeFor(function);
+  }
+
+  //loopCode(Function, int, int)
+  private CompiledCode loopCode(Function function, int loop, int base) {
+    //the code to carry on with the loop closed by the OP_LOOP at
+    //loop, compiling it now if it has just become hot enough; null
+    //if it is to go on being interpreted
+    if (opcodeProfile != null)
+      return null;
+
+    //Compiled code keeps the frame's values in JVM locals, out of
+    //reach of an open upvalue over one of them.
+    if (openUpvalues != null && openUpvalues.location() >= base)
+      return null;
+
+    //snapshot() is caught as the interpreter calls it from the top
+    //level (see takeSnapshot()), so the script's loops stay
+    //interpreted until it has been
+    if (snapshotPath != null && base == 0)
+      return null;
+
+    return jit.loopCodeFor(function, loop, vStackCount - base);
+  }
+
   //callValue(Object, int)
-  private boolean callValue(Object callee, int argCount) {
+  boolean callValue(Object callee, int argCount) {
     //Bound Method
     if (callee instanceof BoundMethod) {
       BoundMethod bound = (BoundMethod)callee;
 
-      setValue(vStackCount - argCount, bound.receiver());
+      setObject(vStackCount - argCount, bound.receiver());
 
       return call(bound.method(), argCount);
     //Class
@@ -199,9 +626,9 @@ public class VM extends PropsObserver {
       LoxClass klass = (LoxClass)callee;
       LoxInstance instance = new LoxInstance(klass);
 
-      setValue(vStackTop() - argCount, instance);
+      setObject(vStackTop() - argCount, instance);
 
-      Closure initializer = klass.methods().get(initString);
+      Closure initializer = klass.method(initSelector);
 
       if (initializer != null)
         return call(initializer, argCount);
@@ -224,15 +651,16 @@ public class VM extends PropsObserver {
 
       Object[] args = new Object[argCount];
 
+      //Natives only ever see boxed values.
       for (int i = 0; i < argCount; i++)
-        args[i] = peekNValues(argCount - i);
+        args[i] = peekBoxed(argCount - i);
 
       Object result = nativeFn.execute(args);
 
       //pop args plus native function
       vStackCount = vStackTop() - argCount;
 
-      pushValue(result);
+      pushBoxed(result);
 
       return true;
     }
@@ -242,24 +670,24 @@ public class VM extends PropsObserver {
     return false;
   }
 
-  //invokeFromClass(LoxClass, String, int)
-  private boolean invokeFromClass(LoxClass klass, String name, int argCount) {
-    if (!(klass.methods().containsKey(name))) {
+  //invokeFromClass(LoxClass, Selector, int)
+  boolean invokeFromClass(LoxClass klass, Selector name, int argCount) {
+    Closure method = klass.method(name);
+
+    if (method == null) {
       runtimeError("Undefined property '" + name + "'.");
 
       return false;
     }
 
-    Closure method = klass.methods().get(name);
-
     return call(method, argCount);
   }
 
-  //invoke(String, int)
-  private boolean invoke(String name, int argCount) {
-    Object receiver = peekNValues(argCount + 1);
+  //invoke(Selector, int)
+  boolean invoke(Selector name, int argCount) {
+    Object receiver = peekNRefs(argCount + 1);
 
-    if (!(receiver instanceof LoxInstance)) {
+    if (!Value.isObj(peekNBits(argCount + 1)) || !(receiver instanceof LoxInstance)) {
       runtimeError("Only instances have methods.");
 
       return false;
@@ -267,10 +695,12 @@ public class VM extends PropsObserver {
 
     LoxInstance instance = (LoxInstance)receiver;
 
-    if (instance.fields().containsKey(name)) {
-      Object value = instance.fields().get(name);
+    int slot = instance.slot(name.name());
+
+    if (slot != -1) {
+      Object value = instance.field(slot);
 
-      setValue(vStackTop() - argCount, value);
+      setBoxed(vStackTop() - argCount, value);
 
       return callValue(value, argCount);
     }
@@ -278,21 +708,21 @@ public class VM extends PropsObserver {
     return invokeFromClass(instance.klass(), name, argCount);
   }
 
-  //bindMethod(LoxClass, String)
-  private boolean bindMethod(LoxClass klass, String name) {
-    if (!klass.methods().containsKey(name)) {
+  //bindMethod(LoxClass, Selector)
+  private boolean bindMethod(LoxClass klass, Selector name) {
+    Closure method = klass.method(name);
+
+    if (method == null) {
       runtimeError("Undefined property '" + name + "'.");
 
       return false;
     }
 
-    Closure method = klass.methods().get(name);
-    BoundMethod bound = new BoundMethod(peekValue(), method);
-    Object value = bound;
+    BoundMethod bound = new BoundMethod(peekRef(), method);
 
     popValue();
 
-    pushValue(value);
+    pushObject(bound);
 
     return true;
   }
@@ -325,12 +755,35 @@ public class VM extends PropsObserver {
     return createdUpvalue;
   }
 
+  //reuseFrame(int)
+  private void reuseFrame(int frame) {
+    //A tail call from frame has pushed a frame that hasn't started
+    //yet.  Move it down into frame's place, its callee and
+    //arguments over frame's slots, so a chain of tail calls runs in
+    //constant stack.
+    int base = frameBases[frame];
+    int calleeBase = frameBases[frame + 1];
+    int count = vStackCount - calleeBase;
+
+    closeUpvalues(base);
+
+    System.arraycopy(vStack, calleeBase, vStack, base, count);
+    System.arraycopy(vStackRefs, calleeBase, vStackRefs, base, count);
+
+    vStackCount = base + count;
+
+    frameClosures[frame] = frameClosures[frame + 1];
+    frameIPs[frame] = 0;
+
+    popFrame();
+  }
+
   //closeUpvalues(int)
   void closeUpvalues(int last) {
     while (openUpvalues != null && openUpvalues.location() >= last) {
       Upvalue upvalue = openUpvalues;
 
-      upvalue.setClosedValue(getValue(upvalue.location()));
+      upvalue.setClosedValue(vStack[upvalue.location()], vStackRefs[upvalue.location()]);
       upvalue.setLocation(-1);
 
       //after upvalue is closed, reset head of linked list
@@ -340,45 +793,125 @@ public class VM extends PropsObserver {
     }
   }
 
-  //defineMethod(String)
-  void defineMethod(String name) {
-    Closure method = (Closure)peekValue();
-    LoxClass klass = (LoxClass)peekNValues(2);
+  //defineMethod(Selector)
+  void defineMethod(Selector name) {
+    Closure method = (Closure)peekRef();
+    LoxClass klass = (LoxClass)peekNRefs(2);
 
-    klass.methods().put(name, method);
+    klass.defineMethod(name, method);
 
     popValue();
   }
 
-  //isFalsey(Object)
-  boolean isFalsey(Object value) {
-    //nil and false are falsey and every other value behaves like true.
-    return value == null || (value instanceof Boolean && !(boolean)value);
-  }
-
   //concatenate()
   private void concatenate() {
-    String b = (String)popValue();
-    String a = (String)popValue();
+    LoxString b = (LoxString)peekRef();
+    LoxString a = (LoxString)peekNRefs(2);
+
+    vStackCount -= 2;
+
+    pushObject(a.concat(b));
+  }
+
+  //concatenate(int)
+  boolean concatenate(int count) {
+    //Strings throughout are joined in one step; anything else is
+    //added pairwise from the left, as a chain of OP_ADD would be.
+    int first = vStackCount - count;
+    boolean allStrings = true;
+
+    for (int i = first; i < vStackCount && allStrings; i++)
+      allStrings = Value.isObj(vStack[i]) && vStackRefs[i] instanceof LoxString;
+
+    if (allStrings)
+      setObject(first, LoxString.join(vStackRefs, first, count));
+    else
+      for (int i = first + 1; i < vStackCount; i++)
+        if (!addInto(first, i))
+          return false;
+
+    vStackCount = first + 1;
+
+    return true;
+  }
+
+  //addInto(int, int)
+  private boolean addInto(int a, int b) {
+    if (Value.isNumber(vStack[a]) && Value.isNumber(vStack[b]))
+      vStack[a] = Value.number(Value.asNumber(vStack[a]) + Value.asNumber(vStack[b]));
+    else if (
+      Value.isObj(vStack[a]) && vStackRefs[a] instanceof LoxString &&
+      Value.isObj(vStack[b]) && vStackRefs[b] instanceof LoxString
+    )
+      setObject(a, ((LoxString)vStackRefs[a]).concat((LoxString)vStackRefs[b]));
+    else
+      return false;
 
-    pushValue(a + b);
+    return true;
   }
 
   //equate()
   private void equate() {
-    Object b = popValue();
-    Object a = popValue();
+    boolean equal = Value.equal(peekNBits(2), peekNRefs(2), peekBits(), peekRef());
 
-    if (a == null)
-      pushValue(b == null);
-    else
-      pushValue(a.equals(b));
+    vStackCount -= 2;
+
+    pushBool(equal);
+  }
+
+  //stopObserving()
+  @Override
+  public void stopObserving() {
+    //its compiler, if it made one, goes with it
+    super.stopObserving();
+
+    if (compiler != null)
+      compiler.stopObserving();
+  }
+
+  //globals()
+  public GlobalTable globals() {
+    return globals;
+  }
+
+  //compile(String)
+  public Function compile(String source) {
+    //A VM running a script compiled ahead of time never needs a
+    //compiler, nor loads the scanner and parser.
+    if (compiler == null)
+      compiler = new Compiler(properties, debugger, globals);
+
+    return compiler.compile(source);
+  }
+
+  //compileProgram(String)
+  public Program compileProgram(String source) {
+    //null on a compile error, which has been reported
+    Function script = compile(source);
+
+    return (script == null) ? null : new Program(script, globals);
+  }
+
+  //interpret(Program)
+  public InterpretResult interpret(Program program) {
+    //Runs a copy of program's code with its globals undefined, so
+    //each run starts as the first did, whichever VM compiled it.
+    program.link(globals);
+
+    globals.undefine(nativeCount);
+
+    return interpret(program.script());
   }
 
   //interpret(String)
   public InterpretResult interpret(String source) {
-    Function function = compiler.compile(source);
+    return interpret(compile(source));
+  }
 
+  //interpret(Function)
+  public InterpretResult interpret(Function function) {
+    //function is a script compiled by this VM, or read into it
+    //(see compiler.Image)
     if (debugPrintProgress)
       debugger.printProgress("Executing....");
 
@@ -386,426 +919,1035 @@ public class VM extends PropsObserver {
       return InterpretResult.INTERPRET_COMPILE_ERROR;
 
     Closure closure = new Closure(function);
-    Object value = closure;
 
-    pushValue(value);
+    pushObject(closure);
 
-    call(closure, 0);
+    if (!call(closure, 0))
+      return InterpretResult.INTERPRET_RUNTIME_ERROR;
 
     return run();
   }
 
-  //readByte(CallFrame)
-  private byte readByte(CallFrame frame) {
-    return (byte)frame.closure().function().chunk().codes()[frame.getAndIncrementIP()];
+  //cacheProperty(Chunk, int, Shape, int, Shape)
+  private boolean cacheProperty(Chunk chunk, int offset, Shape shape, int slot, Shape target) {
+    //Returns false once the site has seen too many shapes to cache.
+    PropertyCache cache = (PropertyCache)chunk.inlineCache(offset);
+
+    if (cache == null) {
+      cache = new PropertyCache();
+
+      chunk.setInlineCache(offset, cache);
+    }
+
+    return cache.lookup(shape) != -1 || cache.add(shape, slot, target);
   }
 
-  //readWord(CallFrame)
-  private short readWord(CallFrame frame) {
-    byte hi = readByte(frame);
-    byte lo = readByte(frame);
+  //cacheCall(Chunk, int, Object, int)
+  private byte cacheCall(Chunk chunk, int offset, Object callee, int argCount) {
+    //Called once a call has succeeded, so the callee's arity suits
+    //the site.  Returns the opcode the site should now hold.
+    Object target;
+    Closure initializer = null;
+    int version = 0;
+    byte opCode;
+
+    if (callee instanceof Closure) {
+      target = ((Closure)callee).function();
+      opCode = OP_CALL_CLOSURE;
+    } else if (callee instanceof NativeFn) {
+      target = callee;
+      opCode = OP_CALL_NATIVE;
+    } else if (callee instanceof LoxClass) {
+      LoxClass klass = (LoxClass)callee;
+
+      target = klass;
+      initializer = klass.method(initSelector);
+      version = klass.version();
+      opCode = OP_CALL_CLASS;
+    } else
+      return OP_CALL; //bound methods are made afresh for each call
 
-    short s = (short)(((hi & 0xFF) << 8) | (lo & 0xFF));
+    CallCache cache = (CallCache)chunk.inlineCache(offset);
+
+    if (cache == null) {
+      cache = new CallCache(argCount);
+
+      chunk.setInlineCache(offset, cache);
+    }
 
-    return s;
+    return cache.retarget(target, initializer, version) ? opCode : OP_CALL;
   }
 
-  //readConstant(CallFrame)
-  private Object readConstant(CallFrame frame) {
-    short index = readWord(frame);
+  //cacheInvoke(Chunk, int, LoxClass, Shape, Selector)
+  private boolean cacheInvoke(Chunk chunk, int offset, LoxClass klass, Shape shape, Selector name) {
+    //Returns false if a field shadows the method, the method is
+    //undefined, or the site has seen too many receivers to cache.
+    if (shape != null && shape.slot(name.name()) != -1)
+      return false;
+
+    Closure method = klass.method(name);
+
+    if (method == null)
+      return false;
+
+    InvokeCache cache = (InvokeCache)chunk.inlineCache(offset);
+
+    if (cache == null) {
+      cache = new InvokeCache();
+
+      chunk.setInlineCache(offset, cache);
+    }
 
-    return frame.closure().function().chunk().constants()[index];
+    return cache.lookup(klass, shape) != -1 || cache.add(klass, shape, method);
   }
 
-  //readString(CallFrame)
-  private String readString(CallFrame frame) {
-    return (String)readConstant(frame);
+  //pushLocal(int)
+  private void pushLocal(int slot) {
+    pushValue(vStack[slot], vStackRefs[slot]);
   }
 
-  //run()
-  private InterpretResult run() {
-    CallFrame frame = peekFrame();
+  //deoptimize(byte[], int, byte, int)
+  private int deoptimize(byte[] codes, int ip, byte opCode, int width) {
+    //Put back the generic instruction, which began 'width' bytes
+    //before ip, and return the ip that re-executes it.
+    codes[ip - width] = opCode;
+
+    return ip - width;
+  }
 
-    //Bytecode dispatch loop.
+  //word(byte[], int)
+  private static short word(byte[] codes, int at) {
+    return (short)(((codes[at] & 0xFF) << 8) | (codes[at + 1] & 0xFF));
+  }
+
+  //run()
+  InterpretResult run() {
+    //The running frame's state lives in locals and is spilled back
+    //to the frame stack only when control leaves it: on calls,
+    //returns and runtime errors.  Each of those re-enters here.
+    long[] globalBits = globals.bits();
+    Object[] globalRefs = globals.refs();
+
+    frames:
     for (;;) {
-      if (debugTraceExecution) {
-        Object[] substack = Arrays.copyOfRange(vStack, 0, vStackCount);
+      int frame = fStackTop();
+      Closure frameClosure = frameClosures[frame];
+      Chunk chunk = frameClosure.function().chunk();
+      byte[] codes = chunk.codes();
+      Object[] constants = chunk.constants();
+      long[] constantBits = FunctionState.of(frameClosure.function()).constantBits();
+      int base = frameBases[frame];
+      int ip = frameIPs[frame];
 
-        debugger.traceExecution(frame, globals, substack);
-      }
+      //Bytecode dispatch loop.
+      for (;;) {
+        if (debugTraceExecution) {
+          debugger.traceExecution(chunk, ip, globals, boxedSubstack());
+        }
 
-      switch (readByte(frame)) {
-        case OP_CONSTANT:
-          pushValue(readConstant(frame));
+        if (opcodeProfile != null)
+          opcodeProfile.record(chunk, ip);
 
-          break;
-        case OP_NIL:
-          pushValue(null);
+        switch (codes[ip++]) {
+          case OP_CONSTANT:
+            short cIndex = word(codes, ip);
 
-          break;
-        case OP_TRUE:
-          pushValue(true);
+            ip += 2;
 
-          break;
-        case OP_FALSE:
-          pushValue(false);
+            pushValue(constantBits[cIndex], constants[cIndex]);
 
-          break;
-        case OP_POP:
-          popValue();
+            break;
+          case OP_NIL:
+            pushBits(Value.NIL);
 
-          break;
-        case OP_GET_LOCAL:
-          short glSlot = readWord(frame);
+            break;
+          case OP_TRUE:
+            pushBits(Value.TRUE);
 
-          pushValue(getValue(frame.base() + glSlot));
+            break;
+          case OP_FALSE:
+            pushBits(Value.FALSE);
 
-          break;
-        case OP_SET_LOCAL:
-          short slSlot = readWord(frame);
+            break;
+          case OP_POP:
+            popValue();
 
-          setValue(frame.base() + slSlot, peekValue());
+            break;
+          case OP_GET_LOCAL:
+            short glSlot = word(codes, ip);
 
-          break;
-        case OP_GET_GLOBAL:
-          String ggKey = readString(frame);
+            ip += 2;
 
-          if (!globals.containsKey(ggKey))
-            return error("Undefined variable '" + ggKey + "'.");
+            pushValue(vStack[base + glSlot], vStackRefs[base + glSlot]);
 
-          Object global = globals.get(ggKey);
+            break;
+          case OP_SET_LOCAL:
+            short slSlot = word(codes, ip);
 
-          pushValue(global);
+            ip += 2;
 
-          break;
-        case OP_DEFINE_GLOBAL:
-          String dgKey = readString(frame);
+            copyValue(vStackTop(), base + slSlot);
 
-          globals.put(dgKey, peekValue());
+            break;
+          case OP_GET_GLOBAL:
+            short ggSlot = word(codes, ip);
 
-          popValue();
+            ip += 2;
 
-          break;
-        case OP_SET_GLOBAL:
-          String sgKey = readString(frame);
+            if (globalBits[ggSlot] == Value.UNDEFINED)
+              return error(ip, "Undefined variable '" + globals.name(ggSlot) + "'.");
 
-          if (!globals.containsKey(sgKey))
-            return error("Undefined variable '" + sgKey + "'.");
+            if (globals.isConstant(ggSlot)) {
+              chunk.setInlineCache(
+                ip - 3, new GlobalCache(globals, globalBits[ggSlot], globalRefs[ggSlot])
+              );
 
-          //Peek here, not pop; assignment is an expression,
-          //so we leave value vStacked in case the assignment
-          //is nested inside a larger expression.
-          globals.put(sgKey, peekValue());
+              codes[ip - 3] = OP_GET_GLOBAL_CACHED;
+            }
 
-          break;
-        case OP_GET_UPVALUE:
-          short guSlot = readWord(frame);
-          Upvalue guUpvalue = frame.closure().upvalues()[guSlot];
+            pushValue(globalBits[ggSlot], globalRefs[ggSlot]);
 
-          if (guUpvalue.location() != -1) //i.e., open
-            pushValue(getValue(guUpvalue.location()));
-          else //i.e., closed
-            pushValue(guUpvalue.closedValue());
+            break;
+          case OP_GET_GLOBAL_CACHED:
+            GlobalCache ggcCache = (GlobalCache)chunk.inlineCache(ip - 1);
 
-          break;
-        case OP_SET_UPVALUE:
-          short suSlot = readWord(frame);
-          Upvalue suUpvalue = frame.closure().upvalues()[suSlot];
+            ip += 2;
 
-          if (suUpvalue.location() != -1) //i.e., open
-            setValue(suUpvalue.location(), peekValue());
-          else //i.e., closed
-            suUpvalue.setClosedValue(peekValue());
+            //Guard: nothing has been assigned or redefined since
+            //the value was cached.
+            if (ggcCache.isValid(globals)) {
+              pushValue(ggcCache.bits(), ggcCache.ref());
 
-          break;
-        case OP_GET_PROPERTY:
-          Object gpValue = peekValue();
+              break;
+            }
 
-          if (!(gpValue instanceof LoxInstance)) {
-            runtimeError("Only instances have properties.");
+            ip = deoptimize(codes, ip, OP_GET_GLOBAL, 3);
 
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
-          }
+            break;
+          case OP_DEFINE_GLOBAL:
+            short dgSlot = word(codes, ip);
 
-          LoxInstance gpInstance = (LoxInstance)gpValue;
-          String name = readString(frame);
+            ip += 2;
 
-          if (gpInstance.fields().containsKey(name)) {
-            popValue(); // Instance.
+            globals.define(dgSlot, peekBits(), peekRef());
 
-            pushValue(gpInstance.fields().get(name));
+            popValue();
 
             break;
-          }
+          case OP_SET_GLOBAL:
+            short sgSlot = word(codes, ip);
 
-          if (!bindMethod(gpInstance.klass(), name))
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
+            ip += 2;
 
-          break;
-        case OP_SET_PROPERTY:
-          Object spValue = peekNValues(2);
+            if (globalBits[sgSlot] == Value.UNDEFINED)
+              return error(ip, "Undefined variable '" + globals.name(sgSlot) + "'.");
 
-          if (!(spValue instanceof LoxInstance)) {
-            runtimeError("Only instances have fields.");
+            //Peek here, not pop; assignment is an expression,
+            //so we leave value vStacked in case the assignment
+            //is nested inside a larger expression.
+            globals.assign(sgSlot, peekBits(), peekRef());
 
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
-          }
+            break;
+          case OP_GET_UPVALUE:
+            short guSlot = word(codes, ip);
+            Upvalue guUpvalue = frameClosure.upvalues()[guSlot];
 
-          LoxInstance spInstance = (LoxInstance)spValue;
+            ip += 2;
 
-          spInstance.fields().put(readString(frame), peekValue());
+            if (guUpvalue.location() != -1) //i.e., open
+              pushValue(vStack[guUpvalue.location()], vStackRefs[guUpvalue.location()]);
+            else //i.e., closed
+              pushValue(guUpvalue.closedBits(), guUpvalue.closedRef());
 
-          //pop value that was set plus instance object
-          Object setObject = popValue();
-          popValue();
+            break;
+          case OP_SET_UPVALUE:
+            short suSlot = word(codes, ip);
+            Upvalue suUpvalue = frameClosure.upvalues()[suSlot];
 
-          //push value back on vStack
-          pushValue(setObject);
+            ip += 2;
 
-          break;
-        case OP_GET_SUPER:
-          String gsName = readString(frame);
-          LoxClass gsSuperclass = (LoxClass)popValue();
+            if (suUpvalue.location() != -1) //i.e., open
+              copyValue(vStackTop(), suUpvalue.location());
+            else //i.e., closed
+              suUpvalue.setClosedValue(peekBits(), peekRef());
 
-          if (!bindMethod(gsSuperclass, gsName))
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
+            break;
+          case OP_GET_PROPERTY:
+            Object gpValue = peekRef();
+
+            if (!Value.isObj(peekBits()) || !(gpValue instanceof LoxInstance))
+              return error(ip, "Only instances have properties.");
+
+            LoxInstance gpInstance = (LoxInstance)gpValue;
+            Selector name = (Selector)constants[word(codes, ip)];
+
+            ip += 2;
+
+            int gpSlot = gpInstance.slot(name.name());
+
+            if (gpSlot != -1) {
+              Shape gpShape = gpInstance.shape();
+
+              if (cacheProperty(chunk, ip - 3, gpShape, gpSlot, gpShape))
+                codes[ip - 3] = OP_GET_PROPERTY_CACHED;
+
+              popValue(); // Instance.
+
+              pushBoxed(gpInstance.field(gpSlot));
+
+              break;
+            }
+
+            frameIPs[frame] = ip;
+
+            if (!bindMethod(gpInstance.klass(), name))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            break;
+          case OP_GET_PROPERTY_CACHED:
+            PropertyCache gpcCache = (PropertyCache)chunk.inlineCache(ip - 1);
+            Object gpcValue = peekRef();
+
+            ip += 2;
+
+            //Guard: the receiver's shape is one the site has seen.
+            if (Value.isObj(peekBits()) && gpcValue instanceof LoxInstance) {
+              LoxInstance gpcInstance = (LoxInstance)gpcValue;
+              int gpcEntry = gpcCache.lookup(gpcInstance.shape());
+
+              if (gpcEntry != -1) {
+                popValue(); // Instance.
+
+                pushBoxed(gpcInstance.field(gpcCache.slot(gpcEntry)));
+
+                break;
+              }
+            }
+
+            ip = deoptimize(codes, ip, OP_GET_PROPERTY, 3);
+
+            break;
+          case OP_SET_PROPERTY:
+            Object spValue = peekNRefs(2);
+
+            if (!Value.isObj(peekNBits(2)) || !(spValue instanceof LoxInstance))
+              return error(ip, "Only instances have fields.");
+
+            LoxInstance spInstance = (LoxInstance)spValue;
+            String spName = ((Selector)constants[word(codes, ip)]).name();
+            Shape spShape = spInstance.shape();
+            Shape spTarget = spShape;
+            int spSlot = spShape.slot(spName);
+
+            ip += 2;
+
+            if (spSlot != -1)
+              spInstance.setField(spSlot, peekBoxed(1));
+            else {
+              spTarget = spShape.transition(spName);
+              spSlot = spShape.slotCount();
+
+              spInstance.addField(spTarget, spSlot, peekBoxed(1));
+            }
+
+            if (cacheProperty(chunk, ip - 3, spShape, spSlot, spTarget))
+              codes[ip - 3] = OP_SET_PROPERTY_CACHED;
+
+            //pop value that was set plus instance object,
+            //leaving the value on the vStack
+            copyValue(vStackTop(), vStackTop() - 1);
+            popValue();
+
+            break;
+          case OP_SET_PROPERTY_CACHED:
+            PropertyCache spcCache = (PropertyCache)chunk.inlineCache(ip - 1);
+            Object spcValue = peekNRefs(2);
+
+            ip += 2;
+
+            if (Value.isObj(peekNBits(2)) && spcValue instanceof LoxInstance) {
+              LoxInstance spcInstance = (LoxInstance)spcValue;
+              int spcEntry = spcCache.lookup(spcInstance.shape());
+
+              if (spcEntry != -1) {
+                Shape spcTarget = spcCache.target(spcEntry);
+
+                //a cached transition adds the field as it stores it
+                if (spcTarget == spcInstance.shape())
+                  spcInstance.setField(spcCache.slot(spcEntry), peekBoxed(1));
+                else
+                  spcInstance.addField(spcTarget, spcCache.slot(spcEntry), peekBoxed(1));
+
+                copyValue(vStackTop(), vStackTop() - 1);
+                popValue();
+
+                break;
+              }
+            }
+
+            ip = deoptimize(codes, ip, OP_SET_PROPERTY, 3);
+
+            break;
+          case OP_GET_SUPER:
+            Selector gsName = (Selector)constants[word(codes, ip)];
+            LoxClass gsSuperclass = (LoxClass)peekRef();
+
+            ip += 2;
+
+            popValue();
+
+            frameIPs[frame] = ip;
+
+            if (!bindMethod(gsSuperclass, gsName))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            break;
+          case OP_EQUAL:
+            equate();
+
+            break;
+          case OP_GREATER:
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
+
+            codes[ip - 1] = OP_GREATER_NUM;
+
+            binaryOp(Operation.OPERATION_GT);
+
+            break;
+          case OP_LESS:
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
+
+            codes[ip - 1] = OP_LESS_NUM;
+
+            binaryOp(Operation.OPERATION_LT);
+
+            break;
+          case OP_ADD:
+            if (twoStringOperands())
+              codes[ip - 1] = OP_ADD_STR;
+            else if (twoNumericOperands())
+              codes[ip - 1] = OP_ADD_NUM;
+
+            if (!add())
+              return errorTwoNumbersOrStrings(ip);
+
+            break;
+          case OP_SUBTRACT:
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
+
+            codes[ip - 1] = OP_SUBTRACT_NUM;
+
+            binaryOp(Operation.OPERATION_SUBTRACT);
+
+            break;
+          case OP_MULTIPLY:
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
 
-          break;
-        case OP_EQUAL:
-          equate();
+            codes[ip - 1] = OP_MULTIPLY_NUM;
+
+            binaryOp(Operation.OPERATION_MULT);
+
+            break;
+          case OP_DIVIDE:
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
+
+            codes[ip - 1] = OP_DIVIDE_NUM;
+
+            binaryOp(Operation.OPERATION_DIVIDE);
+
+            break;
+          //Quickened forms.  Each re-checks its type guard and, when
+          //the guard fails, reverts to the generic instruction and
+          //re-executes it.
+          case OP_GREATER_NUM:
+            if (!twoNumericOperands()) {
+              ip = deoptimize(codes, ip, OP_GREATER, 1);
 
-          break;
-        case OP_GREATER:
-          if (!twoNumericOperands())
-            return errorTwoNumbers();
+              break;
+            }
 
-          binaryOp(Operation.OPERATION_GT);
+            double gnB = popNumber();
 
-          break;
-        case OP_LESS:
-          if (!twoNumericOperands())
-            return errorTwoNumbers();
+            pushBool(popNumber() > gnB);
+
+            break;
+          case OP_LESS_NUM:
+            if (!twoNumericOperands()) {
+              ip = deoptimize(codes, ip, OP_LESS, 1);
+
+              break;
+            }
+
+            double lnB = popNumber();
+
+            pushBool(popNumber() < lnB);
+
+            break;
+          case OP_ADD_NUM:
+            if (!twoNumericOperands()) {
+              ip = deoptimize(codes, ip, OP_ADD, 1);
+
+              break;
+            }
+
+            double anB = popNumber();
+
+            pushNumber(popNumber() + anB);
+
+            break;
+          case OP_CONCAT_N:
+            if (!concatenate(codes[ip++] & 0xFF))
+              return errorTwoNumbersOrStrings(ip);
+
+            break;
+          case OP_ADD_STR:
+            if (!twoStringOperands()) {
+              ip = deoptimize(codes, ip, OP_ADD, 1);
 
-          binaryOp(Operation.OPERATION_LT);
+              break;
+            }
 
-          break;
-        case OP_ADD:
-          if (twoStringOperands())
             concatenate();
-          else if (twoNumericOperands())
-            binaryOp(Operation.OPERATION_PLUS);
-          else
-            return errorTwoNumbersOrStrings();
 
-          break;
-        case OP_SUBTRACT:
-          if (!twoNumericOperands())
-            return errorTwoNumbers();
+            break;
+          case OP_SUBTRACT_NUM:
+            if (!twoNumericOperands()) {
+              ip = deoptimize(codes, ip, OP_SUBTRACT, 1);
+
+              break;
+            }
 
-          binaryOp(Operation.OPERATION_SUBTRACT);
+            double snB = popNumber();
 
-          break;
-        case OP_MULTIPLY:
-          if (!twoNumericOperands())
-            return errorTwoNumbers();
+            pushNumber(popNumber() - snB);
+
+            break;
+          case OP_MULTIPLY_NUM:
+            if (!twoNumericOperands()) {
+              ip = deoptimize(codes, ip, OP_MULTIPLY, 1);
 
-          binaryOp(Operation.OPERATION_MULT);
+              break;
+            }
 
-          break;
-        case OP_DIVIDE:
-          if (!twoNumericOperands())
-            return errorTwoNumbers();
+            double mnB = popNumber();
+
+            pushNumber(popNumber() * mnB);
+
+            break;
+          case OP_DIVIDE_NUM:
+            if (!twoNumericOperands()) {
+              ip = deoptimize(codes, ip, OP_DIVIDE, 1);
 
-          binaryOp(Operation.OPERATION_DIVIDE);
+              break;
+            }
 
-          break;
-        case OP_NOT:
-          pushValue(isFalsey(popValue()));
+            double dnB = popNumber();
 
-          break;
-        case OP_NEGATE:
-          if (!oneNumericOperand())
-            return errorOneNumber();
+            pushNumber(popNumber() / dnB);
 
-          pushValue(-(double)popValue());
+            break;
+          case OP_NOT:
+            vStack[vStackTop()] = Value.bool(Value.isFalsey(peekBits()));
 
-          break;
-        //case OP_PRINT:
-        //  System.out.println(popValue());
+            break;
+          case OP_NEGATE:
+            if (!oneNumericOperand())
+              return errorOneNumber(ip);
 
-        //  break;
-        case OP_JUMP:
-          short jumpOffset = readWord(frame);
+            pushNumber(-popNumber());
 
-          frame.setIP(frame.ip() + jumpOffset);
+            break;
+          //case OP_PRINT:
+          //  System.out.println(popValue());
 
-          break;
-        case OP_JUMP_IF_FALSE:
-          short jumpIfFalseOffset = readWord(frame);
+          //  break;
+          case OP_JUMP:
+            short jumpOffset = word(codes, ip);
 
-          if (isFalsey(peekValue()))
-            frame.setIP(frame.ip() + jumpIfFalseOffset);
+            ip += 2 + jumpOffset;
 
-          break;
-        case OP_LOOP:
-          short loopOffset = readWord(frame);
+            break;
+          case OP_JUMP_IF_FALSE:
+            short jumpIfFalseOffset = word(codes, ip);
 
-          frame.setIP(frame.ip() - loopOffset);
+            ip += 2;
 
-          break;
-        case OP_CALL:
-          int callArgCount = readByte(frame);
-          Object callee = getValue(vStackTop() - callArgCount);
+            if (Value.isFalsey(peekBits()))
+              ip += jumpIfFalseOffset;
 
-          if (!callValue(callee, callArgCount))
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
+            break;
+          case OP_LOOP:
+            short loopOffset = word(codes, ip);
+            int loopAt = ip - 1;
 
-          frame = peekFrame();
+            ip += 2 - loopOffset;
 
-          break;
-        case OP_INVOKE:
-          String invMethod = readString(frame);
-          int invArgCount = readByte(frame);
+            if (jit != null) {
+              CompiledCode loopCode = loopCode(frameClosure.function(), loopAt, base);
 
-          if (!invoke(invMethod, invArgCount))
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
+              if (loopCode != null) {
+                frameIPs[frame] = ip;
 
-          frame = peekFrame();
+                if (!runCompiled(loopCode, base))
+                  return InterpretResult.INTERPRET_RUNTIME_ERROR;
 
-          break;
-        case OP_SUPER_INVOKE:
-          String siMethod = readString(frame);
-          int siArgCount = readByte(frame);
-          LoxClass siSuperclass = (LoxClass)popValue();
+                //back from the loop, wherever it left
+                continue frames;
+              }
+            }
 
-          if (!invokeFromClass(siSuperclass, siMethod, siArgCount))
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
+            break;
+          case OP_CALL:
+            int callArgCount = codes[ip++];
+            Object callee = Value.box(
+              vStack[vStackTop() - callArgCount], vStackRefs[vStackTop() - callArgCount]
+            );
 
-          frame = peekFrame();
+            frameIPs[frame] = ip;
 
-          break;
-        case OP_CLOSURE:
-          Function function = (Function)readConstant(frame);
-          Closure closure = new Closure(function);
+            if (!callValue(callee, callArgCount))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
 
-          pushValue(closure);
+            //a call site comes here the first time, before it is quickened
+            if (snapshotPath != null && callee instanceof NativeSnapshot && !takeSnapshot(frame))
+              return error(ip, "snapshot() must be called from the top level.");
 
-          for (int i = 0; i < closure.upvalueCount(); i++) {
-            byte isLocal = readByte(frame);
-            byte index = readByte(frame);
+            codes[ip - 2] = cacheCall(chunk, ip - 2, callee, callArgCount);
 
-            if (isLocal != 0)
-              closure.upvalues()[i] = captureUpvalue(frame.base() + index);
-            else
-              closure.upvalues()[i] = frame.closure().upvalues()[index];
-          }
+            continue frames;
+          case OP_CALL_CLOSURE:
+            CallCache ccCache = (CallCache)chunk.inlineCache(ip - 1);
+            int ccCallee = vStackTop() - codes[ip];
+            Object ccValue = vStackRefs[ccCallee];
+
+            //Guard: a closure over the function the site has seen.
+            if (
+              Value.isObj(vStack[ccCallee]) && ccValue instanceof Closure &&
+              ((Closure)ccValue).function() == ccCache.target()
+            ) {
+              if (!hasRoom(((Closure)ccValue).function(), ccCallee))
+                return error(ip + 1, "Stack overflow.");
+
+              frameIPs[frame] = ip + 1;
+
+              pushFrame((Closure)ccValue, ccCallee);
+
+              CompiledCode ccCode = compiledCode(((Closure)ccValue).function());
+
+              if (ccCode != null && !runCompiled(ccCode, ccCallee))
+                return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+              continue frames;
+            }
+
+            ip = deoptimize(codes, ip, OP_CALL, 1);
+
+            break;
+          case OP_CALL_NATIVE:
+            CallCache cnCache = (CallCache)chunk.inlineCache(ip - 1);
+            int cnArgCount = codes[ip];
+            int cnCallee = vStackTop() - cnArgCount;
+
+            if (Value.isObj(vStack[cnCallee]) && vStackRefs[cnCallee] == cnCache.target()) {
+              Object[] cnArgs = cnCache.args();
+
+              for (int i = 0; i < cnArgCount; i++)
+                cnArgs[i] = peekBoxed(cnArgCount - i);
+
+              Object cnResult = ((NativeFn)cnCache.target()).execute(cnArgs);
+
+              //don't keep the arguments alive until the next call
+              for (int i = 0; i < cnArgCount; i++)
+                cnArgs[i] = null;
+
+              //pop args plus native function
+              vStackCount = cnCallee;
 
-          break;
-        case OP_CLOSE_UPVALUE:
-          //close the upvalue at the top of the vStack
-          closeUpvalues(vStackTop());
+              pushBoxed(cnResult);
 
-          popValue();
+              ip++;
 
-          break;
-        case OP_RETURN:
-          Object result = popValue();
+              break;
+            }
 
-          closeUpvalues(frame.base());
+            ip = deoptimize(codes, ip, OP_CALL, 1);
 
-          popFrame();
+            break;
+          case OP_CALL_CLASS:
+            CallCache clCache = (CallCache)chunk.inlineCache(ip - 1);
+            int clCallee = vStackTop() - codes[ip];
+
+            if (
+              Value.isObj(vStack[clCallee]) && vStackRefs[clCallee] == clCache.target() &&
+              ((LoxClass)clCache.target()).version() == clCache.version()
+            ) {
+              setObject(clCallee, new LoxInstance((LoxClass)clCache.target()));
+
+              if (clCache.initializer() == null) {
+                ip++;
+
+                break;
+              }
+
+              if (!hasRoom(clCache.initializer().function(), clCallee))
+                return error(ip + 1, "Stack overflow.");
+
+              frameIPs[frame] = ip + 1;
+
+              pushFrame(clCache.initializer(), clCallee);
+
+              CompiledCode clCode = compiledCode(clCache.initializer().function());
+
+              if (clCode != null && !runCompiled(clCode, clCallee))
+                return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+              continue frames;
+            }
+
+            ip = deoptimize(codes, ip, OP_CALL, 1);
+
+            break;
+          case OP_TAIL_CALL:
+            frameIPs[frame] = ip + 1;
+
+            if (!tailCall(frame, null, codes[ip]) || !tailCalled(frame, true))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            //back in compiled code's callee (see runNested()), or
+            //the callee is runTailCalls()' to run
+            if (fStackCount == exitDepth || frame == tailFrame)
+              return InterpretResult.INTERPRET_OK;
+
+            continue frames;
+          case OP_TAIL_INVOKE:
+            frameIPs[frame] = ip + 3;
+
+            if (
+              !tailCall(frame, (Selector)constants[word(codes, ip)], codes[ip + 2]) ||
+              !tailCalled(frame, true)
+            )
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            if (fStackCount == exitDepth || frame == tailFrame)
+              return InterpretResult.INTERPRET_OK;
+
+            continue frames;
+          case OP_INVOKE:
+            Selector invMethod = (Selector)constants[word(codes, ip)];
+            int invArgCount = codes[ip + 2];
+            Object invReceiver = peekNRefs(invArgCount + 1);
+
+            if (Value.isObj(peekNBits(invArgCount + 1)) && invReceiver instanceof LoxInstance) {
+              LoxInstance invInstance = (LoxInstance)invReceiver;
+
+              if (cacheInvoke(chunk, ip - 1, invInstance.klass(), invInstance.shape(), invMethod))
+                codes[ip - 1] = OP_INVOKE_CACHED;
+            }
+
+            frameIPs[frame] = ip + 3;
+
+            if (!invoke(invMethod, invArgCount))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            continue frames;
+          case OP_SUPER_INVOKE:
+            Selector siMethod = (Selector)constants[word(codes, ip)];
+            int siArgCount = codes[ip + 2];
+            LoxClass siSuperclass = (LoxClass)peekRef();
+
+            if (cacheInvoke(chunk, ip - 1, siSuperclass, null, siMethod))
+              codes[ip - 1] = OP_SUPER_INVOKE_CACHED;
 
-          if (fStackCount == 0) {
             popValue();
 
-            return InterpretResult.INTERPRET_OK;
-          }
+            frameIPs[frame] = ip + 3;
+
+            if (!invokeFromClass(siSuperclass, siMethod, siArgCount))
+              return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+            continue frames;
+          case OP_INVOKE_CACHED:
+            InvokeCache icCache = (InvokeCache)chunk.inlineCache(ip - 1);
+            int icArgCount = codes[ip + 2];
+            Object icReceiver = peekNRefs(icArgCount + 1);
+
+            //Guard: the receiver's class and shape are ones the site
+            //has seen, and the class has not changed since.
+            if (Value.isObj(peekNBits(icArgCount + 1)) && icReceiver instanceof LoxInstance) {
+              LoxInstance icInstance = (LoxInstance)icReceiver;
+              int icEntry = icCache.lookup(icInstance.klass(), icInstance.shape());
+
+              if (icEntry != -1) {
+                frameIPs[frame] = ip + 3;
+
+                if (!call(icCache.method(icEntry), icArgCount))
+                  return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+                continue frames;
+              }
+            }
+
+            ip = deoptimize(codes, ip, OP_INVOKE, 1);
+
+            break;
+          case OP_SUPER_INVOKE_CACHED:
+            InvokeCache sicCache = (InvokeCache)chunk.inlineCache(ip - 1);
+            int sicEntry = sicCache.lookup((LoxClass)peekRef(), null);
+
+            if (sicEntry != -1) {
+              popValue(); // Superclass.
+
+              frameIPs[frame] = ip + 3;
+
+              if (!call(sicCache.method(sicEntry), codes[ip + 2]))
+                return InterpretResult.INTERPRET_RUNTIME_ERROR;
+
+              continue frames;
+            }
+
+            ip = deoptimize(codes, ip, OP_SUPER_INVOKE, 1);
+
+            break;
+          case OP_CLOSURE:
+            Function function = (Function)constants[word(codes, ip)];
+            Closure closure = new Closure(function);
+
+            ip += 2;
+
+            pushObject(closure);
+
+            for (int i = 0; i < closure.upvalueCount(); i++) {
+              byte isLocal = codes[ip++];
+              byte index = codes[ip++];
+
+              if (isLocal != 0)
+                closure.upvalues()[i] = captureUpvalue(base + index);
+              else
+                closure.upvalues()[i] = frameClosure.upvalues()[index];
+            }
+
+            break;
+          case OP_CLOSE_UPVALUE:
+            //close the upvalue at the top of the vStack
+            closeUpvalues(vStackTop());
+
+            popValue();
+
+            break;
+          case OP_RETURN:
+            long resultBits = peekBits();
+            Object resultRef = peekRef();
+
+            popValue();
+
+            closeUpvalues(base);
+
+            popFrame();
+
+            //deep recursion has unwound, or the script has returned
+            if (fStackCount < shrinkDepth) {
+              shrink();
+
+              if (fStackCount == 0) {
+                popValue();
 
-          vStackCount = frame.base();
+                return InterpretResult.INTERPRET_OK;
+              }
+            }
 
-          pushValue(result);
+            vStackCount = base;
 
-          frame = peekFrame();
+            pushValue(resultBits, resultRef);
 
-          break;
-        case OP_CLASS:
-          LoxClass classLoxClass = new LoxClass(readString(frame));
-          Object classVal = classLoxClass;
+            //back in compiled code's callee (see runNested())
+            if (fStackCount == exitDepth)
+              return InterpretResult.INTERPRET_OK;
 
-          pushValue(classVal);
+            continue frames;
+          case OP_CLASS:
+            pushObject(new LoxClass(((LoxString)constants[word(codes, ip)]).chars()));
 
-          break;
-        case OP_INHERIT:
-          Object superclass = peekNValues(2);
+            ip += 2;
 
-          if (!(superclass instanceof LoxClass)) {
-            runtimeError("Superclass must be a class.");
+            break;
+          case OP_INHERIT:
+            Object superclass = peekNRefs(2);
+
+            if (!Value.isObj(peekNBits(2)) || !(superclass instanceof LoxClass))
+              return error(ip, "Superclass must be a class.");
+
+            LoxClass subclass = (LoxClass)peekRef();
+
+            subclass.inherit((LoxClass)superclass);
 
-            return InterpretResult.INTERPRET_RUNTIME_ERROR;
-          }
+            popValue(); // Subclass.
 
-          LoxClass subclass = (LoxClass)peekValue();
+            break;
+          case OP_METHOD:
+            defineMethod((Selector)constants[word(codes, ip)]);
+
+            ip += 2;
+
+            break;
+          //Superinstructions.  Each pushes its operands exactly as
+          //its component instructions would, then finishes in one
+          //step.
+          case OP_GET_LOCAL_GET_LOCAL_ADD:
+            pushLocal(base + word(codes, ip));
+            pushLocal(base + word(codes, ip + 2));
 
-          subclass.inheritMethods(((LoxClass)superclass).methods());
+            ip += 4;
+
+            if (!add())
+              return errorTwoNumbersOrStrings(ip);
+
+            break;
+          case OP_GET_LOCAL_CONSTANT_ADD:
+            pushLocal(base + word(codes, ip));
+            pushValue(constantBits[word(codes, ip + 2)], constants[word(codes, ip + 2)]);
+
+            ip += 4;
+
+            if (!add())
+              return errorTwoNumbersOrStrings(ip);
+
+            break;
+          case OP_GET_LOCAL_CONSTANT_SUBTRACT:
+            pushLocal(base + word(codes, ip));
+            pushValue(constantBits[word(codes, ip + 2)], constants[word(codes, ip + 2)]);
 
-          popValue(); // Subclass.
+            ip += 4;
+
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
+
+            double lcsB = popNumber();
+
+            pushNumber(popNumber() - lcsB);
+
+            break;
+          case OP_GET_LOCAL_CONSTANT_LESS:
+            pushLocal(base + word(codes, ip));
+            pushValue(constantBits[word(codes, ip + 2)], constants[word(codes, ip + 2)]);
+
+            ip += 4;
+
+            if (!twoNumericOperands())
+              return errorTwoNumbers(ip);
+
+            double lclB = popNumber();
+
+            pushBool(popNumber() < lclB);
+
+            break;
+          case OP_GET_LOCAL_CONSTANT:
+            pushLocal(base + word(codes, ip));
+            pushValue(constantBits[word(codes, ip + 2)], constants[word(codes, ip + 2)]);
+
+            ip += 4;
+
+            break;
+          case OP_JUMP_IF_FALSE_POP:
+            short jfpOffset = word(codes, ip);
 
-          break;
-        case OP_METHOD:
-          defineMethod(readString(frame));
+            ip += 2;
 
-          break;
-      } //switch
-    } //for(;;)
+            //the condition stays on the vStack on the jump path only
+            if (Value.isFalsey(peekBits()))
+              ip += jfpOffset;
+            else
+              popValue();
+
+            break;
+          case OP_SET_LOCAL_POP:
+            copyValue(vStackTop(), base + word(codes, ip));
+
+            ip += 2;
+
+            popValue();
+
+            break;
+        } //switch
+      } //for(;;)
+    } //frames
+  }
+
+  //runNested(int)
+  boolean runNested(int depth) {
+    //Run the frames above depth, pushed by a call from compiled
+    //code, until the last of them returns.
+    int outerDepth = exitDepth;
+
+    exitDepth = depth;
+
+    InterpretResult result = run();
+
+    exitDepth = outerDepth;
+
+    return result == InterpretResult.INTERPRET_OK;
+  }
+
+  //add()
+  private boolean add() {
+    if (twoStringOperands())
+      concatenate();
+    else if (twoNumericOperands()) {
+      double b = popNumber();
+
+      pushNumber(popNumber() + b);
+    } else
+      return false;
+
+    return true;
   }
 
   //oneNumericOperand()
   private boolean oneNumericOperand() {
-    return peekValue() instanceof Double;
+    return Value.isNumber(peekBits());
   }
 
-  //errorOneNumber()
-  private InterpretResult errorOneNumber() {
-    return error("Operand must be a number");
+  //errorOneNumber(int)
+  private InterpretResult errorOneNumber(int ip) {
+    return error(ip, "Operand must be a number");
   }
 
   //twoNumericOperands()
   private boolean twoNumericOperands() {
-    Object first = popValue(); //temporarily pop
-    Object second = peekValue();
-
-    pushValue(first);
-
-    return first instanceof Double && second instanceof Double;
+    return Value.isNumber(peekBits()) && Value.isNumber(peekNBits(2));
   }
 
-  //errorTwoNumbers()
-  private InterpretResult errorTwoNumbers() {
-    return error("Operands must be two numbers.");
+  //errorTwoNumbers(int)
+  InterpretResult errorTwoNumbers(int ip) {
+    return error(ip, "Operands must be two numbers.");
   }
 
   //twoStringOperands()
   private boolean twoStringOperands() {
-    Object first = popValue();
-    Object second = peekValue();
-
-    pushValue(first); //push back again
-
-    return first instanceof String && second instanceof String;
+    return
+      Value.isObj(peekBits()) && peekRef() instanceof LoxString &&
+      Value.isObj(peekNBits(2)) && peekNRefs(2) instanceof LoxString;
   }
 
-  //errorTwoStrings()
-  private InterpretResult errorTwoStrings() {
-    return error("Operands must be two strings.");
+  //errorTwoStrings(int)
+  private InterpretResult errorTwoStrings(int ip) {
+    return error(ip, "Operands must be two strings.");
   }
 
-  //errorTwoNumbersOrStrings()
-  private InterpretResult errorTwoNumbersOrStrings() {
-    return error("Operands must be two numbers or two strings.");
+  //errorTwoNumbersOrStrings(int)
+  InterpretResult errorTwoNumbersOrStrings(int ip) {
+    return error(ip, "Operands must be two numbers or two strings.");
   }
 
-  //error(String)
-  private InterpretResult error(String message) {
+  //error(int, String)
+  InterpretResult error(int ip, String message) {
+    //spill the running frame's ip so the trace can report it
+    frameIPs[fStackTop()] = ip;
+
     runtimeError(message);
 
     return InterpretResult.INTERPRET_RUNTIME_ERROR;
@@ -813,32 +1955,32 @@ public class VM extends PropsObserver {
 
   //binaryOp(Operation)
   private void binaryOp(Operation op) {
-    double b = (double)popValue();
-    double a = (double)popValue();
+    double b = popNumber();
+    double a = popNumber();
 
     switch (op) {
       case OPERATION_PLUS:
-        pushValue(a + b);
+        pushNumber(a + b);
 
         break;
       case OPERATION_SUBTRACT:
-        pushValue(a - b);
+        pushNumber(a - b);
 
         break;
       case OPERATION_MULT:
-        pushValue(a * b);
+        pushNumber(a * b);
 
         break;
       case OPERATION_DIVIDE:
-        pushValue(a / b);
+        pushNumber(a / b);
 
         break;
       case OPERATION_GT:
-        pushValue(a > b);
+        pushBool(a > b);
 
         break;
       case OPERATION_LT:
-        pushValue(a < b);
+        pushBool(a < b);
 
         break;
     } //switch
@@ -872,5 +2014,14 @@ public class VM extends PropsObserver {
     debugMaster = properties.getBool("DEBUG_MASTER");
     debugPrintProgress = debugMaster && properties.getBool("DEBUG_PRINT_PROGRESS");
     debugTraceExecution = debugMaster && properties.getBool("DEBUG_TRACE_EXECUTION");
+
+    //traced runs show every instruction, so they stay interpreted
+    if (properties.getBool("JIT") && !debugTraceExecution)
+      jit = new Jit(
+        properties.getInt("JIT_THRESHOLD"), properties.getInt("JIT_OPTIMIZE_THRESHOLD"),
+        properties.getInt("JIT_LOOP_THRESHOLD"), properties.getBool("JIT_TREE_BACKEND")
+      );
+    else
+      jit = null;
   }
 }
@@ -0,0 +1,89 @@
+package vm;
+
+//NaN-boxed value representation.  Numbers are stored as the raw
+//bits of their double; nil, booleans and object references are
+//encoded as quiet NaNs carrying a tag.  An OBJ value keeps its
+//reference in a side Object slot running parallel to the bits.
+public final class Value {
+  private static final long QNAN = 0x7FFC000000000000L;
+
+  public static final long NIL   = QNAN | 1;
+  public static final long FALSE = QNAN | 2;
+  public static final long TRUE  = QNAN | 3;
+  public static final long OBJ   = QNAN | 4;
+
+  //Marks a global slot that has no value yet; never seen by Lox code.
+  public static final long UNDEFINED = QNAN | 5;
+
+  //Value()
+  private Value() {}
+
+  //isNumber(long)
+  public static boolean isNumber(long bits) {
+    return (bits & QNAN) != QNAN;
+  }
+
+  //isObj(long)
+  public static boolean isObj(long bits) {
+    return bits == OBJ;
+  }
+
+  //isFalsey(long)
+  public static boolean isFalsey(long bits) {
+    //nil and false are falsey and every other value behaves like true.
+    return bits == NIL || bits == FALSE;
+  }
+
+  //number(double)
+  public static long number(double d) {
+    //doubleToLongBits() collapses every NaN to the canonical one,
+    //so no arithmetic result can be mistaken for a tagged value.
+    return Double.doubleToLongBits(d);
+  }
+
+  //asNumber(long)
+  public static double asNumber(long bits) {
+    return Double.longBitsToDouble(bits);
+  }
+
+  //bool(boolean)
+  public static long bool(boolean b) {
+    return b ? TRUE : FALSE;
+  }
+
+  //bits(Object)
+  public static long bits(Object boxed) {
+    if (boxed == null)
+      return NIL;
+    else if (boxed instanceof Double)
+      return number((double)boxed);
+    else if (boxed instanceof Boolean)
+      return bool((boolean)boxed);
+
+    return OBJ;
+  }
+
+  //box(long, Object)
+  public static Object box(long bits, Object ref) {
+    if (bits == OBJ)
+      return ref;
+    else if (bits == NIL)
+      return null;
+    else if (bits == TRUE)
+      return true;
+    else if (bits == FALSE)
+      return false;
+
+    return asNumber(bits);
+  }
+
+  //equal(long, Object, long, Object)
+  public static boolean equal(long aBits, Object aRef, long bBits, Object bRef) {
+    if (aBits != bBits)
+      return false;
+
+    //Identical bits are equal numbers, or the same singleton;
+    //only references need a deeper look.
+    return aBits != OBJ || aRef.equals(bRef);
+  }
+}